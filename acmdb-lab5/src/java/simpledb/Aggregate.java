@@ -1,24 +1,41 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over a single column, are computed in
+ * one pass over the child, grouped by any number of columns.
+ * <p>
+ * If the child is a scan of a HeapFile, possibly below Filters, and more than
+ * one thread is allowed, the pages of the file are split into disjoint ranges
+ * that worker threads scan and aggregate into aggregators of their own; the
+ * children of a Gather child are aggregated by a thread each likewise. The
+ * partial results, a value and a count per aggregate and group, are then
+ * merged into the result.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of threads aggregating a scan in parallel. */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // fewer pages per thread are not worth starting it for
+    static final int MIN_PAGES_PER_THREAD = 8;
     
     private DbIterator childIt;
-    private int aField;
-    private int gField;
-    private Aggregator.Op op;
-    private Aggregator aggregator;
+    private int[] aFields;
+    private int[] gFields;
+    private Aggregator.Op[] ops;
+    private Type[] gTypes;
+    private Type[] aTypes;
+    private int memory;
+    private int threads;
+    private GroupAggregator aggregator;
     private DbIterator rtnIt;
     private boolean fetched = false;
-    private String gbFieldName = null;
 
     /**
      * Constructor.
@@ -39,32 +56,97 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+		this(child, afield, gfield, aop, AggregateSpill.DEFAULT_MEMORY);
+    }
+
+    /**
+     * Constructor with an explicit memory budget for the groups; groups
+     * beyond it are spilled to disk and aggregated a partition at a time.
+     * 
+     * @see #Aggregate(DbIterator, int, int, Aggregator.Op)
+     * @param memory
+     *            The number of bytes of groups to keep in memory
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop, int memory) {
+		this(child, new int[] { afield }, GroupAggregator.groupFields(gfield),
+				new Aggregator.Op[] { aop }, memory);
+    }
+
+    /**
+     * Constructor for several aggregates over composite groups. The output
+     * tuples hold the group-by fields in the given order, followed by one
+     * field per aggregate.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The column of each aggregate.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator of each aggregate
+     * @param memory
+     *            The number of bytes of groups to keep in memory
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops, int memory) {
+		this(child, afields, gfields, aops, memory, 1);
+    }
+
+    /**
+     * Constructor for several aggregates over composite groups, computed by
+     * up to the given number of threads if the child can be split, see
+     * {@link #canParallelize(DbIterator)}. The memory budget is shared by the
+     * threads.
+     * 
+     * @see #Aggregate(DbIterator, int[], int[], Aggregator.Op[], int)
+     * @param threads
+     *            The maximum number of threads to aggregate with
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops, int memory,
+			int threads) {
 	// some code goes here
+		if(threads < 1)
+			throw new IllegalArgumentException("need at least one thread");
 		childIt = child;
-		aField = afield;
-		gField = gfield;
-		op = aop;
-		Type gType;
-		if(gField == Aggregator.NO_GROUPING)
-		{
-			gType = null;
-		}
-		else
-		{
-			gType = childIt.getTupleDesc().getFieldType(gField);
-			gbFieldName = childIt.getTupleDesc().getFieldName(gField);
-		}
-		if(childIt.getTupleDesc().getFieldType(aField) == Type.INT_TYPE)
-		{
-			aggregator = new IntegerAggregator(gField, gType, aField, op);
-		}
-		else
-		{
-			aggregator = new StringAggregator(gField, gType, aField, op);
-		}
+		aFields = afields.clone();
+		gFields = gfields.clone();
+		ops = aops.clone();
+		this.memory = memory;
+		this.threads = threads;
+		TupleDesc childTd = childIt.getTupleDesc();
+		gTypes = new Type[gFields.length];
+		for(int i = 0; i < gFields.length; i++)
+			gTypes[i] = childTd.getFieldType(gFields[i]);
+		aTypes = new Type[aFields.length];
+		for(int i = 0; i < aFields.length; i++)
+			aTypes[i] = childTd.getFieldType(aFields[i]);
+		aggregator = new GroupAggregator(gFields, gTypes, aFields, aTypes, ops, memory);
 		rtnIt = aggregator.iterator();
-		if(gField != Aggregator.NO_GROUPING)
-			rtnIt.getTupleDesc().setFieldName(0, gbFieldName);
+		for(int i = 0; i < gFields.length; i++)
+			rtnIt.getTupleDesc().setFieldName(i, childTd.getFieldName(gFields[i]));
+    }
+
+    /**
+     * @return the group-by field indexes in the <b>INPUT</b> tuples; empty
+     *         if there is no grouping
+     * */
+    public int[] groupFields() {
+		return gFields.clone();
+    }
+
+    /**
+     * @return the aggregate field index of each aggregate
+     * */
+    public int[] aggregateFields() {
+		return aFields.clone();
+    }
+
+    /**
+     * @return the aggregate operator of each aggregate
+     * */
+    public Aggregator.Op[] aggregateOps() {
+		return ops.clone();
     }
 
     /**
@@ -74,52 +156,147 @@ public class Aggregate extends Operator {
      * */
     public int groupField() {
 		// some code goes here
-		return gField;
+		return gFields.length == 0 ? Aggregator.NO_GROUPING : gFields[0];
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
-     *         of the groupby field in the <b>OUTPUT</b> tuples If not, return
-     *         null;
+     *         of the (first) groupby field in the <b>OUTPUT</b> tuples If not,
+     *         return null;
      * */
     public String groupFieldName() {
 	// some code goes here
-		if(gField != Aggregator.NO_GROUPING)
+		if(gFields.length > 0)
 		{
-			return childIt.getTupleDesc().getFieldName(gField);
+			return childIt.getTupleDesc().getFieldName(gFields[0]);
 		}
 		return null;
     }
 
     /**
-     * @return the aggregate field
+     * @return the aggregate field (of the first aggregate)
      * */
     public int aggregateField() {
 		// some code goes here
-		return aField;
+		return aFields[0];
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     *         tuples
+     * @return return the name of the aggregate field (of the first
+     *         aggregate) in the <b>OUTPUT</b> tuples
      * */
     public String aggregateFieldName() {
 		// some code goes here
-		return childIt.getTupleDesc().getFieldName(aField);
+		return childIt.getTupleDesc().getFieldName(aFields[0]);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the aggregate operator (of the first aggregate)
      * */
     public Aggregator.Op aggregateOp() {
 		// some code goes here
-		return op;
+		return ops[0];
+    }
+
+    /**
+     * @return the maximum number of threads this aggregate runs with
+     * */
+    public int getThreads() {
+		return threads;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
 	return aop.toString();
     }
 
+    /**
+     * Return true if the tuples of the given operator can be read by several
+     * threads: a SeqScan over a HeapFile, possibly below Filters, which is
+     * read a range of pages at a time, or a Gather, whose children are read
+     * by a thread each.
+     */
+    public static boolean canParallelize(DbIterator it) {
+		if(it instanceof Gather)
+			return true;
+		while(it instanceof Filter)
+			it = ((Filter) it).getChildren()[0];
+		return it instanceof SeqScan && !((SeqScan) it).isRange()
+				&& Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId()) instanceof HeapFile;
+    }
+
+    /**
+     * Aggregate the child with several threads, merging their results into
+     * the aggregator. Return false, reading nothing, if the scanned file is
+     * too small to be worth it.
+     */
+    private boolean aggregateParallel() throws DbException, TransactionAbortedException {
+		DbIterator[] inputs;
+		if(childIt instanceof Gather)
+			inputs = ((Gather) childIt).getChildren();
+		else
+		{
+			ArrayList<Predicate> filters = new ArrayList<Predicate>();
+			DbIterator it = childIt;
+			while(it instanceof Filter)
+			{
+				filters.add(((Filter) it).getPredicate());
+				it = ((Filter) it).getChildren()[0];
+			}
+			SeqScan scan = (SeqScan) it;
+			int pages = ((HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId())).numPages();
+			int workers = Math.min(threads, pages / MIN_PAGES_PER_THREAD);
+			if(workers <= 1)
+				return false;
+			SeqScan[] ranges = scan.split(workers);
+			inputs = new DbIterator[ranges.length];
+			for(int w = 0; w < inputs.length; w++)
+			{
+				inputs[w] = ranges[w];
+				for(int j = filters.size() - 1; j >= 0; j--)
+					inputs[w] = new Filter(filters.get(j), inputs[w]);
+			}
+		}
+		final int workerMemory = memory / inputs.length;
+		ArrayList<Future<GroupAggregator>> parts = new ArrayList<Future<GroupAggregator>>();
+		for(final DbIterator in : inputs)
+		{
+			parts.add(Exchange.submit(() -> {
+				GroupAggregator part = new GroupAggregator(gFields, gTypes, aFields, aTypes, ops, workerMemory);
+				in.open();
+				try
+				{
+					TupleBatch batch;
+					while((batch = TupleBatch.next(in)) != null)
+						part.mergeBatch(batch);
+				}
+				finally
+				{
+					in.close();
+				}
+				return part;
+			}));
+		}
+		try
+		{
+			for(Future<GroupAggregator> part : parts)
+				aggregator.merge(part.get());
+		}
+		catch(InterruptedException e)
+		{
+			throw new DbException("interrupted while aggregating");
+		}
+		catch(ExecutionException e)
+		{
+			Exchange.rethrow(e.getCause());
+		}
+		finally
+		{
+			for(Future<GroupAggregator> part : parts)
+				part.cancel(true);
+		}
+		return true;
+    }
+
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 		// some code goes here
@@ -127,27 +304,25 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. The first fields are the fields by which we are
+     * grouping, if any, and the following fields are the results of computing
+     * each aggregate. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 		// some code goes here
 		if(!fetched)
 		{
-			childIt.open();
-			while(childIt.hasNext())
+			if(threads == 1 || !canParallelize(childIt) || !aggregateParallel())
 			{
-				Tuple t = childIt.next();
-				aggregator.mergeTupleIntoGroup(t);
+				// read the child a batch at a time
+				childIt.open();
+				TupleBatch batch;
+				while((batch = TupleBatch.next(childIt)) != null)
+					aggregator.mergeBatch(batch);
+				childIt.close();
 			}
-			childIt.close();
 			fetched = true;
 			rtnIt = aggregator.iterator();
-			if(gField != Aggregator.NO_GROUPING)
-				rtnIt.getTupleDesc().setFieldName(0, gbFieldName);
 			rtnIt.open();
 		}
 		while(rtnIt.hasNext())
@@ -163,10 +338,8 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * followed by one aggregate value column per aggregate.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
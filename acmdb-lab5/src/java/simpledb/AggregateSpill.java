@@ -0,0 +1,214 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * AggregateSpill holds the input of the groups an aggregator had no room
+ * for. Once an aggregator holds as many groups as fit in its memory budget,
+ * tuples of groups it already holds are still merged in place, but the
+ * partial results of tuples of new groups are written to one of PARTITIONS
+ * spill files, chosen by the hash of the group. The groups in
+ * memory are returned first, and then each partition is aggregated on its own
+ * by a new aggregator, which spills again if it does not fit either.
+ */
+public class AggregateSpill {
+
+    /** Default number of bytes of groups an aggregator keeps in memory. */
+    public static final int DEFAULT_MEMORY = 16 << 20;
+
+    /** Estimated bytes per group held in memory, besides the group value. */
+    static final int GROUP_OVERHEAD = 64;
+
+    static final int PARTITIONS = 16;
+
+    // partitions of a partition are aggregated in memory past this level,
+    // e.g. when a single group is too large to fit
+    static final int MAX_LEVEL = 4;
+
+    /** Creates the aggregator for one partition of spilled input. */
+    interface AggregatorFactory {
+        /**
+         * @param level the recursion level of the new aggregator
+         * @return an aggregator over the spilled partial results
+         */
+        Aggregator create(int level);
+    }
+
+    private final int level;
+    private final SpillFile[] parts = new SpillFile[PARTITIONS];
+    private TupleDesc td = null;
+
+    /**
+     * Create an empty spill for an aggregator at the given recursion level.
+     */
+    public AggregateSpill(int level) {
+        this.level = level;
+    }
+
+    /** @return true if the aggregator may spill new groups here */
+    public boolean canSpill() {
+        return level < MAX_LEVEL;
+    }
+
+    /** @return true if nothing was spilled */
+    public boolean isEmpty() {
+        return td == null;
+    }
+
+    private int partition(int hash) {
+        int h = hash * 0x9E3779B9 + level * 0x85EBCA6B;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % PARTITIONS;
+    }
+
+    /**
+     * Set aside a tuple of a group not in memory.
+     *
+     * @param hash the hash code of the group of the tuple
+     * @param t the partial result of the tuple
+     * @throws RuntimeException if the spill file cannot be written, since
+     *             Aggregator.mergeTupleIntoGroup declares no exceptions
+     */
+    public void add(int hash, Tuple t) {
+        if (td == null)
+            td = t.getTupleDesc();
+        int p = partition(hash);
+        if (parts[p] == null)
+            parts[p] = new SpillFile(td);
+        try {
+            parts[p].add(t);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Pass every tuple spilled here to the given action, and delete them.
+     *
+     * @throws RuntimeException if the spill files cannot be read
+     */
+    public void drain(Consumer<Tuple> action) {
+        try {
+            for (int p = 0; p < PARTITIONS; p++) {
+                if (parts[p] == null)
+                    continue;
+                DbIterator in = parts[p].iterator();
+                in.open();
+                while (in.hasNext())
+                    action.accept(in.next());
+                in.close();
+                parts[p].delete();
+                parts[p] = null;
+            }
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        } catch (TransactionAbortedException e) {
+            throw new RuntimeException(e);
+        }
+        td = null;
+    }
+
+    /**
+     * Return an iterator over the groups in memory followed by the groups of
+     * each partition, which are aggregated one partition at a time as the
+     * iterator reaches them. Closing the iterator deletes the partitions.
+     *
+     * @param resident the results of the groups in memory
+     * @param factory creates the aggregator of a partition
+     */
+    public DbIterator iterator(DbIterator resident, AggregatorFactory factory) {
+        return new SpillIterator(resident, factory);
+    }
+
+    private class SpillIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DbIterator resident;
+        private final AggregatorFactory factory;
+        private int part = -1;
+        private DbIterator current = null;
+
+        SpillIterator(DbIterator resident, AggregatorFactory factory) {
+            this.resident = resident;
+            this.factory = factory;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            resident.open();
+            part = -1;
+            current = resident;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (current == null)
+                return false;
+            while (!current.hasNext()) {
+                if (current != resident)
+                    current.close();
+                if (!nextPartition()) {
+                    current = null;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Aggregate the next non-empty partition. */
+        private boolean nextPartition() throws DbException, TransactionAbortedException {
+            do {
+                part++;
+            } while (part < PARTITIONS && parts[part] == null);
+            if (part == PARTITIONS)
+                return false;
+            Aggregator agg = factory.create(level + 1);
+            DbIterator in = parts[part].iterator();
+            in.open();
+            while (in.hasNext())
+                agg.mergeTupleIntoGroup(in.next());
+            in.close();
+            current = agg.iterator();
+            current.open();
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = current.next();
+            if (current == resident)
+                return t;
+            // give the tuples of all partitions the descriptor of the result
+            Tuple out = new Tuple(getTupleDesc());
+            for (int i = 0; i < out.getTupleDesc().numFields(); i++)
+                out.setField(i, t.getField(i));
+            return out;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            if (current != null && current != resident)
+                current.close();
+            resident.rewind();
+            part = -1;
+            current = resident;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return resident.getTupleDesc();
+        }
+
+        public void close() {
+            if (current != null && current != resident)
+                current.close();
+            current = null;
+            resident.close();
+            for (int i = 0; i < PARTITIONS; i++) {
+                if (parts[i] != null)
+                    parts[i].delete();
+                parts[i] = null;
+            }
+            td = null;
+        }
+    }
+}
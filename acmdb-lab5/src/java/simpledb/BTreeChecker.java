@@ -55,7 +55,7 @@ public class BTreeChecker {
      * checks the integrity of the tree:
      * 1) parent pointers.
      * 2) sibling pointers.
-     * 3) range invariants.
+     * 3) range invariants, including the high keys of leaf pages.
      * 4) record to page pointers.
      * 5) occupancy invariants. (if enabled)
      */
@@ -84,6 +84,7 @@ public class BTreeChecker {
         if (page.getId().pgcateg() == BTreePageId.LEAF) {
             BTreeLeafPage bpage = (BTreeLeafPage) page;
             bpage.checkRep(bt.keyField(), lowerBound, upperBound, checkOccupancy, depth);
+            assert(null == upperBound ? null == bpage.getHighKey() : upperBound.equals(bpage.getHighKey()));
             return new SubtreeSummary(bpage, depth);
         } else if (page.getId().pgcateg() == BTreePageId.INTERNAL) {
 
@@ -3,6 +3,8 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
 
 import simpledb.Predicate.Op;
 
@@ -177,73 +179,262 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, and locks it with permission perm.
+	 * 
+	 * The internal pages along the path (and the root pointer page) are not locked:
+	 * they are read optimistically, recording the version of their latch, and the
+	 * versions are validated once the leaf is locked. A page another transaction is
+	 * writing, e.g. the parent of a leaf it is splitting, is read as of its last commit,
+	 * so the search does not wait behind the split. If a page on the path has changed
+	 * by the time the leaf is locked, the leaf is checked against its high key and
+	 * the search moves right along the sibling links if the key has moved there
+	 * (see moveRight()); only if the leaf no longer covers the key at all does the
+	 * search restart from the root.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree has no root page yet
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-		BTreePage page = null;
-		if(pid.pgcateg() == BTreePageId.INTERNAL)
-		{
-			page = (BTreePage)getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		BufferPool bp = Database.getBufferPool();
+		ArrayList<PageRead> path = new ArrayList<PageRead>();
+		while(true) {
+			path.clear();
+			BTreePageId pid = readUnlocked(tid, dirtypages, BTreeRootPtrPage.getId(tableid),
+					page -> ((BTreeRootPtrPage)page).getRootId(), path);
+			while(pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+				pid = readUnlocked(tid, dirtypages, pid, page -> ((BTreeInternalPage)page).findChild(f), path);
+			}
+			if(pid == null) {
+				if(validate(path))
+					return null;
+				continue;
+			}
+
+			// don't lock a leaf we already know to be stale
+			if(!validate(path))
+				continue;
+			boolean held = dirtypages.containsKey(pid) || bp.holdsLock(tid, pid);
+			BTreeLeafPage leaf = (BTreeLeafPage)getPage(tid, dirtypages, pid, perm);
+			if(validate(path))
+				return leaf;
+			leaf = moveRight(tid, dirtypages, leaf, held, perm, f);
+			if(leaf != null)
+				return leaf;
 		}
-		else if(pid.pgcateg() == BTreePageId.LEAF)
-		{
-			page = (BTreePage)getPage(tid, dirtypages, pid, perm);
-			return (BTreeLeafPage)page;
+	}
+	
+	/**
+	 * Check a locked leaf page which a search for f reached over pages that have changed
+	 * since. Splits move keys to the right only, so if f is greater than the high key of
+	 * the page, the search follows the right sibling links, B-link style, until it gets
+	 * to the page covering f. The page is released if the search must restart from the
+	 * root instead: when it is no longer part of the tree, or when keys up to f have moved
+	 * to its left sibling.
+	 * 
+	 * This relies on the sibling pointers and the high keys of a leaf page and of its left
+	 * sibling only changing while the leaf page is locked for writing.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param leaf - the locked leaf page
+	 * @param held - whether the transaction held the lock on the leaf page before the search
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @return the leaf page covering f, or null if the search must restart
+	 */
+	private BTreeLeafPage moveRight(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage leaf,
+			boolean held, Permissions perm, Field f)
+					throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		while(true) {
+			if(!isLive(tid, dirtypages, leaf)) {
+				if(!held) {
+					// it may even be a reused page of another kind, so don't keep it in the cache
+					dirtypages.remove(leaf.getId());
+					bp.discardPage(leaf.getId());
+					bp.releasePage(tid, leaf.getId());
+				}
+				return null;
+			}
+			Field high = leaf.getHighKey();
+			if(f != null && high != null && f.compare(Op.GREATER_THAN, high)) {
+				BTreePageId nextId = leaf.getRightSiblingId();
+				boolean nextHeld = dirtypages.containsKey(nextId) || bp.holdsLock(tid, nextId);
+				BTreeLeafPage next = (BTreeLeafPage)getPage(tid, dirtypages, nextId, perm);
+				if(!held) {
+					dirtypages.remove(leaf.getId());
+					bp.releasePage(tid, leaf.getId());
+				}
+				leaf = next;
+				held = nextHeld;
+				continue;
+			}
+			BTreePageId leftId = leaf.getLeftSiblingId();
+			boolean covers = leftId == null;
+			if(!covers && f != null) {
+				try {
+					Field leftHigh = readUnlocked(tid, dirtypages, leftId,
+							page -> ((BTreeLeafPage)page).getHighKey(), null);
+					covers = leftHigh != null && f.compare(Op.GREATER_THAN, leftHigh);
+				} catch(RuntimeException e) {
+					// the sibling has been reused as a page of another kind
+					covers = false;
+				}
+			}
+			if(!covers) {
+				if(!held) {
+					dirtypages.remove(leaf.getId());
+					bp.releasePage(tid, leaf.getId());
+				}
+				return null;
+			}
+			return leaf;
 		}
-		
-		
-		IndexPredicate fieldIP = new IndexPredicate(Op.LESS_THAN_OR_EQ, f);
-		Iterator<BTreeEntry> it = ((BTreeInternalPage)page).iterator();
-		BTreeEntry entry = null;
-		if(f == null)
-		{
-			entry = it.next();
-			return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+	}
+	
+	/**
+	 * Return true if the given leaf page is still part of the tree, i.e. the page its
+	 * parent pointer names points back to it.
+	 */
+	private boolean isLive(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage leaf)
+			throws DbException, TransactionAbortedException {
+		BTreePageId pid = leaf.getId();
+		BTreePageId parentId = leaf.getParentId();
+		try {
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				return pid.equals(readUnlocked(tid, dirtypages, parentId,
+						page -> ((BTreeRootPtrPage)page).getRootId(), null));
+			}
+			return pid.equals(readUnlocked(tid, dirtypages, parentId,
+					page -> hasChild((BTreeInternalPage)page, pid) ? pid : null, null));
+		} catch(RuntimeException e) {
+			// the parent pointer of a reused page may be anything
+			return false;
 		}
-		while(it.hasNext())
-		{
-			entry = it.next();
-			IndexPredicate entryIP = new IndexPredicate(Op.LESS_THAN_OR_EQ, entry.getKey());
-			if(fieldIP.equals(entryIP))
-			{
-				return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+	}
+	
+	/**
+	 * Return true if the given internal page has a child with the given id.
+	 */
+	private boolean hasChild(BTreeInternalPage page, BTreePageId child) {
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(child.equals(e.getLeftChild()) || child.equals(e.getRightChild())) {
+				return true;
 			}
 		}
-        return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+		return false;
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree is empty
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f);
+	}
+	
+	/**
+	 * An optimistic read of a page: the latch it was read under, and the version of the
+	 * latch it saw.
+	 */
+	private static class PageRead {
+		final BTreePageId pid;
+		final StampedLock latch;
+		final long stamp;
+
+		PageRead(BTreePageId pid, StampedLock latch, long stamp) {
+			this.pid = pid;
+			this.latch = latch;
+			this.stamp = stamp;
+		}
+
+		/** Return true if no transaction has started or finished writing the page since */
+		boolean isValid() {
+			return Database.getBufferPool().validate(pid, latch, stamp);
+		}
+	}
+	
+	/**
+	 * Read a value out of a page without locking it, if possible. The page is read
+	 * under an optimistic read of its latch, which is appended to path so that the read
+	 * can be validated again later. Of a page another transaction is writing, the last committed contents are
+	 * read, from the image of them the buffer pool shares between readers; the latch
+	 * version changes when that transaction completes. Pages the transaction has already
+	 * locked or dirtied are locked with READ_ONLY permission and read as usual.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the page to read
+	 * @param read - extracts the value from the page
+	 * @param path - the optimistic reads of pages so far, or null
+	 * @return the value
+	 */
+	private <T> T readUnlocked(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			Function<Page, T> read, ArrayList<PageRead> path)
+					throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		if(dirtypages.containsKey(pid) || bp.isSnapshot(tid) || bp.holdsLock(tid, pid)) {
+			return read.apply(getPage(tid, dirtypages, pid, Permissions.READ_ONLY));
+		}
+		while(true) {
+			StampedLock latch = bp.getLatch(pid);
+			long stamp = latch.tryOptimisticRead();
+			if(stamp == 0) {
+				Thread.yield();
+				continue;
+			}
+			Page page = bp.isWriteLockedByOther(tid, pid) ? bp.getCommittedImage(pid) : bp.peekPage(pid);
+			T value = null;
+			RuntimeException error = null;
+			try {
+				value = read.apply(page);
+			} catch(RuntimeException e) {
+				// the page may have been torn by a concurrent writer
+				error = e;
+			}
+			PageRead pr = new PageRead(pid, latch, stamp);
+			if(pr.isValid()) {
+				if(error != null)
+					throw error;
+				if(path != null)
+					path.add(pr);
+				return value;
+			}
+		}
+	}
+	
+	/**
+	 * Return true if no transaction has started or finished writing any of the pages in
+	 * path since they were read.
+	 */
+	private boolean validate(ArrayList<PageRead> path) {
+		for(PageRead pr : path) {
+			if(!pr.isValid())
+				return false;
+		}
+		return true;
 	}
 
 	/**
@@ -297,6 +488,8 @@ public class BTreeFile implements DbFile {
 		parentPage.insertEntry(newEntry);
 		page.setParentId(parentPage.getId());
 		newLeafPage.setParentId(parentPage.getId());
+		newLeafPage.setHighKey(page.getHighKey());
+		page.setHighKey(newEntry.getKey());
 		newLeafPage.setLeftSiblingId(page.getId());
 		if(page.getRightSiblingId() != null)
 		{
@@ -307,9 +500,7 @@ public class BTreeFile implements DbFile {
 		}
 		page.setRightSiblingId(newLeafPage.getId());
 		
-		IndexPredicate fieldIP = new IndexPredicate(Op.LESS_THAN_OR_EQ, field);
-		IndexPredicate entryIP = new IndexPredicate(Op.LESS_THAN_OR_EQ, newEntry.getKey());
-		if(fieldIP.equals(entryIP))
+		if(field.compare(Op.LESS_THAN_OR_EQ, newEntry.getKey()))
 		{
 			return page;
 		}
@@ -366,9 +557,7 @@ public class BTreeFile implements DbFile {
 		updateParentPointers(tid, dirtypages, parentPage);
 		updateParentPointers(tid, dirtypages, newInternalPage);
 		
-		IndexPredicate fieldIP = new IndexPredicate(Op.LESS_THAN_OR_EQ, field);
-		IndexPredicate entryIP = new IndexPredicate(Op.LESS_THAN_OR_EQ, newEntry.getKey());
-		if(fieldIP.equals(entryIP))
+		if(field.compare(Op.LESS_THAN_OR_EQ, newEntry.getKey()))
 		{
 			return page;
 		}
@@ -441,7 +630,12 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child) 
 			throws DbException, IOException, TransactionAbortedException {
 
-		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+		// the caller holds the parent for writing, so no other transaction can move the
+		// child away from it, and the parent pointer can be checked without a lock
+		BTreePage p = (BTreePage) dirtypages.get(child);
+		if(p == null) {
+			p = (BTreePage) Database.getBufferPool().peekPage(child);
+		}
 
 		if(!p.getParentId().equals(pid)) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
@@ -525,20 +719,20 @@ public class BTreeFile implements DbFile {
 		
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 		//((BTreePage)getPage(tid, dirtypages, getRootPtrPage(tid, dirtypages).getRootId(), null)).print(tid, dirtypages, getRootPtrPage(tid, dirtypages).getRootId().pageNumber());
-		
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		initFile();
+
+		// find and lock the left-most leaf page corresponding to the key field
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+		if(leafPage == null) {
+			// the root has just been created, so set the root pointer to point to it
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			if(rootPtr.getRootId() == null) {
+				rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+			}
+			leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// split the leaf page if there are no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -689,6 +883,7 @@ public class BTreeFile implements DbFile {
 		else
 			entry.setKey(it.next().getField(keyField));
 		parent.updateEntry(entry);
+		(isRightSibling ? page : sibling).setHighKey(entry.getKey());
 	}
 
 	/**
@@ -883,6 +1078,7 @@ public class BTreeFile implements DbFile {
 		}
 		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 		
+		leftPage.setHighKey(rightPage.getHighKey());
 		leftPage.setRightSiblingId(rightPage.getRightSiblingId());
 		if(rightPage.getRightSiblingId() != null)
 		{
@@ -1035,6 +1231,18 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		initFile();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and root page if the file is empty.
+	 * 
+	 * @throws IOException
+	 */
+	private void initFile() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -1047,9 +1255,6 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -1066,9 +1271,10 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
+		// read the root pointer page, without holding a lock on it, to locate the first header page
+		initFile();
+		BTreePageId headerId = readUnlocked(tid, dirtypages, BTreeRootPtrPage.getId(tableid),
+				page -> ((BTreeRootPtrPage)page).getHeaderId(), null);
 		int emptyPageNo = 0;
 
 		if(headerId != null) {
@@ -1286,11 +1492,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		if(curp != null)
+			it = curp.iterator();
 	}
 
 	/**
@@ -1371,17 +1575,21 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
-		it = curp.iterator();
+		if(curp == null)
+			return;
+		// skip the smaller keys of the first page by binary search
+		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ)
+			it = curp.iterator(ipred.getField());
+		else
+			it = curp.iterator();
 	}
 
 	/**
@@ -1418,6 +1626,16 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			if(nextp == null) {
 				return null;
 			}
+			// the pages to the right hold no keys less than the high key of this page,
+			// so don't lock them if none of their tuples can match
+			Field high = curp.getHighKey();
+			if(high != null && ipred.getOp() == Op.LESS_THAN && high.compare(Op.GREATER_THAN_OR_EQ, ipred.getField())) {
+				return null;
+			}
+			if(high != null && (ipred.getOp() == Op.LESS_THAN_OR_EQ || ipred.getOp() == Op.EQUALS)
+					&& high.compare(Op.GREATER_THAN, ipred.getField())) {
+				return null;
+			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
@@ -224,8 +224,8 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + keyType.getLen(); 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
@@ -260,6 +260,7 @@ public class BTreeFileEncoder {
 				BTreePageId leafPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
 				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyField);
 				leafPage.setLeftSiblingId(leftSiblingId);
+				leafPage.setHighKey(page2.get(0).getField(keyField));
 				bf.writePage(leafPage);
 				leftSiblingId = leafPid;
 
@@ -304,6 +305,7 @@ public class BTreeFileEncoder {
 			BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
 			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyField);
 			secondToLastPage.setLeftSiblingId(leftSiblingId);
+			secondToLastPage.setHighKey(lastPg.get(0).getField(keyField));
 			bf.writePage(secondToLastPage);
 
 			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyField);
@@ -510,8 +512,8 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + typeAr[keyField].getLen(); 
 		int nrecords = (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		//  per record, we need one bit; there are nrecords per page, so we need
@@ -537,6 +539,7 @@ public class BTreeFileEncoder {
 		dos.writeInt(0); // parent pointer
 		dos.writeInt(0); // left sibling pointer
 		dos.writeInt(0); // right sibling pointer
+		dos.write(new byte[typeAr[keyField].getLen()]); // high key, set with the right sibling
 
 		int i = 0;
 		byte headerbyte = 0;
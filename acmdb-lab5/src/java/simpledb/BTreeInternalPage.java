@@ -559,6 +559,56 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Return the slot of the first entry whose key is greater than or equal to f, or the
+	 * number of slots if there is none. The keys are in sorted order across the used
+	 * slots, so this is a binary search which skips the empty slots it probes.
+	 * @param f - the key to search for
+	 */
+	int lowerBound(Field f) {
+		int lo = 1;
+		int hi = numSlots;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int m = mid;
+			while(m < hi && !isSlotUsed(m))
+				m++;
+			if(m == hi || keys[m].compare(Op.GREATER_THAN_OR_EQ, f))
+				hi = mid;
+			else
+				lo = m + 1;
+		}
+		while(lo < numSlots && !isSlotUsed(lo))
+			lo++;
+		return lo;
+	}
+
+	/**
+	 * Find the child to follow when searching for the left-most leaf page possibly
+	 * containing the key f: the left child of the first entry with a key greater than
+	 * or equal to f, or the right-most child if there is no such entry.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child, or null if the page is empty
+	 */
+	public BTreePageId findChild(Field f) {
+		int slot;
+		if(f == null) {
+			slot = 0;
+		}
+		else {
+			slot = lowerBound(f);
+			if(slot < numSlots)
+				slot--;
+			else
+				slot = numSlots - 1;
+		}
+		while(slot >= 0 && !isSlotUsed(slot))
+			slot--;
+		if(slot < 0)
+			return null;
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
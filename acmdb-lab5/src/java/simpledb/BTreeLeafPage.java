@@ -18,6 +18,7 @@ public class BTreeLeafPage extends BTreePage {
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
+	private Field highKey; // upper bound of the keys on this page, unless there is no right sibling
 
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
@@ -44,7 +45,9 @@ public class BTreeLeafPage extends BTreePage {
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
 	 * the slots of the page that are in use, and some number of tuple slots, 
-	 * as well as some extra bytes for the parent and sibling pointers.
+	 * as well as some extra bytes for the parent and sibling pointers and the
+	 * high key of the page. Only pages with a right sibling have a high key, so
+	 * the key bytes of the right-most leaf page are left empty.
 	 *  Specifically, the number of tuples is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
 	 * <p> where tuple size is the size of tuples in this
@@ -88,6 +91,13 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// Read the high key
+		try {
+			this.highKey = td.getFieldType(keyField).parse(dis);
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -111,8 +121,8 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public int getMaxTuples() {        
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8; 
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer, high key
+		int extraBits = (3 * INDEX_SIZE + td.getFieldType(keyField).getLen()) * 8; 
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
@@ -223,6 +233,18 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// write out the high key
+		try {
+			if(highKey == null) {
+				dos.write(new byte[td.getFieldType(keyField).getLen()]);
+			}
+			else {
+				highKey.serialize(dos);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
 			try {
@@ -262,7 +284,8 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE
+				+ td.getFieldType(keyField).getLen()); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -323,16 +346,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int lessOrEqKey = upperBound(t.getField(keyField)) - 1;
+		while (lessOrEqKey >= 0 && !isSlotUsed(lessOrEqKey))
+			lessOrEqKey--;
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -434,6 +450,31 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Get the high key of this page, the upper bound of the keys this page may hold.
+	 * It is the key of the parent entry on the right of this page, so a search for a
+	 * greater key which arrives here must move on to the right sibling.
+	 * @return the high key, or null if this is the right-most leaf page
+	 */
+	public Field getHighKey() {
+		if(rightSibling == 0) {
+			return null;
+		}
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page
+	 * @param key - the new high key, or null if this is the right-most leaf page
+	 * @throws DbException if the key is of the wrong type
+	 */
+	public void setHighKey(Field key) throws DbException {
+		if(key != null && key.getType() != td.getFieldType(keyField)) {
+			throw new DbException("type mismatch in setHighKey");
+		}
+		highKey = key;
+	}
+
 	/**
 	 * Returns the number of tuples currently stored on this page
 	 */
@@ -475,6 +516,47 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Return the slot of the first tuple whose key is greater than or equal to f, or the
+	 * number of slots if there is none.
+	 * @param f - the key to search for
+	 */
+	int lowerBound(Field f) {
+		return search(Predicate.Op.GREATER_THAN_OR_EQ, f);
+	}
+
+	/**
+	 * Return the slot of the first tuple whose key is greater than f, or the number of
+	 * slots if there is none.
+	 * @param f - the key to search for
+	 */
+	int upperBound(Field f) {
+		return search(Predicate.Op.GREATER_THAN, f);
+	}
+
+	/**
+	 * Binary search for the first used slot whose key satisfies "key op f", where op is
+	 * GREATER_THAN or GREATER_THAN_OR_EQ. The keys are in sorted order across the used
+	 * slots, so the empty slots a probe hits are skipped.
+	 */
+	private int search(Predicate.Op op, Field f) {
+		int lo = 0;
+		int hi = numSlots;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int m = mid;
+			while (m < hi && !isSlotUsed(m))
+				m++;
+			if (m == hi || tuples[m].getField(keyField).compare(op, f))
+				hi = mid;
+			else
+				lo = m + 1;
+		}
+		while (lo < numSlots && !isSlotUsed(lo))
+			lo++;
+		return lo;
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -483,6 +565,15 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page whose key is greater than or equal
+	 * to f, found by binary search (calling remove on this iterator throws an
+	 * UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		return new BTreeLeafPageIterator(this, lowerBound(f));
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -534,6 +625,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
+		this.p = p;
+		this.curTuple = firstSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -0,0 +1,19 @@
+package simpledb;
+
+/**
+ * BatchIterator is implemented by iterators that can also return their
+ * tuples a batch at a time, see {@link TupleBatch}. After open() or rewind(),
+ * a caller reads an iterator either with next() or with nextBatch(), but does
+ * not mix the two.
+ */
+public interface BatchIterator {
+
+    /**
+     * Returns the next batch of tuples. A batch stays valid until the next
+     * call, and holds at least one selected row.
+     *
+     * @return the next batch, or null if there are no more tuples
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+/**
+ * BloomFilter is a compact set of fields which may report a field as present
+ * that was never added, but never misses one that was. HashEquiJoin builds
+ * one over the join keys of its build side and hands it to the scans of its
+ * probe side, which then drop the tuples that cannot join before they are
+ * passed up the plan.
+ * <p>
+ * Fields are identified by their hashCode(), so two fields that are equal
+ * must have the same hash code.
+ */
+public class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 7;
+
+    private final long[] bits;
+    private final int mask;
+
+    /**
+     * Create an empty filter sized for the given number of keys, with a
+     * false positive rate of about 1%.
+     */
+    public BloomFilter(int expectedKeys) {
+        long want = Math.max(64L, (long) expectedKeys * BITS_PER_KEY);
+        int numBits = Integer.highestOneBit((int) Math.min(want, 1 << 30));
+        if (numBits < want && numBits < (1 << 30))
+            numBits <<= 1;
+        bits = new long[numBits / 64];
+        mask = numBits - 1;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Add the key with the given hash code. */
+    public void add(int hash) {
+        int h1 = mix(hash);
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /** Add the given field. */
+    public void add(Field f) {
+        add(f.hashCode());
+    }
+
+    /** @return false if no key with the given hash code was added */
+    public boolean mightContain(int hash) {
+        int h1 = mix(hash);
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return false if the given field was not added */
+    public boolean mightContain(Field f) {
+        return mightContain(f.hashCode());
+    }
+
+    /**
+     * Hand a filter on the given field of the tuples of an operator down to
+     * the scans below it, through operators that pass their child's tuples
+     * on unchanged or combine them with others. Operators which read their
+     * children when opened, such as aggregates, are not passed through.
+     *
+     * @param it the operator whose tuples the filter applies to
+     * @param field the index of the field of its tuples to filter on
+     * @param filter the filter
+     * @return true if the filter reached some scan
+     */
+    public static boolean pushDown(DbIterator it, int field, BloomFilter filter) {
+        if (it instanceof SeqScan) {
+            ((SeqScan) it).setRuntimeFilter(field, filter);
+            return true;
+        }
+        if (it instanceof Filter) {
+            return pushDown(((Filter) it).getChildren()[0], field, filter);
+        }
+        if (it instanceof Project) {
+            Project p = (Project) it;
+            return pushDown(p.getChildren()[0], p.getChildField(field), filter);
+        }
+        if (it instanceof Join || it instanceof HashEquiJoin) {
+            // inner joins only output tuples built from tuples of their
+            // children with the same field values
+            DbIterator[] children = ((Operator) it).getChildren();
+            int width = children[0].getTupleDesc().numFields();
+            if (field < width)
+                return pushDown(children[0], field, filter);
+            return pushDown(children[1], field - width, filter);
+        }
+        if (it instanceof HashSemiJoin) {
+            // semi-joins and anti-joins return tuples of their left child
+            return pushDown(((Operator) it).getChildren()[0], field, filter);
+        }
+        if (it instanceof IndexNestedLoopJoin) {
+            // the inner side is read through the index, not by its scan
+            DbIterator[] children = ((Operator) it).getChildren();
+            int width = children[0].getTupleDesc().numFields();
+            return field < width && pushDown(children[0], field, filter);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Broadcast is an exchange that returns every tuple of its inputs to each of
+ * several consumers, e.g. the smaller side of a join to each of the joins of
+ * the partitions of the other side. The consumers are created together by
+ * {@link #create}, share the threads running the inputs, and must be read
+ * concurrently, like the consumers of a {@link Repartition}.
+ */
+public class Broadcast extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Shuffle shuffle;
+    private final int part;
+    private final TupleDesc td;
+    private transient boolean opened = false;
+
+    private Broadcast(Shuffle shuffle, int part, TupleDesc td) {
+        this.shuffle = shuffle;
+        this.part = part;
+        this.td = td;
+    }
+
+    /**
+     * Create the consumers of a broadcast.
+     *
+     * @param inputs
+     *            the iterators whose tuples are sent to every consumer; they
+     *            must return tuples of the same TupleDesc
+     * @param consumers
+     *            the number of consumers
+     */
+    public static Broadcast[] create(DbIterator[] inputs, final int consumers) {
+        final TupleDesc td = inputs[0].getTupleDesc();
+        final List<Integer> all = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++)
+            all.add(i);
+        Producers producers = new Producers(inputs, consumers) {
+            void route(TupleBatch batch) {
+                // each consumer gets a view of its own, since a filter
+                // narrows the selection of the batch it reads
+                for (int p = 0; p < consumers; p++)
+                    send(p, batch.project(all, td));
+            }
+        };
+        Shuffle shuffle = new Shuffle(producers);
+        Broadcast[] result = new Broadcast[consumers];
+        for (int i = 0; i < consumers; i++)
+            result[i] = new Broadcast(shuffle, i, td);
+        return result;
+    }
+
+    public String getName() {
+        return "broadcast";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (!opened)
+            shuffle.open(part);
+        opened = true;
+        super.open();
+    }
+
+    protected TupleBatch take() throws DbException, TransactionAbortedException {
+        return shuffle.producers.take(part);
+    }
+
+    /**
+     * A broadcast cannot be rewound, since its inputs are shared with the
+     * other consumers.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        throw new DbException("cannot rewind a broadcast");
+    }
+
+    public void close() {
+        super.close();
+        if (opened)
+            shuffle.close(part);
+        opened = false;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return shuffle.producers.getInputs();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        shuffle.producers.setInputs(children);
+    }
+}
@@ -7,6 +7,9 @@ import java.io.*;
 
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
 
 
 /**
@@ -17,33 +20,45 @@ import java.util.*;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Apart from these transactional locks, every cached page has a latch (see
+ * getLatch()) that protects its bytes while they are read or modified, and is
+ * held only for that short time.
  *
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
 	
-	public static final int SHARED = 1;
-	public static final int EXCLUSIVE = 2;
-	private static final int WAIT_TIME = 50;
-	private static final int ABORT_BASE_TIME = 200;
-	private static final int ABORT_VAR_TIME = 200;	// abort time in [Base, Base + Var] millisecond
+	public static final int SHARED = LockManager.SHARED;
+	public static final int EXCLUSIVE = LockManager.EXCLUSIVE;
 	
-	private class PageLock
+	/**
+	 * Undo information of a row changed by a transaction that has not completed yet:
+	 * the tuple that was in the slot before, or null if the slot was empty.
+	 */
+	private class RowUndo
 	{
 		public TransactionId tid;
-		public PageId pid;
-		public int type;
+		public int slot;
+		public Tuple before;
 		
-		PageLock(TransactionId transactionId, PageId pageId, int t)
+		RowUndo(TransactionId transactionId, int s, Tuple t)
 		{
 			tid = transactionId;
-			pid = pageId;
-			type = t;
+			slot = s;
+			before = t;
 		}
+	}
+	
+	private class PageVersion
+	{
+		public Page image;
+		public long endTs;	// the image is visible to snapshots taken before endTs
 		
-		public String toString()
+		PageVersion(Page p, long ts)
 		{
-			return "(" + tid + " " + pid.pageNumber() + " " + ((type == EXCLUSIVE) ? "EXCLUSIVE" : "SHARED") + ")";
+			image = p;
+			endTs = ts;
 		}
 	}
 	
@@ -56,42 +71,45 @@ public class BufferPool {
 	 other classes. BufferPool should use the numPages argument to the
 	 constructor instead. */
 	public static final int DEFAULT_PAGES = 50;
-	private static int time = 0;
+	private static AtomicInteger time = new AtomicInteger();
 	
 	private static int maxPages = DEFAULT_PAGES;
 	private static Map<PageId, Page> idToPage;
 	private static Map<PageId, Integer> idToTime;
+	private static Map<PageId, StampedLock> idToLatch;
+	
+	private static LockManager lockManager;
 	
-	private static Map<TransactionId, ArrayList<PageLock>> tidToLock;
-	private static Map<PageId, ArrayList<PageLock>> pidToExclusive;
-	private static Map<PageId, ArrayList<PageLock>> pidToShared;
+	/** Number of pages of one table a transaction may read-lock before its locks are
+	 escalated to a single SHARED lock on the table. */
+	private static final int ESCALATION_THRESHOLD = 256;
 	
-	private static Random rand = new Random();
+	private static int escalationThreshold = ESCALATION_THRESHOLD;
+	
+	/*
+	 * Heap pages are locked per row: writers hold INTENTION_EXCLUSIVE locks on the page and
+	 * EXCLUSIVE locks on the RecordIds they change, so several transactions may have pending
+	 * changes on the same page. pidToUndo keeps those changes in the order they were made, so
+	 * that an abort can undo just its own rows and a commit can write the page without the
+	 * rows of the others. It is guarded by its own monitor, taken inside the page latch.
+	 */
+	private static Map<PageId, ArrayList<RowUndo>> pidToUndo;
+	
+	/*
+	 * Multi-version state for read-only (snapshot) transactions. A snapshot transaction
+	 * never takes page locks; it reads the committed image of a page as of its snapshot.
+	 * idToCommitted caches the latest committed image of a page, and idToVersions keeps
+	 * the older images that are still visible to some running snapshot, oldest first.
+	 */
+	private static long commitTs = 0;
+	private static Map<TransactionId, Long> tidToSnapshot;
+	private static Map<PageId, Page> idToCommitted;
+	private static Map<PageId, LinkedList<PageVersion>> idToVersions;
 	
 	private static final int LRU_POLICY = 1;
 	private static final int RANDOM_POLICY = 2;	// may not support multi-threads
 	private static final int EVICT_POLICY = LRU_POLICY;
 	
-	/**
-	 * Prints all the locks of a page. Just for debugging.
-	 * @param pp
-	 */
-	public synchronized void printPidLock(PageId pp)
-	{
-		System.err.println("PID: " + pp.pageNumber() + "\nExclusive:");
-		ArrayList<PageLock> pll = pidToExclusive.get(pp);
-		for(PageLock plll : pll)
-		{
-			System.err.println(plll.toString());
-		}
-		System.err.println("Shared:");
-		pll = pidToShared.get(pp);
-		for(PageLock plll : pll)
-		{
-			System.err.println(plll.toString());
-		}
-	}
-	
 	/**
 	 * Creates a BufferPool that caches up to numPages pages.
 	 *
@@ -100,11 +118,14 @@ public class BufferPool {
 	public BufferPool(int numPages) {
 		// some code goes here
 		maxPages = numPages;
-		idToPage = new HashMap<>();
-		idToTime = new HashMap<>();
-		tidToLock = new HashMap<>();
-		pidToExclusive = new HashMap<>();
-		pidToShared = new HashMap<>();
+		idToPage = new ConcurrentHashMap<>();
+		idToTime = new ConcurrentHashMap<>();
+		idToLatch = new ConcurrentHashMap<>();
+		lockManager = new LockManager();
+		pidToUndo = new HashMap<>();
+		tidToSnapshot = new HashMap<>();
+		idToCommitted = new HashMap<>();
+		idToVersions = new HashMap<>();
 	}
 	
 	public static int getPageSize() {
@@ -121,6 +142,16 @@ public class BufferPool {
 		BufferPool.pageSize = PAGE_SIZE;
 	}
 	
+	// THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+	public static void setEscalationThreshold(int escalationThreshold) {
+		BufferPool.escalationThreshold = escalationThreshold;
+	}
+	
+	// THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+	public static void resetEscalationThreshold() {
+		BufferPool.escalationThreshold = ESCALATION_THRESHOLD;
+	}
+	
 	/**
 	 * Retrieve the specified page with the associated permissions.
 	 * Will acquire a lock and may block if that lock is held by another
@@ -136,95 +167,487 @@ public class BufferPool {
 	 * @param pid the ID of the requested page
 	 * @param perm the requested permissions on the page
 	 */
-	public synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm)
+	public Page getPage(TransactionId tid, PageId pid, Permissions perm)
 			throws TransactionAbortedException, DbException
 	{
 		// some code goes here
-		PageLock pageLock;
-		if(!pidToExclusive.containsKey(pid))
-			pidToExclusive.put(pid, new ArrayList<>());
-		if(!pidToShared.containsKey(pid))
-			pidToShared.put(pid, new ArrayList<>());
-		if(!tidToLock.containsKey(tid))
-			tidToLock.put(tid, new ArrayList<>());
-		long stTime = System.currentTimeMillis();
+		if(isSnapshot(tid))
+		{
+			if(perm == Permissions.READ_WRITE)
+				throw new DbException("Read-only transaction " + tid.getId() + " cannot write pages.");
+			return getSnapshotPage(tid, pid);
+		}
+		// wait for the lock outside the monitor, so that other transactions can go on
+		lockPage(tid, pid, perm == Permissions.READ_ONLY ? SHARED : EXCLUSIVE);
+		Page page = fetchPage(pid);
+		if(perm == Permissions.READ_WRITE)
+		{
+			// invalidate the optimistic reads of the page made before it was locked
+			bumpLatch(pid);
+		}
+		return page;
+	}
+	
+	/** Invalidate the optimistic reads of the latch of a page */
+	private void bumpLatch(PageId pid)
+	{
+		StampedLock latch = getLatch(pid);
+		latch.unlockWrite(latch.writeLock());
+	}
+	
+	/**
+	 * Retrieve the specified page without locking it. This is only for readers that
+	 * validate what they read against the latch of the page: they take an optimistic
+	 * read of the latch (see getLatch()) and check isWriteLockedByOther() before reading,
+	 * and validate the stamp afterwards. getPage() with READ_WRITE permission invalidates
+	 * such reads, and so does the completion of a transaction that held an exclusive lock
+	 * on the page, so a successful validation means that no transaction has started or
+	 * finished writing the page since. While another transaction holds an exclusive lock,
+	 * getCommittedImage() returns the last committed contents of the page.
+	 *
+	 * @param pid the ID of the requested page
+	 */
+	public Page peekPage(PageId pid) throws DbException
+	{
+		return fetchPage(pid);
+	}
+	
+	/** Return true if a transaction other than tid holds a lock to write the specified page */
+	public boolean isWriteLockedByOther(TransactionId tid, PageId pid)
+	{
+		return lockManager.conflicts(tid, pid, SHARED);
+	}
+	
+	/**
+	 * Retrieve the specified heap page to change some of its rows. Takes an
+	 * INTENTION_EXCLUSIVE lock on the page, so that transactions updating different rows
+	 * of the page do not block each other, while a transaction reading or writing the
+	 * whole page still waits for them.
+	 * <p>
+	 * The caller must lock every row it changes with lockTuple() or tryLockTuple(), make
+	 * the change while holding the write latch of the page (see getLatch()), and
+	 * report it with recordRowUndo() before releasing the latch.
+	 *
+	 * @param tid the ID of the transaction requesting the page
+	 * @param pid the ID of the requested page
+	 */
+	public Page getPageForUpdate(TransactionId tid, PageId pid)
+			throws TransactionAbortedException, DbException
+	{
+		if(isSnapshot(tid))
+			throw new DbException("Read-only transaction " + tid.getId() + " cannot write pages.");
+		lockPage(tid, pid, LockManager.INTENTION_EXCLUSIVE);
+		return fetchPage(pid);
+	}
+	
+	/**
+	 * Lock a single tuple, taking the matching intention locks on its table and page
+	 * first. A read needs no tuple lock if tid already reads the whole page or table.
+	 * May block if the lock is held by another transaction.
+	 *
+	 * @param tid the ID of the transaction requesting the lock
+	 * @param rid the ID of the tuple to lock
+	 * @param perm the requested permissions on the tuple
+	 */
+	public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+			throws TransactionAbortedException, DbException
+	{
+		if(isSnapshot(tid))
+		{
+			if(perm == Permissions.READ_WRITE)
+				throw new DbException("Read-only transaction " + tid.getId() + " cannot write tuples.");
+			return;
+		}
+		PageId pid = rid.getPageId();
 		if(perm == Permissions.READ_ONLY)
 		{
-			while(!pidToExclusive.get(pid).isEmpty())
+			if(coversRead(lockManager.getMode(tid, LockManager.tableKey(pid.getTableId()))))
+				return;
+			lockPage(tid, pid, LockManager.INTENTION_SHARED);
+			if(!coversRead(lockManager.getMode(tid, pid)))
+				lockManager.acquire(tid, rid, SHARED);
+		}
+		else
+		{
+			lockPage(tid, pid, LockManager.INTENTION_EXCLUSIVE);
+			lockManager.acquire(tid, rid, EXCLUSIVE);
+		}
+	}
+	
+	/**
+	 * Locks a page under the table/page hierarchy: takes the matching intention lock on
+	 * its table first. Reads need no page lock when tid already holds a table lock covering
+	 * them, and once tid has read-locked too many pages of a table, its page locks are
+	 * escalated to a table lock, so that large scans keep a bounded number of locks.
+	 */
+	private void lockPage(TransactionId tid, PageId pid, int mode) throws TransactionAbortedException
+	{
+		Object table = LockManager.tableKey(pid.getTableId());
+		boolean read = (mode == SHARED || mode == LockManager.INTENTION_SHARED);
+		if(read && coversRead(lockManager.getMode(tid, table)))
+			return;
+		lockManager.acquire(tid, table, read ? LockManager.INTENTION_SHARED : LockManager.INTENTION_EXCLUSIVE);
+		lockManager.acquire(tid, pid, mode);
+		if(mode == SHARED && lockManager.numPageLocks(tid, pid.getTableId()) > escalationThreshold)
+			escalate(tid, pid.getTableId());
+	}
+	
+	/**
+	 * Replaces the locks tid holds for reading pages of a table by a SHARED lock on the
+	 * table. Pages tid updates per row keep their INTENTION_EXCLUSIVE locks, and pages it
+	 * holds EXCLUSIVE stay locked too, as those locks tell which pages tid has written.
+	 * Gives up without waiting if another transaction is writing the table; it is then
+	 * tried again with the next page tid reads.
+	 */
+	private void escalate(TransactionId tid, int tableId)
+	{
+		if(!lockManager.tryAcquire(tid, LockManager.tableKey(tableId), SHARED))
+			return;
+		for(Object obj : lockManager.getLocks(tid))
+		{
+			if(!(obj instanceof PageId) || ((PageId)obj).getTableId() != tableId)
+				continue;
+			int mode = lockManager.getMode(tid, obj);
+			if(mode == SHARED || mode == LockManager.INTENTION_SHARED)
+				lockManager.release(tid, obj);
+			else if(mode == LockManager.SHARED_INTENTION_EXCLUSIVE)
+				lockManager.downgrade(tid, obj, LockManager.INTENTION_EXCLUSIVE);
+		}
+	}
+	
+	/** Return true if a lock in the given mode allows reading everything beneath it. */
+	private static boolean coversRead(int mode)
+	{
+		return mode == SHARED || mode == EXCLUSIVE || mode == LockManager.SHARED_INTENTION_EXCLUSIVE;
+	}
+	
+	/**
+	 * Lock a single tuple if that is possible without waiting. The caller must already
+	 * hold the intention lock on its page, e.g. from getPageForUpdate(). Never blocks,
+	 * so it may be called while holding a page latch.
+	 *
+	 * @return true if the lock was granted
+	 */
+	public boolean tryLockTuple(TransactionId tid, RecordId rid, Permissions perm)
+	{
+		return lockManager.tryAcquire(tid, rid, perm == Permissions.READ_ONLY ? SHARED : EXCLUSIVE);
+	}
+	
+	/**
+	 * Remember a row change of tid so that it can be undone. Must be called under the
+	 * latch of the page, right after the change.
+	 *
+	 * @param tid the transaction that changed the row
+	 * @param rid the ID of the changed row
+	 * @param before the tuple that was in the slot before, or null if the slot was empty
+	 */
+	public void recordRowUndo(TransactionId tid, RecordId rid, Tuple before)
+	{
+		synchronized(pidToUndo)
+		{
+			ArrayList<RowUndo> undo = pidToUndo.get(rid.getPageId());
+			if(undo == null)
 			{
-				long edTime = System.currentTimeMillis();
-				if(pidToExclusive.get(pid).get(0).tid == tid)
-					break;
-				if(edTime - stTime > ABORT_BASE_TIME + rand.nextInt(ABORT_VAR_TIME))
+				undo = new ArrayList<>();
+				pidToUndo.put(rid.getPageId(), undo);
+			}
+			undo.add(new RowUndo(tid, rid.tupleno(), before));
+		}
+	}
+	
+	/**
+	 * Returns the latch of the cached page with the given id. A latch protects the bytes
+	 * of the page while they are read or modified, and should be held just for that:
+	 * unlike the locks taken by getPage(), latches know nothing about transactions, are
+	 * not released by transactionComplete(), and are never waited for by the deadlock
+	 * timeout. Take the write latch to modify a page that other transactions may access
+	 * at the same time (e.g. one locked for row updates), and a read latch or an
+	 * optimistic read to look at such a page. A latched page is never evicted. The latch
+	 * is dropped when its page leaves the cache, and a new one is made when the page is
+	 * latched again, so optimistic reads are validated with validate().
+	 *
+	 * @param pid the ID of the page
+	 */
+	public StampedLock getLatch(PageId pid)
+	{
+		return idToLatch.computeIfAbsent(pid, k -> new StampedLock());
+	}
+	
+	/**
+	 * Returns true if an optimistic read of a page is still valid: the latch it was made
+	 * under has not been write-locked since the stamp was taken, and is still the latch of
+	 * the page, i.e. it has not been dropped with the page and replaced by a new one.
+	 *
+	 * @param pid the ID of the page
+	 * @param latch the latch the page was read under
+	 * @param stamp the stamp of the optimistic read
+	 */
+	public boolean validate(PageId pid, StampedLock latch, long stamp)
+	{
+		return latch.validate(stamp) && idToLatch.get(pid) == latch;
+	}
+	
+	/**
+	 * Looks up a page in the cache, reading it from disk (and evicting another page if
+	 * needed) when it is not there. The caller must already hold a lock on the page.
+	 * A cache hit does not take the monitor, so readers of hot pages do not serialize.
+	 */
+	private Page fetchPage(PageId pid) throws DbException
+	{
+		Page rtn = idToPage.get(pid);
+		if(rtn != null)
+		{
+			idToTime.put(pid, time.getAndIncrement());
+			return rtn;
+		}
+		return loadPage(pid);
+	}
+	
+	/** Reads a page that is not cached into the buffer pool. */
+	private synchronized Page loadPage(PageId pid) throws DbException
+	{
+		if(idToPage.containsKey(pid))
+		{
+			idToTime.put(pid, time.getAndIncrement());
+			return idToPage.get(pid);
+		}
+		else
+		{
+			if(idToPage.size() >= maxPages)
+			{
+				evictPage();
+			}
+			Page rtn = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+			idToPage.put(pid, rtn);
+			idToTime.put(pid, time.getAndIncrement());
+			return rtn;
+		}
+	}
+	
+	/**
+	 * Register tid as a read-only transaction running on a snapshot of the database
+	 * as of the last committed transaction. Its later calls to getPage() take no locks,
+	 * so it never blocks or is blocked by writers, and it sees the committed
+	 * version of each page as of this call.
+	 *
+	 * @param tid the ID of the read-only transaction
+	 */
+	public synchronized void beginSnapshot(TransactionId tid)
+	{
+		tidToSnapshot.put(tid, commitTs);
+	}
+	
+	/** Return true if tid is a read-only transaction started by beginSnapshot() */
+	public synchronized boolean isSnapshot(TransactionId tid)
+	{
+		return tidToSnapshot.containsKey(tid);
+	}
+	
+	/**
+	 * Returns the version of a page visible to a snapshot transaction. The returned page
+	 * is a private image that writers never modify, so it must not be modified either.
+	 */
+	private synchronized Page getSnapshotPage(TransactionId tid, PageId pid)
+	{
+		long snapshot = tidToSnapshot.get(tid);
+		if(idToVersions.containsKey(pid))
+		{
+			for(PageVersion pv : idToVersions.get(pid))
+			{
+				if(pv.endTs > snapshot)
+					return pv.image;
+			}
+		}
+		return getCommittedImage(pid);
+	}
+	
+	/**
+	 * Returns the last committed version of a page, e.g. of one another transaction is
+	 * writing. The image is built once and shared until a transaction that wrote the page
+	 * completes, so it must not be modified.
+	 *
+	 * @param pid the ID of the page
+	 */
+	public synchronized Page getCommittedImage(PageId pid)
+	{
+		Page committed = idToCommitted.get(pid);
+		if(committed == null)
+		{
+			// the before image of a cached page is its last committed version
+			if(idToPage.containsKey(pid))
+				committed = idToPage.get(pid).getBeforeImage();
+			else
+				committed = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+			idToCommitted.put(pid, committed);
+		}
+		return committed;
+	}
+	
+	/**
+	 * Called when tid commits. Keeps the previous committed image of every page tid has
+	 * written around for the snapshots that are still running, and makes the current
+	 * content of those pages their new committed version.
+	 */
+	private synchronized void publishVersions(TransactionId tid) throws IOException
+	{
+		long ts = ++commitTs;
+		for(PageId pid : writtenPages(tid))
+		{
+			Page prev = idToCommitted.remove(pid);
+			Page page = idToPage.get(pid);
+			if(!tidToSnapshot.isEmpty())
+			{
+				if(prev == null && page != null)
+					prev = page.getBeforeImage();
+				if(prev != null)
 				{
-					//System.err.println(tid + " aborted");
-					throw new TransactionAbortedException();
+					if(!idToVersions.containsKey(pid))
+						idToVersions.put(pid, new LinkedList<>());
+					idToVersions.get(pid).add(new PageVersion(prev, ts));
 				}
-				try
-				{
-					wait(WAIT_TIME);
-				} catch(InterruptedException e) {}
 			}
-			pageLock = new PageLock(tid, pid, SHARED);
-			if(!pidToShared.containsKey(pid))
-				pidToShared.put(pid, new ArrayList<>());
-			pidToShared.get(pid).add(pageLock);
+			if(page != null)
+			{
+				if(lockManager.getMode(tid, pid) == EXCLUSIVE)
+					page.setBeforeImage();
+				else
+					((HeapPage)page).setBeforeImage(committedImage(tid, (HeapPage)page).getPageData());
+			}
+			dropRowUndo(tid, pid);
 		}
-		else
+	}
+	
+	/**
+	 * Returns the pages tid may have changed: those it holds an EXCLUSIVE lock on, and
+	 * those it holds an intention lock on for updating single rows.
+	 */
+	private List<PageId> writtenPages(TransactionId tid)
+	{
+		ArrayList<PageId> rtn = new ArrayList<>();
+		for(Object obj : lockManager.getLocks(tid))
+		{
+			if(!(obj instanceof PageId))
+				continue;
+			int mode = lockManager.getMode(tid, obj);
+			if(mode == EXCLUSIVE || mode == LockManager.INTENTION_EXCLUSIVE
+					|| mode == LockManager.SHARED_INTENTION_EXCLUSIVE)
+				rtn.add((PageId)obj);
+		}
+		return rtn;
+	}
+	
+	/**
+	 * Builds the image of a page updated per row that holds the committed rows and those
+	 * written by tid, i.e. a copy of the page with the pending row changes of all other
+	 * transactions undone. Also fixes the dirty flag of the page: it stays dirty as long
+	 * as some other transaction has pending changes on it.
+	 */
+	private HeapPage committedImage(TransactionId tid, HeapPage page) throws IOException
+	{
+		StampedLock latch = getLatch(page.getId());
+		long stamp = latch.writeLock();
+		try
 		{
-			while(!pidToExclusive.get(pid).isEmpty() || !pidToShared.get(pid).isEmpty())
+			HeapPage image = new HeapPage(page.getId(), page.getPageData());
+			TransactionId pending = null;
+			synchronized(pidToUndo)
 			{
-				long edTime = System.currentTimeMillis();
-				if(pidToExclusive.get(pid).isEmpty())
+				ArrayList<RowUndo> undo = pidToUndo.get(page.getId());
+				if(undo != null)
 				{
-					Iterator<PageLock> it = pidToShared.get(pid).iterator();
-					boolean single = true;
-					while(it.hasNext())
+					for(int i = undo.size() - 1; i >= 0; i--)
 					{
-						PageLock pl = it.next();
-						if(pl.tid != tid)
+						RowUndo ru = undo.get(i);
+						if(!ru.tid.equals(tid))
 						{
-							single = false;
-							break;
+							image.restoreSlot(ru.slot, ru.before);
+							pending = ru.tid;
 						}
 					}
-					if(single)
-						break;
 				}
-				else if(pidToExclusive.get(pid).get(0).tid == tid)
-					break;
-				if(edTime - stTime > ABORT_BASE_TIME + rand.nextInt(ABORT_VAR_TIME))
-				{
-					//System.err.println(tid + " aborted");
-					throw new TransactionAbortedException();
-				}
-				try
-				{
-					wait(WAIT_TIME);
-				} catch(InterruptedException e) {}
 			}
-			pageLock = new PageLock(tid, pid, EXCLUSIVE);
-			if(!pidToExclusive.containsKey(pid))
-				pidToExclusive.put(pid, new ArrayList<>());
-			pidToExclusive.get(pid).add(pageLock);
+			page.markDirty(pending != null, pending);
+			return image;
 		}
-		tidToLock.get(tid).add(pageLock);
-		
-		if(idToPage.containsKey(pid))
+		finally
 		{
-			idToTime.put(pid, time++);
-			return idToPage.get(pid);
+			latch.unlockWrite(stamp);
 		}
-		else
+	}
+	
+	/**
+	 * Undoes the row changes tid made to a page, leaving those of other transactions alone.
+	 */
+	private void rollbackRows(TransactionId tid, HeapPage page)
+	{
+		StampedLock latch = getLatch(page.getId());
+		long stamp = latch.writeLock();
+		try
 		{
-			if(idToPage.size() >= maxPages)
+			TransactionId pending = null;
+			synchronized(pidToUndo)
 			{
-				evictPage();
+				ArrayList<RowUndo> undo = pidToUndo.get(page.getId());
+				if(undo == null)
+					return;
+				for(int i = undo.size() - 1; i >= 0; i--)
+				{
+					RowUndo ru = undo.get(i);
+					if(ru.tid.equals(tid))
+					{
+						page.restoreSlot(ru.slot, ru.before);
+						undo.remove(i);
+					}
+					else
+						pending = ru.tid;
+				}
+				if(undo.isEmpty())
+					pidToUndo.remove(page.getId());
 			}
-			Page rtn = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-			idToPage.put(pid, rtn);
-			idToTime.put(pid, time++);
-			return rtn;
+			page.markDirty(pending != null, pending);
+		}
+		finally
+		{
+			latch.unlockWrite(stamp);
+		}
+	}
+	
+	/** Forgets the undo information of tid for a page. */
+	private void dropRowUndo(TransactionId tid, PageId pid)
+	{
+		synchronized(pidToUndo)
+		{
+			ArrayList<RowUndo> undo = pidToUndo.get(pid);
+			if(undo == null)
+				return;
+			undo.removeIf(ru -> ru.tid.equals(tid));
+			if(undo.isEmpty())
+				pidToUndo.remove(pid);
+		}
+	}
+	
+	/**
+	 * Called when a snapshot transaction finishes. Drops the page versions that no
+	 * running snapshot can see any more.
+	 */
+	private synchronized void endSnapshot(TransactionId tid)
+	{
+		tidToSnapshot.remove(tid);
+		if(tidToSnapshot.isEmpty())
+		{
+			idToVersions.clear();
+			idToCommitted.clear();
+			return;
+		}
+		long oldest = Collections.min(tidToSnapshot.values());
+		Iterator<Map.Entry<PageId, LinkedList<PageVersion>>> it = idToVersions.entrySet().iterator();
+		while(it.hasNext())
+		{
+			LinkedList<PageVersion> versions = it.next().getValue();
+			while(!versions.isEmpty() && versions.getFirst().endTs <= oldest)
+				versions.removeFirst();
+			if(versions.isEmpty())
+				it.remove();
 		}
 	}
 	
@@ -240,7 +663,7 @@ public class BufferPool {
 		PageId pid = page.getId();
 		if(idToPage.containsKey(pid))
 		{
-			idToTime.put(pid, time++);
+			idToTime.put(pid, time.getAndIncrement());
 			idToPage.replace(pid, page);
 		}
 		else
@@ -250,7 +673,7 @@ public class BufferPool {
 				evictPage();
 			}
 			idToPage.put(pid, page);
-			idToTime.put(pid, time++);
+			idToTime.put(pid, time.getAndIncrement());
 		}
 	}
 	
@@ -259,44 +682,40 @@ public class BufferPool {
 	 * Calling this is very risky, and may result in wrong behavior. Think hard
 	 * about who needs to call this and why, and why they can run the risk of
 	 * calling it.
+	 * <p>
+	 * An intention lock covering row changes of tid on the page is kept until tid
+	 * completes; one taken on a page tid did not change, e.g. a full page an insert
+	 * looked at, is released.
 	 *
 	 * @param tid the ID of the transaction requesting the unlock
 	 * @param pid the ID of the page to unlock
 	 */
-	public synchronized void releasePage(TransactionId tid, PageId pid) {
+	public void releasePage(TransactionId tid, PageId pid) {
 		// some code goes here
 		// not necessary for lab1|lab2
-		if(tidToLock.containsKey(tid))
-		{
-			Iterator<PageLock> it = tidToLock.get(tid).iterator();
-			while(it.hasNext())
-			{
-				PageLock pl = it.next();
-				if(pl.pid == pid)
-					it.remove();
-			}
-		}
-		if(pidToExclusive.containsKey(pid))
-		{
-			Iterator<PageLock> it = pidToExclusive.get(pid).iterator();
-			while(it.hasNext())
-			{
-				PageLock pl = it.next();
-				if(pl.tid == tid)
-					it.remove();
-			}
-		}
-		if(pidToShared.containsKey(pid))
+		int mode = lockManager.getMode(tid, pid);
+		boolean changed = hasRowUndo(tid, pid);
+		if(changed && mode == LockManager.SHARED_INTENTION_EXCLUSIVE)
+			lockManager.downgrade(tid, pid, LockManager.INTENTION_EXCLUSIVE);
+		else if(!changed || mode != LockManager.INTENTION_EXCLUSIVE)
+			lockManager.release(tid, pid);
+	}
+	
+	/** Return true if tid has changed rows of the page which it may still undo */
+	private boolean hasRowUndo(TransactionId tid, PageId pid)
+	{
+		synchronized(pidToUndo)
 		{
-			Iterator<PageLock> it = pidToShared.get(pid).iterator();
-			while(it.hasNext())
+			ArrayList<RowUndo> undo = pidToUndo.get(pid);
+			if(undo == null)
+				return false;
+			for(RowUndo ru : undo)
 			{
-				PageLock pl = it.next();
-				if(pl.tid == tid)
-					it.remove();
+				if(ru.tid.equals(tid))
+					return true;
 			}
+			return false;
 		}
-		notifyAll();
 	}
 	
 	/**
@@ -310,20 +729,17 @@ public class BufferPool {
 		transactionComplete(tid, true);
 	}
 	
-	/** Return true if the specified transaction has a lock on the specified page */
-	public synchronized boolean holdsLock(TransactionId tid, PageId p) {
+	/** Return true if the specified transaction has a lock on the specified page, or on its whole table */
+	public boolean holdsLock(TransactionId tid, PageId p) {
 		// some code goes here
 		// not necessary for lab1|lab2
-		Iterator<PageLock> it = tidToLock.get(tid).iterator();
-		while(it.hasNext())
-		{
-			PageLock pl = it.next();
-			if(pl.pid == p)
-			{
-				return true;
-			}
-		}
-		return false;
+		return lockManager.holdsLock(tid, p)
+				|| coversRead(lockManager.getMode(tid, LockManager.tableKey(p.getTableId())));
+	}
+	
+	/** Return true if the specified transaction has a lock on the specified tuple */
+	public boolean holdsLock(TransactionId tid, RecordId rid) {
+		return lockManager.holdsLock(tid, rid);
 	}
 	
 	/**
@@ -337,67 +753,46 @@ public class BufferPool {
 			throws IOException {
 		// some code goes here
 		// not necessary for lab1|lab2
+		if(tidToSnapshot.containsKey(tid))
+		{
+			endSnapshot(tid);
+			return;
+		}
 		if(commit)
 		{
 			flushPages(tid);
+			publishVersions(tid);
 		}
 		else
 		{
 			/*
 			 * If a transaction is aborted, some pages may have been modified yet not marked dirty.
-			 * So discard all the pages with exclusive lock.
+			 * So discard all the pages with exclusive lock, and undo the rows it changed in the
+			 * pages it updated per row.
 			 */
-			if(tidToLock.containsKey(tid))
+			for(PageId pid : writtenPages(tid))
 			{
-				Iterator<PageLock> it = tidToLock.get(tid).iterator();
-				while(it.hasNext())
-				{
-					PageLock pl = it.next();
-					if(pl.type == EXCLUSIVE)
-					{
-						discardPage(pl.pid);
-					}
-				}
-				
+				if(lockManager.getMode(tid, pid) == EXCLUSIVE)
+					discardPage(pid);
+				else if(idToPage.containsKey(pid))
+					rollbackRows(tid, (HeapPage)idToPage.get(pid));
+				dropRowUndo(tid, pid);
 			}
 		}
-		if(!tidToLock.containsKey(tid))
+		// readers which went by the committed images of these pages must look again
+		for(PageId pid : writtenPages(tid))
 		{
-			notifyAll();
-			return;
+			if(lockManager.getMode(tid, pid) == EXCLUSIVE)
+				bumpLatch(pid);
 		}
-		ArrayList<PageLock> pageLocks = tidToLock.get(tid);
-		for(PageLock pl : pageLocks)
-		{
-			PageId pageId = pl.pid;
-			Iterator<PageLock> it = pidToExclusive.get(pageId).iterator();
-			while(it.hasNext())
-			{
-				PageLock pageLock = it.next();
-				if(pageLock.tid == tid)
-				{
-					it.remove();
-				}
-			}
-			it = pidToShared.get(pageId).iterator();
-			while(it.hasNext())
-			{
-				PageLock pageLock = it.next();
-				if(pageLock.tid == tid)
-				{
-					it.remove();
-				}
-			}
-		}
-		pageLocks.clear();
-		tidToLock.remove(tid);
-		notifyAll();
+		lockManager.releaseAll(tid);
 	}
 	
 	/**
 	 * Add a tuple to the specified table on behalf of transaction tid.  Will
 	 * acquire a write lock on the page the tuple is added to and any other
 	 * pages that are updated (Lock acquisition is not needed for lab2).
+	 * Heap files lock just the new tuple and take an intention lock on its page.
 	 * May block if the lock(s) cannot be acquired.
 	 *
 	 * Marks any pages that were dirtied by the operation as dirty by calling
@@ -430,7 +825,8 @@ public class BufferPool {
 	/**
 	 * Remove the specified tuple from the buffer pool.
 	 * Will acquire a write lock on the page the tuple is removed from and any
-	 * other pages that are updated. May block if the lock(s) cannot be acquired.
+	 * other pages that are updated. Heap files lock just the deleted tuple and
+	 * take an intention lock on its page. May block if the lock(s) cannot be acquired.
 	 *
 	 * Marks any pages that were dirtied by the operation as dirty by calling
 	 * their markDirty bit, and adds versions of any pages that have
@@ -488,6 +884,10 @@ public class BufferPool {
 			idToPage.remove(pid);
 			idToPage.remove(pid);
 		}
+		idToCommitted.remove(pid);
+		// a latch someone holds stays, so that it keeps excluding the others
+		idToLatch.computeIfPresent(pid,
+				(k, latch) -> latch.isReadLocked() || latch.isWriteLocked() ? latch : null);
 	}
 	
 	/**
@@ -516,14 +916,19 @@ public class BufferPool {
 	public synchronized  void flushPages(TransactionId tid) throws IOException {
 		// some code goes here
 		// not necessary for lab1|lab2
-		if(!tidToLock.containsKey(tid))
-			return;
-		ArrayList<PageLock> pageLocks = tidToLock.get(tid);
-		for(PageLock pl : pageLocks)
+		for(PageId pid : writtenPages(tid))
 		{
-			if(pl.type == EXCLUSIVE && idToPage.containsKey(pl.pid))
+			if(!idToPage.containsKey(pid) || idToPage.get(pid).isDirty() == null)
+				continue;
+			if(lockManager.getMode(tid, pid) == EXCLUSIVE)
+			{
+				flushPage(pid);
+			}
+			else
 			{
-				flushPage(pl.pid);
+				// the rows of transactions still running must not reach the disk
+				HeapPage image = committedImage(tid, (HeapPage)idToPage.get(pid));
+				Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
 			}
 		}
 	}
@@ -542,7 +947,10 @@ public class BufferPool {
 				boolean success = false;
 				for(Map.Entry<PageId, Integer> entry : idToTime.entrySet())
 				{
-					if(entry.getValue() < minTime && idToPage.get(entry.getKey()).isDirty() == null)
+					Page page = idToPage.get(entry.getKey());
+					if(page == null || isLatched(entry.getKey()))
+						continue;
+					if(entry.getValue() < minTime && page.isDirty() == null)
 					{
 						success = true;
 						rtn = entry.getKey();
@@ -562,6 +970,13 @@ public class BufferPool {
 		return null;
 	}
 	
+	/** Return true if some thread holds the latch of the given page */
+	private boolean isLatched(PageId pid)
+	{
+		StampedLock latch = idToLatch.get(pid);
+		return latch != null && (latch.isReadLocked() || latch.isWriteLocked());
+	}
+	
 	/**
 	 * Discards a page from the buffer pool.
 	 * Flushes the page to disk to ensure dirty pages are updated on disk.
@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CompiledPlan runs a pipeline of a plan compiled by
+ * {@link PipelineCompiler}: it reads the table of the scan of the pipeline
+ * and hands its tuples to the generated class, which returns the tuples of
+ * the pipeline, or aggregates them into the single result tuple of an
+ * aggregate without grouping.
+ * <p>
+ * The operators of the pipeline are kept as the child of this operator, for
+ * cardinality estimates and query plans; they are not run.
+ */
+public class CompiledPlan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator plan;
+    private final SeqScan scan;
+    // the generated class, as one of the two kinds
+    private final PipelineCompiler.Pipeline pipeline;
+    private final PipelineCompiler.AggregatePipeline aggregate;
+    // the aggregates computed, or null if the pipeline returns its tuples
+    private final Aggregator.Op[] ops;
+    private final TupleDesc td;
+    private transient DbFileIterator in = null;
+    private boolean done = false;
+
+    /**
+     * Constructor for a pipeline returning its tuples.
+     *
+     * @param plan
+     *            the pipeline compiled
+     * @param scan
+     *            the scan at the bottom of the pipeline
+     * @param pipeline
+     *            the instance of the class generated for it
+     */
+    CompiledPlan(DbIterator plan, SeqScan scan, PipelineCompiler.Pipeline pipeline) {
+        this.plan = plan;
+        this.scan = scan;
+        this.pipeline = pipeline;
+        this.aggregate = null;
+        this.ops = null;
+        this.td = plan.getTupleDesc();
+    }
+
+    /**
+     * Constructor for a pipeline ending in an aggregate without grouping.
+     *
+     * @param plan
+     *            the pipeline compiled, with the aggregate
+     * @param scan
+     *            the scan at the bottom of the pipeline
+     * @param aggregate
+     *            the instance of the class generated for it
+     * @param ops
+     *            the aggregates of the pipeline
+     */
+    CompiledPlan(DbIterator plan, SeqScan scan, PipelineCompiler.AggregatePipeline aggregate,
+            Aggregator.Op[] ops) {
+        this.plan = plan;
+        this.scan = scan;
+        this.pipeline = null;
+        this.aggregate = aggregate;
+        this.ops = ops.clone();
+        this.td = plan.getTupleDesc();
+    }
+
+    /** @return the name of this operator shown in query plans */
+    public String getName() {
+        return ops == null ? "compiled" : "compiled agg";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        in = scan.fileIterator();
+        in.open();
+        done = false;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (in != null)
+            in.close();
+        in = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        in.rewind();
+        done = false;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (ops != null) {
+            if (done)
+                return null;
+            done = true;
+            int[] acc = GroupAggregator.newAccumulators(ops);
+            aggregate.aggregate(in, acc);
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < ops.length; i++)
+                t.setField(i, new IntField(GroupAggregator.resultValue(ops[i], acc[2 * i], acc[2 * i + 1])));
+            return t;
+        }
+        while (in.hasNext()) {
+            Tuple t = pipeline.apply(in.next());
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next batch of the tuples of the pipeline, filled by the
+     * generated class.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (ops != null)
+            return super.nextBatch();
+        if (!hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(td);
+        // the tuple fetched by hasNext() comes first
+        batch.add(next());
+        pipeline.fill(in, batch);
+        return batch;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { plan };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        plan = children[0];
+    }
+}
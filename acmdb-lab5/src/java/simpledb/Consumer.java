@@ -0,0 +1,56 @@
+package simpledb;
+
+/**
+ * Consumer is the base class of the exchanges a plan reads from: it returns
+ * the batches its producers put on its queue, a tuple or a batch at a time.
+ * Subclasses start and stop the producers when they are opened and closed.
+ */
+public abstract class Consumer extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient TupleBatch current = null;
+    private transient int pos = 0;
+    private transient boolean done = false;
+
+    /**
+     * @return the next batch from the producers, or null after the last one
+     */
+    protected abstract TupleBatch take() throws DbException, TransactionAbortedException;
+
+    public void open() throws DbException, TransactionAbortedException {
+        reset();
+        super.open();
+    }
+
+    /** Forget the batch being read, e.g. when the producers restart. */
+    protected void reset() {
+        current = null;
+        pos = 0;
+        done = false;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (current == null || pos == current.size()) {
+            if (done)
+                return null;
+            current = take();
+            pos = 0;
+            if (current == null)
+                done = true;
+        }
+        return current.getTuple(current.row(pos++));
+    }
+
+    /**
+     * Returns the next batch of the producers as it is, without copying it.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (done)
+            return null;
+        TupleBatch batch = take();
+        if (batch == null)
+            done = true;
+        return batch;
+    }
+}
@@ -0,0 +1,248 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exchange is the base class of the operators that run parts of a plan on
+ * other threads, Volcano-style. The inputs of an exchange are run by
+ * producer tasks on a shared thread pool; each producer reads its input a
+ * batch at a time and puts the batches on bounded queues, from which the
+ * exchange operators above, the consumers, return them on the thread of
+ * their parent. A full queue blocks its producers until the consumer catches
+ * up.
+ * <p>
+ * {@link Gather} returns the batches of all its inputs in one stream.
+ * {@link Repartition} and {@link Broadcast} hand the batches of their inputs
+ * to several consumers, split by the hash of a field or copied to each.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of threads the planner runs a parallel part of a plan with. */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Number of pages of a HeapFile below which the planner scans it on one thread. */
+    public static final int MIN_PARALLEL_PAGES = 64;
+
+    /** Number of batches a queue holds before its producers wait. */
+    static final int QUEUE_BATCHES = 4;
+
+    private static int threads = DEFAULT_THREADS;
+
+    private static final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "exchange");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // put on a queue after the last batch
+    private static final TupleBatch END = new TupleBatch(new TupleDesc(new Type[] { Type.INT_TYPE }), 0);
+
+    /** @return the number of threads the planner parallelizes plans with */
+    public static int getThreads() {
+        return threads;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setThreads(int threads) {
+        Exchange.threads = threads;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetThreads() {
+        Exchange.threads = DEFAULT_THREADS;
+    }
+
+    /** Run a task on the thread pool of the exchanges. */
+    static <T> Future<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /** @return the name of this exchange shown in query plans */
+    public abstract String getName();
+
+    /**
+     * Rethrow the exception a task failed with from the thread waiting for
+     * it.
+     */
+    static void rethrow(Throwable cause) throws DbException, TransactionAbortedException {
+        if (cause instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) cause;
+        if (cause instanceof DbException)
+            throw (DbException) cause;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        throw new DbException("error in parallel plan: " + cause);
+    }
+
+    /**
+     * Producers runs each input of an exchange on the thread pool and routes
+     * its batches to the queues of the consumers. Once all inputs are done, or
+     * one of them failed, every queue gets an end marker; the consumers
+     * rethrow the failure, if any.
+     */
+    static abstract class Producers {
+
+        private DbIterator[] inputs;
+        private final ArrayList<BlockingQueue<TupleBatch>> queues = new ArrayList<BlockingQueue<TupleBatch>>();
+        // the consumers which stopped reading, whose batches are dropped
+        private final Set<Integer> closed = ConcurrentHashMap.newKeySet();
+        private final ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        private volatile boolean stopped = true;
+
+        Producers(DbIterator[] inputs, int consumers) {
+            this.inputs = inputs.clone();
+            for (int i = 0; i < consumers; i++)
+                queues.add(new ArrayBlockingQueue<TupleBatch>(QUEUE_BATCHES + 1));
+        }
+
+        DbIterator[] getInputs() {
+            return inputs.clone();
+        }
+
+        void setInputs(DbIterator[] inputs) {
+            this.inputs = inputs.clone();
+        }
+
+        int consumers() {
+            return queues.size();
+        }
+
+        /**
+         * Hand a batch of an input to the consumers with send(). Called by
+         * the producer threads.
+         */
+        abstract void route(TupleBatch batch);
+
+        /** Start running the inputs. */
+        void start() {
+            stopped = false;
+            error.set(null);
+            closed.clear();
+            for (BlockingQueue<TupleBatch> q : queues)
+                q.clear();
+            running.set(inputs.length);
+            if (inputs.length == 0)
+                finish();
+            for (final DbIterator in : inputs)
+                tasks.add(submit(() -> {
+                    produce(in);
+                    return null;
+                }));
+        }
+
+        private void produce(DbIterator in) {
+            try {
+                in.open();
+                try {
+                    TupleBatch batch;
+                    while (!stopped && error.get() == null && (batch = TupleBatch.next(in)) != null)
+                        route(batch);
+                } finally {
+                    in.close();
+                }
+            } catch (Throwable t) {
+                error.compareAndSet(null, t);
+            } finally {
+                if (running.decrementAndGet() == 0)
+                    finish();
+            }
+        }
+
+        private void finish() {
+            for (int i = 0; i < queues.size(); i++)
+                send(i, END);
+        }
+
+        /**
+         * Put a batch on the queue of a consumer, waiting while it is full,
+         * unless the consumer stopped reading or the producers are stopped.
+         */
+        void send(int consumer, TupleBatch batch) {
+            BlockingQueue<TupleBatch> q = queues.get(consumer);
+            try {
+                while (!q.offer(batch, 10, TimeUnit.MILLISECONDS))
+                    if (stopped || closed.contains(consumer))
+                        return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return the next batch for a consumer, or null after the last one
+         */
+        TupleBatch take(int consumer) throws DbException, TransactionAbortedException {
+            TupleBatch batch;
+            try {
+                batch = queues.get(consumer).take();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for tuples");
+            }
+            if (batch != END)
+                return batch;
+            // leave the marker for later calls
+            queues.get(consumer).offer(END);
+            if (error.get() != null)
+                rethrow(error.get());
+            return null;
+        }
+
+        /** Drop the batches of a consumer which stopped reading. */
+        void close(int consumer) {
+            closed.add(consumer);
+            queues.get(consumer).clear();
+        }
+
+        /** Stop the inputs and wait for their tasks to finish. */
+        void stop() {
+            stopped = true;
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // produce() records its errors itself
+                }
+            }
+            tasks.clear();
+            for (BlockingQueue<TupleBatch> q : queues)
+                q.clear();
+        }
+    }
+
+    /**
+     * Shuffle is the state shared by the consumers of a Repartition or a
+     * Broadcast: the producers start when the first consumer opens and stop
+     * when the last one closes.
+     */
+    static class Shuffle {
+
+        final Producers producers;
+        private int open = 0;
+
+        Shuffle(Producers producers) {
+            this.producers = producers;
+        }
+
+        synchronized void open(int consumer) {
+            if (open++ == 0)
+                producers.start();
+        }
+
+        synchronized void close(int consumer) {
+            producers.close(consumer);
+            if (--open == 0)
+                producers.stop();
+        }
+    }
+}
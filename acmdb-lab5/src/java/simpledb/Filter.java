@@ -76,6 +76,21 @@ public class Filter extends Operator {
 		return null;
 	}
 	
+	/**
+	 * Returns the next batch of the child with the rows that pass the
+	 * predicate selected, skipping batches of which none pass.
+	 */
+	public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+		TupleBatch batch;
+		while((batch = TupleBatch.next(childIt)) != null)
+		{
+			predicate.filter(batch);
+			if(batch.size() > 0)
+				return batch;
+		}
+		return null;
+	}
+	
 	@Override
 	public DbIterator[] getChildren() {
 		// some code goes here
@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Gather is an exchange that runs each of its children on a thread of its
+ * own and returns the tuples of all of them, in no particular order, e.g. a
+ * scan of a table split into ranges of pages ({@link SeqScan#split(int)}).
+ */
+public class Gather extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator[] children;
+    private transient Producers producers = null;
+
+    /**
+     * Constructor.
+     *
+     * @param children
+     *            the iterators to run in parallel; they must return tuples of
+     *            the same TupleDesc
+     */
+    public Gather(DbIterator[] children) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("need at least one child");
+        this.children = children.clone();
+    }
+
+    /**
+     * Return a plan scanning the table of a scan, below any filters over it,
+     * with the given number of threads: a Gather of copies of the filters
+     * over scans of ranges of the table. Return the plan itself if it is not
+     * such a scan, or if the table is smaller than
+     * {@link Exchange#MIN_PARALLEL_PAGES} pages.
+     */
+    public static DbIterator parallelScan(DbIterator plan, int threads) {
+        ArrayList<Predicate> filters = new ArrayList<Predicate>();
+        DbIterator it = plan;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        if (threads <= 1 || !(it instanceof SeqScan))
+            return plan;
+        SeqScan scan = (SeqScan) it;
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (scan.isRange() || !(file instanceof HeapFile)
+                || ((HeapFile) file).numPages() < MIN_PARALLEL_PAGES)
+            return plan;
+        SeqScan[] ranges = scan.split(threads);
+        DbIterator[] parts = new DbIterator[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            parts[i] = ranges[i];
+            for (int j = filters.size() - 1; j >= 0; j--)
+                parts[i] = new Filter(filters.get(j), parts[i]);
+        }
+        return new Gather(parts);
+    }
+
+    public String getName() {
+        return "gather";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return children[0].getTupleDesc();
+    }
+
+    private Producers producers() {
+        return new Producers(children, 1) {
+            void route(TupleBatch batch) {
+                send(0, batch);
+            }
+        };
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        producers = producers();
+        producers.start();
+        super.open();
+    }
+
+    protected TupleBatch take() throws DbException, TransactionAbortedException {
+        return producers.take(0);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        producers.stop();
+        producers.start();
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        if (producers != null)
+            producers.stop();
+        producers = null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children.clone();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.children = children.clone();
+    }
+}
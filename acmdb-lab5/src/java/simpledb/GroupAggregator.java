@@ -0,0 +1,423 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Knows how to compute several aggregates at once over tuples grouped by any
+ * number of fields. Each group keeps one array of primitive accumulators, a
+ * value and a count per aggregate, so all aggregates of a query are computed
+ * in a single pass over its input.
+ * <p>
+ * Aggregates over INT fields support every operator; aggregates over STRING
+ * fields only support COUNT. Groups beyond the memory budget are spilled to
+ * disk, see {@link AggregateSpill}, as partial results: the group-by fields
+ * followed by the value and count of each aggregate. The partial results of
+ * other aggregators, such as those of the workers of a parallel Aggregate,
+ * are combined the same way by {@link #merge(GroupAggregator)}.
+ */
+public class GroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gbFields;
+    private final Type[] gbFieldTypes;
+    private final int[] aFields;
+    private final Type[] aFieldTypes;
+    private final Op[] ops;
+    private final int memory;
+    private final int maxGroups;
+    private final TupleDesc td;
+    private final TupleDesc spillTd;
+    // true if the input tuples are partial results, with the value and count
+    // of aggregate i at aFields[i] and aFields[i] + 1
+    private final boolean partialInput;
+
+    // groups are keyed by their field if there is one group-by field, and by
+    // a list of their fields otherwise
+    private final Map<Object, int[]> groups = new HashMap<Object, int[]>();
+    private int[] noGrouping = null;
+    // input of the groups that did not fit in memory
+    private final AggregateSpill spill;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple; empty
+     *            if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple, one
+     *            per aggregate
+     * @param afieldtypes
+     *            the types of the aggregate fields
+     * @param what
+     *            the aggregation operator of each aggregate
+     * @param memory
+     *            the number of bytes of groups to keep in memory
+     * @throws IllegalArgumentException
+     *             if an aggregate over a STRING field is not a COUNT
+     */
+    public GroupAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] what, int memory) {
+        this(gbfields, gbfieldtypes, afields, afieldtypes, what, memory, 0, false);
+    }
+
+    private GroupAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] what, int memory, int level, boolean partialInput) {
+        if (gbfields.length != gbfieldtypes.length || afields.length != afieldtypes.length
+                || afields.length != what.length)
+            throw new IllegalArgumentException("need one type per field and one operator per aggregate");
+        for (int i = 0; i < afields.length; i++) {
+            if (afieldtypes[i] == Type.STRING_TYPE && what[i] != Op.COUNT)
+                throw new IllegalArgumentException("String fields do not support operators other than COUNT.");
+        }
+        this.gbFields = gbfields.clone();
+        this.gbFieldTypes = gbfieldtypes.clone();
+        this.aFields = afields.clone();
+        this.aFieldTypes = afieldtypes.clone();
+        this.ops = what.clone();
+        this.memory = memory;
+        this.partialInput = partialInput;
+        int keyLen = 0;
+        for (Type t : gbfieldtypes)
+            keyLen += t.getLen();
+        maxGroups = Math.max(1, memory / (keyLen + 8 * afields.length + AggregateSpill.GROUP_OVERHEAD));
+        spill = new AggregateSpill(level);
+
+        Type[] types = new Type[gbfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < gbfields.length; i++) {
+            types[i] = gbfieldtypes[i];
+            names[i] = gbfields.length == 1 ? "groupVal" : "groupVal" + i;
+        }
+        for (int i = 0; i < afields.length; i++) {
+            types[gbfields.length + i] = Type.INT_TYPE;
+            names[gbfields.length + i] = afields.length == 1 ? "aggregateVal" : "aggregateVal" + i;
+        }
+        td = new TupleDesc(types, names);
+        Type[] spillTypes = new Type[gbfields.length + 2 * afields.length];
+        System.arraycopy(gbfieldtypes, 0, spillTypes, 0, gbfields.length);
+        for (int i = gbfields.length; i < spillTypes.length; i++)
+            spillTypes[i] = Type.INT_TYPE;
+        spillTd = new TupleDesc(spillTypes);
+        if (gbfields.length == 0)
+            noGrouping = newGroup();
+    }
+
+    /** @return the group-by fields of a single group-by field, or none */
+    static int[] groupFields(int gbfield) {
+        return gbfield == NO_GROUPING ? new int[0] : new int[] { gbfield };
+    }
+
+    /** @return the type of a single group-by field, or none */
+    static Type[] groupTypes(int gbfield, Type gbfieldtype) {
+        return gbfield == NO_GROUPING ? new Type[0] : new Type[] { gbfieldtype };
+    }
+
+    private int[] newGroup() {
+        return newAccumulators(ops);
+    }
+
+    /**
+     * @return the value and count of each of the given aggregates over no
+     *         tuples
+     */
+    static int[] newAccumulators(Op[] ops) {
+        int[] acc = new int[2 * ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.MIN)
+                acc[2 * i] = Integer.MAX_VALUE;
+            else if (ops[i] == Op.MAX)
+                acc[2 * i] = Integer.MIN_VALUE;
+        }
+        return acc;
+    }
+
+    private Object key(Tuple tup) {
+        if (gbFields.length == 1)
+            return tup.getField(gbFields[0]);
+        Field[] key = new Field[gbFields.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = tup.getField(gbFields[i]);
+        return Arrays.asList(key);
+    }
+
+    private Field keyField(Object key, int i) {
+        if (gbFields.length == 1)
+            return (Field) key;
+        return (Field) ((List<?>) key).get(i);
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group, creating the group
+     * if the group values have not been seen yet.
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        if (partialInput) {
+            int[] state = new int[2 * ops.length];
+            for (int i = 0; i < ops.length; i++) {
+                state[2 * i] = ((IntField) tup.getField(aFields[i])).getValue();
+                state[2 * i + 1] = ((IntField) tup.getField(aFields[i] + 1)).getValue();
+            }
+            mergeGroup(gbFields.length == 0 ? null : key(tup), state);
+            return;
+        }
+        int[] acc;
+        if (gbFields.length == 0) {
+            acc = noGrouping;
+        } else {
+            Object key = key(tup);
+            acc = groups.get(key);
+            if (acc == null) {
+                if (groups.size() >= maxGroups && spill.canSpill()) {
+                    int[] state = newGroup();
+                    accumulate(state, tup);
+                    spill.add(key.hashCode(), partial(key, state));
+                    return;
+                }
+                acc = newGroup();
+                groups.put(key, acc);
+            }
+        }
+        accumulate(acc, tup);
+    }
+
+    /**
+     * Drop all groups, so the aggregator can be used again for other input.
+     * Iterators over the groups must be closed first.
+     */
+    void clear() {
+        groups.clear();
+        if (gbFields.length == 0)
+            noGrouping = newGroup();
+    }
+
+    /** Add the aggregate fields of a tuple to the accumulators of its group. */
+    private void accumulate(int[] acc, Tuple tup) {
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.COUNT)
+                acc[2 * i + 1]++;
+            else
+                add(acc, i, ((IntField) tup.getField(aFields[i])).getValue());
+        }
+    }
+
+    /** Add a value to the accumulators of aggregate i. */
+    private void add(int[] acc, int i, int v) {
+        acc[2 * i + 1]++;
+        switch (ops[i]) {
+        case MIN:
+            if (v < acc[2 * i])
+                acc[2 * i] = v;
+            break;
+        case MAX:
+            if (v > acc[2 * i])
+                acc[2 * i] = v;
+            break;
+        default:
+            acc[2 * i] += v;
+        }
+    }
+
+    /**
+     * Merge the selected rows of a batch into the aggregates of their groups,
+     * like mergeTupleIntoGroup. Without grouping, each aggregate runs over
+     * the vector of its column.
+     *
+     * @param batch
+     *            the batch containing the aggregate and group-by fields
+     */
+    public void mergeBatch(TupleBatch batch) {
+        int n = batch.size();
+        if (partialInput) {
+            for (int k = 0; k < n; k++)
+                mergeTupleIntoGroup(batch.getTuple(batch.row(k)));
+            return;
+        }
+        if (gbFields.length == 0) {
+            for (int i = 0; i < ops.length; i++) {
+                if (ops[i] == Op.COUNT) {
+                    noGrouping[2 * i + 1] += n;
+                    continue;
+                }
+                int[] v = batch.getInts(aFields[i]);
+                for (int k = 0; k < n; k++)
+                    add(noGrouping, i, v[batch.row(k)]);
+            }
+            return;
+        }
+        for (int k = 0; k < n; k++) {
+            int row = batch.row(k);
+            Object key;
+            if (gbFields.length == 1) {
+                key = batch.getField(gbFields[0], row);
+            } else {
+                Field[] fields = new Field[gbFields.length];
+                for (int i = 0; i < fields.length; i++)
+                    fields[i] = batch.getField(gbFields[i], row);
+                key = Arrays.asList(fields);
+            }
+            int[] acc = groups.get(key);
+            if (acc == null) {
+                acc = newGroup();
+                if (groups.size() >= maxGroups && spill.canSpill()) {
+                    accumulate(acc, batch, row);
+                    spill.add(key.hashCode(), partial(key, acc));
+                    continue;
+                }
+                groups.put(key, acc);
+            }
+            accumulate(acc, batch, row);
+        }
+    }
+
+    /** Add the aggregate fields of a row of a batch to the accumulators of its group. */
+    private void accumulate(int[] acc, TupleBatch batch, int row) {
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.COUNT)
+                acc[2 * i + 1]++;
+            else
+                add(acc, i, batch.getInt(aFields[i], row));
+        }
+    }
+
+    /** Combine the accumulators of a group with other ones of the same group. */
+    private void combine(int[] acc, int[] other) {
+        for (int i = 0; i < ops.length; i++) {
+            acc[2 * i + 1] += other[2 * i + 1];
+            switch (ops[i]) {
+            case MIN:
+                acc[2 * i] = Math.min(acc[2 * i], other[2 * i]);
+                break;
+            case MAX:
+                acc[2 * i] = Math.max(acc[2 * i], other[2 * i]);
+                break;
+            default:
+                acc[2 * i] += other[2 * i];
+            }
+        }
+    }
+
+    /**
+     * Combine a partial result into its group; the accumulators are taken
+     * over if the group is new. Groups are only spilled once the memory is
+     * full, after which no group becomes resident, so a group is never both
+     * in memory and spilled.
+     */
+    private void mergeGroup(Object key, int[] state) {
+        if (gbFields.length == 0) {
+            combine(noGrouping, state);
+            return;
+        }
+        int[] acc = groups.get(key);
+        if (acc != null) {
+            combine(acc, state);
+        } else if (groups.size() >= maxGroups && spill.canSpill()) {
+            spill.add(key.hashCode(), partial(key, state));
+        } else {
+            groups.put(key, state);
+        }
+    }
+
+    /**
+     * Combine the partial results of another aggregator, computing the same
+     * aggregates over the same groups of other input, into this one. The
+     * other aggregator must not be used afterwards.
+     *
+     * @throws IllegalArgumentException
+     *             if the other aggregator computes different aggregates
+     */
+    public void merge(GroupAggregator other) {
+        if (!Arrays.equals(ops, other.ops) || !Arrays.equals(gbFieldTypes, other.gbFieldTypes))
+            throw new IllegalArgumentException("cannot merge different aggregates");
+        if (gbFields.length == 0) {
+            combine(noGrouping, other.noGrouping);
+            return;
+        }
+        for (Map.Entry<Object, int[]> e : other.groups.entrySet())
+            mergeGroup(e.getKey(), e.getValue());
+        other.groups.clear();
+        // the other spill holds partial results, with the group-by fields
+        // first
+        other.spill.drain(t -> {
+            Object key;
+            if (gbFields.length == 1) {
+                key = t.getField(0);
+            } else {
+                Field[] fields = new Field[gbFields.length];
+                for (int i = 0; i < fields.length; i++)
+                    fields[i] = t.getField(i);
+                key = Arrays.asList(fields);
+            }
+            int[] state = new int[2 * ops.length];
+            for (int i = 0; i < state.length; i++)
+                state[i] = ((IntField) t.getField(gbFields.length + i)).getValue();
+            mergeGroup(key, state);
+        });
+    }
+
+    /** The group-by fields followed by the value and count of each aggregate. */
+    private Tuple partial(Object key, int[] state) {
+        Tuple t = new Tuple(spillTd);
+        for (int i = 0; i < gbFields.length; i++)
+            t.setField(i, keyField(key, i));
+        for (int i = 0; i < state.length; i++)
+            t.setField(gbFields.length + i, new IntField(state[i]));
+        return t;
+    }
+
+    private Tuple result(Object key, int[] acc) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < gbFields.length; i++)
+            t.setField(i, keyField(key, i));
+        for (int i = 0; i < ops.length; i++)
+            t.setField(gbFields.length + i, new IntField(resultValue(ops[i], acc[2 * i], acc[2 * i + 1])));
+        return t;
+    }
+
+    /** @return the result of an aggregate of the given value and count */
+    static int resultValue(Op op, int value, int count) {
+        switch (op) {
+        case AVG:
+            return count == 0 ? 0 : value / count;
+        case COUNT:
+            return count;
+        default:
+            return value;
+        }
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples are the group-by values followed by
+     *         the value of each aggregate, or a single tuple of the
+     *         aggregate values if there is no grouping.
+     */
+    public DbIterator iterator() {
+        ArrayList<Tuple> rtn = new ArrayList<Tuple>();
+        if (gbFields.length == 0) {
+            rtn.add(result(null, noGrouping));
+            return new TupleIterator(td, rtn);
+        }
+        for (Map.Entry<Object, int[]> e : groups.entrySet())
+            rtn.add(result(e.getKey(), e.getValue()));
+        if (spill.isEmpty())
+            return new TupleIterator(td, rtn);
+        // the spilled tuples are the group-by fields followed by the value
+        // and count of each aggregate
+        final int[] subGb = new int[gbFields.length];
+        for (int i = 0; i < subGb.length; i++)
+            subGb[i] = i;
+        final int[] subA = new int[aFields.length];
+        for (int i = 0; i < subA.length; i++)
+            subA[i] = gbFields.length + 2 * i;
+        return spill.iterator(new TupleIterator(td, rtn),
+                l -> new GroupAggregator(subGb, gbFieldTypes, subA, aFieldTypes, ops, memory, l, true));
+    }
+}
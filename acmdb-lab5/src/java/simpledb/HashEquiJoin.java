@@ -3,20 +3,62 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equi-join as a hybrid hash join.
+ * <p>
+ * The right child is loaded into an in-memory hash table. If it outgrows the
+ * memory budget, both children are split into partitions by the hash of
+ * their join field: the tuples of one partition stay in memory and are joined
+ * while the left child is read, the other partitions are written to spill
+ * files and joined pairwise afterwards, partitioning them again if needed.
+ * <p>
+ * Joins on INT fields use an IntTupleTable, which neither boxes the keys nor
+ * needs to check the predicate on the tuples it finds. When such a join fits
+ * in memory, nextBatch() probes it with the key vectors of batches of the
+ * left child.
+ * <p>
+ * Once the right child is read, a Bloom filter of its join keys is handed
+ * down to the scans of the left child, so that they drop most tuples which
+ * cannot join before passing them up the plan.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of bytes of right tuples kept in memory. */
+    public static final int DEFAULT_MEMORY = 16 << 20;
+    /** Number of partitions the inputs are split into when they spill. */
+    static final int PARTITIONS = 16;
+    /** Partitioning depth after which a partition is joined in memory regardless of its size. */
+    static final int MAX_LEVEL = 4;
+
     private JoinPredicate predicate;
     private DbIterator childIt1;
     private DbIterator childIt2;
     private TupleDesc tupleDesc;
-    private boolean fetched = false;
-    private Map<Integer, ArrayList<Tuple>> hashed = new HashMap<>();
-    private Tuple t1;
-    private Iterator<Tuple> t2It;
-    private boolean fetching = false; // true if an ArrayList is half-fetched
+    private final int memory;
+    private final int level;
+    private final boolean intKeys;
+    // the planner's estimate of the number of right tuples, or -1
+    private int buildEstimate = -1;
+
+    private transient boolean built = false;
+    private transient Map<Integer, ArrayList<Tuple>> hashed = new HashMap<>();
+    private transient IntTupleTable intTable = new IntTupleTable();
+    // the spill files of each partition, or null while nothing spilled
+    private transient SpillFile[] leftParts = null;
+    private transient SpillFile[] rightParts = null;
+    // the partition kept in memory, or -1 once it spilled as well
+    private transient int residentPart = 0;
+    private transient boolean probed = false;
+    private transient int nextPart = 0;
+    private transient HashEquiJoin partJoin = null;
+    private transient Tuple t1;
+    private transient Iterator<Tuple> t2It = null;
+    private transient int row = -1;
+    // the left batch being probed by nextBatch(), and the position of the
+    // probing row in its selection
+    private transient TupleBatch probeBatch = null;
+    private transient int probeIdx = 0;
     
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -30,11 +72,58 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY);
+    }
+
+    /**
+     * Constructor with an explicit memory budget for the hash table.
+     * 
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memory
+     *            The number of bytes of right tuples to keep in memory
+     *            before partitioning to disk
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memory) {
+        this(p, child1, child2, memory, 0);
+    }
+
+    private HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memory, int level) {
         // some code goes here
         predicate = p;
         childIt1 = child1;
         childIt2 = child2;
         tupleDesc = TupleDesc.merge(childIt1.getTupleDesc(), childIt2.getTupleDesc());
+        this.memory = memory;
+        this.level = level;
+        intKeys = p.getOperator() == Predicate.Op.EQUALS
+                && childIt1.getTupleDesc().getFieldType(p.getField1()) == Type.INT_TYPE
+                && childIt2.getTupleDesc().getFieldType(p.getField2()) == Type.INT_TYPE;
+    }
+
+    /**
+     * Set the planner's estimate of the number of tuples of the right child,
+     * which sizes the Bloom filter of their join keys.
+     */
+    void setBuildEstimate(int tuples) {
+        buildEstimate = tuples;
+    }
+
+    /**
+     * @return the number of keys to size the Bloom filter for: the planner's
+     *         estimate, or else the number of right tuples the memory budget
+     *         holds, and at most memory / 8 so that the filter takes about a
+     *         sixth of the budget at most
+     */
+    private int bloomFilterKeys()
+    {
+        long tupleSize = Math.max(1, childIt2.getTupleDesc().getSize());
+        long keys = buildEstimate > 0 ? buildEstimate : memory / tupleSize;
+        return (int) Math.max(1, Math.min(keys, memory / 8));
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -69,6 +158,7 @@ public class HashEquiJoin extends Operator {
 
     public void close() {
         // some code goes here
+        reset();
         childIt1.close();
         childIt2.close();
         super.close();
@@ -77,10 +167,199 @@ public class HashEquiJoin extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         childIt1.rewind();
+        if(leftParts == null)
+        {
+            // the hash table holds the whole right child, so only probe again
+            t2It = null;
+            row = -1;
+            probed = false;
+            probeBatch = null;
+            probeIdx = 0;
+            return;
+        }
+        reset();
         childIt2.rewind();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    /**
+     * Drop the hash table and the spill files.
+     */
+    private void reset()
+    {
+        built = false;
+        clearTable();
+        if(leftParts != null)
+        {
+            for(int i = 0; i < PARTITIONS; i++)
+            {
+                leftParts[i].delete();
+                rightParts[i].delete();
+            }
+        }
+        leftParts = null;
+        rightParts = null;
+        residentPart = 0;
+        probed = false;
+        nextPart = 0;
+        if(partJoin != null)
+            partJoin.close();
+        partJoin = null;
+        t2It = null;
+        row = -1;
+        probeBatch = null;
+        probeIdx = 0;
+    }
+
+    /**
+     * Return the partition of a tuple with the given join field. Every level
+     * of partitioning hashes differently, so that a partition which is too
+     * large gets split further.
+     */
+    private int partition(Field f)
+    {
+        int h = f.hashCode() * 0x9E3779B9 + level * 0x85EBCA6B;
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 13;
+        return Math.floorMod(h, PARTITIONS);
+    }
+
+    private void addToTable(Tuple t2)
+    {
+        if(intKeys)
+        {
+            intTable.add(((IntField)t2.getField(predicate.getField2())).getValue(), t2);
+            return;
+        }
+        int t2FieldHashed = t2.getField(predicate.getField2()).hashCode();
+        ArrayList<Tuple> al = hashed.get(t2FieldHashed);
+        if(al == null)
+        {
+            al = new ArrayList<>();
+            hashed.put(t2FieldHashed, al);
+        }
+        al.add(t2);
+    }
+
+    /** @return the tuples in the hash table */
+    private ArrayList<Tuple> tableTuples()
+    {
+        ArrayList<Tuple> tuples = new ArrayList<>();
+        if(intKeys)
+        {
+            for(int i = 0; i < intTable.size(); i++)
+                tuples.add(intTable.get(i));
+        }
+        else
+        {
+            for(ArrayList<Tuple> al : hashed.values())
+                tuples.addAll(al);
+        }
+        return tuples;
+    }
+
+    private void clearTable()
+    {
+        hashed = new HashMap<>();
+        intTable = new IntTupleTable();
+    }
+
+    /**
+     * Read the right child into the hash table, and partition it to disk once
+     * it exceeds the memory budget.
+     */
+    private void build() throws DbException, TransactionAbortedException
+    {
+        built = true;
+        long tupleSize = childIt2.getTupleDesc().getSize();
+        long bytes = 0;
+        // the partitions joined later read spill files, which are not filtered
+        BloomFilter filter = null;
+        if(level == 0 && predicate.getOperator() == Predicate.Op.EQUALS)
+            filter = new BloomFilter(bloomFilterKeys());
+        while(childIt2.hasNext())
+        {
+            Tuple t2 = childIt2.next();
+            if(filter != null)
+                filter.add(t2.getField(predicate.getField2()));
+            if(leftParts != null && partition(t2.getField(predicate.getField2())) != residentPart)
+            {
+                rightParts[partition(t2.getField(predicate.getField2()))].add(t2);
+                continue;
+            }
+            addToTable(t2);
+            bytes += tupleSize;
+            if(bytes > memory && level < MAX_LEVEL)
+                bytes = spill();
+        }
+
+        if(filter != null)
+            BloomFilter.pushDown(childIt1, predicate.getField1(), filter);
+    }
+
+    /**
+     * Move the tuples of the hash table that do not belong to the resident
+     * partition to their spill files. If nothing but the resident partition
+     * is left in memory, spill it too.
+     * 
+     * @return the number of bytes left in memory
+     */
+    private long spill() throws DbException
+    {
+        if(leftParts == null)
+        {
+            leftParts = new SpillFile[PARTITIONS];
+            rightParts = new SpillFile[PARTITIONS];
+            for(int i = 0; i < PARTITIONS; i++)
+            {
+                leftParts[i] = new SpillFile(childIt1.getTupleDesc());
+                rightParts[i] = new SpillFile(childIt2.getTupleDesc());
+            }
+        }
+        ArrayList<Tuple> tuples = tableTuples();
+        clearTable();
+        long kept = 0;
+        for(Tuple t2 : tuples)
+        {
+            int part = partition(t2.getField(predicate.getField2()));
+            if(part == residentPart)
+            {
+                addToTable(t2);
+                kept++;
+            }
+            else
+            {
+                rightParts[part].add(t2);
+            }
+        }
+        long bytes = kept * childIt2.getTupleDesc().getSize();
+        if(bytes > memory)
+        {
+            for(Tuple t2 : tableTuples())
+                rightParts[residentPart].add(t2);
+            clearTable();
+            residentPart = -1;
+            bytes = 0;
+        }
+        return bytes;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2)
+    {
+        Tuple newTuple = new Tuple(tupleDesc);
+        int now = 0;
+        Iterator<Field> it = t1.fields();
+        while(it.hasNext())
+        {
+            newTuple.setField(now++, it.next());
+        }
+        it = t2.fields();
+        while(it.hasNext())
+        {
+            newTuple.setField(now++, it.next());
+        }
+        return newTuple;
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -102,82 +381,117 @@ public class HashEquiJoin extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if(!fetched)
+        if(!built)
+            build();
+
+        // join the left child with the partition in memory
+        while(!probed)
         {
-            fetched = true;
-            if(!childIt2.hasNext())
-                return null;
-            while(childIt2.hasNext())
+            if(row != -1)
             {
-                Tuple t2 = childIt2.next();
-                int t2FieldHashed = t2.getField(predicate.getField2()).hashCode();
-                if(!hashed.containsKey(t2FieldHashed))
-                {
-                    ArrayList<Tuple> al = new ArrayList<>();
-                    al.add(t2);
-                    hashed.put(t2FieldHashed, al);
-                }
-                else
+                // the keys are equal, so the tuples join
+                Tuple t2 = intTable.get(row);
+                row = intTable.next(row);
+                return merge(t1, t2);
+            }
+            if(t2It != null)
+            {
+                while(t2It.hasNext())
                 {
-                    hashed.get(t2FieldHashed).add(t2);
+                    Tuple t2 = t2It.next();
+                    if(predicate.filter(t1, t2))
+                        return merge(t1, t2);
                 }
+                t2It = null;
+            }
+            if(!childIt1.hasNext())
+            {
+                probed = true;
+                break;
             }
+            t1 = childIt1.next();
+            Field f = t1.getField(predicate.getField1());
+            if(leftParts != null && partition(f) != residentPart)
+            {
+                leftParts[partition(f)].add(t1);
+                continue;
+            }
+            if(intKeys)
+            {
+                row = intTable.first(((IntField)f).getValue());
+                continue;
+            }
+            ArrayList<Tuple> t2s = hashed.get(f.hashCode());
+            if(t2s != null)
+                t2It = t2s.iterator();
         }
-        
-        if(fetching)
+        if(leftParts == null)
+            return null;
+
+        // then join the spilled partitions pairwise
+        while(true)
         {
-            if(t2It.hasNext())
+            if(partJoin != null)
             {
-                Tuple t2 = t2It.next();
-                if(predicate.filter(t1, t2))
-                {
-                    Tuple newTuple = new Tuple(tupleDesc);
-                    int now = 0;
-                    Iterator<Field> it = t1.fields();
-                    while(it.hasNext())
-                    {
-                        newTuple.setField(now++, it.next());
-                    }
-                    it = t2.fields();
-                    while(it.hasNext())
-                    {
-                        newTuple.setField(now++, it.next());
-                    }
-                    return newTuple;
-                }
+                if(partJoin.hasNext())
+                    return partJoin.next();
+                partJoin.close();
+                partJoin = null;
+                leftParts[nextPart - 1].delete();
+                rightParts[nextPart - 1].delete();
             }
-            fetching = false;
+            if(nextPart == PARTITIONS)
+                return null;
+            int i = nextPart++;
+            if(i == residentPart || leftParts[i].size() == 0 || rightParts[i].size() == 0)
+                continue;
+            partJoin = new HashEquiJoin(predicate, leftParts[i].iterator(),
+                    rightParts[i].iterator(), memory, level + 1);
+            partJoin.open();
         }
-        
-        while(childIt1.hasNext())
+    }
+
+    /**
+     * Returns the next batch of joined tuples. Joins on INT fields which fit
+     * in memory look up the keys of the left child's batches in the hash
+     * table and copy the matching rows into the result; other joins collect
+     * the tuples of next().
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if(!built)
+            build();
+        if(!intKeys || leftParts != null)
+            return super.nextBatch();
+        if(probed)
+            return null;
+        TupleBatch out = new TupleBatch(tupleDesc);
+        int width1 = childIt1.getTupleDesc().numFields();
+        int field1 = predicate.getField1();
+        while(!out.isFull())
         {
-            t1 = childIt1.next();
-            int t1FieldHashed = t1.getField(predicate.getField1()).hashCode();
-            if(hashed.containsKey(t1FieldHashed))
+            if(row != -1)
             {
-                ArrayList<Tuple> t2s = hashed.get(t1FieldHashed);
-                t2It = t2s.iterator();
-                Tuple t2 = t2It.next();
-                if(predicate.filter(t1, t2))
+                int r = out.addRow();
+                int left = probeBatch.row(probeIdx - 1);
+                out.set(r, 0, probeBatch, left);
+                out.set(r, width1, intTable.get(row));
+                row = intTable.next(row);
+                continue;
+            }
+            if(probeBatch == null || probeIdx == probeBatch.size())
+            {
+                probeBatch = TupleBatch.next(childIt1);
+                probeIdx = 0;
+                if(probeBatch == null)
                 {
-                    fetching = true;
-                    Tuple newTuple = new Tuple(tupleDesc);
-                    int now = 0;
-                    Iterator<Field> it = t1.fields();
-                    while(it.hasNext())
-                    {
-                        newTuple.setField(now++, it.next());
-                    }
-                    it = t2.fields();
-                    while(it.hasNext())
-                    {
-                        newTuple.setField(now++, it.next());
-                    }
-                    return newTuple;
+                    probed = true;
+                    break;
                 }
+                continue;
             }
+            row = intTable.first(probeBatch.getInt(field1, probeBatch.row(probeIdx++)));
         }
-        return null;
+        return out.size() == 0 ? null : out;
     }
 
     @Override
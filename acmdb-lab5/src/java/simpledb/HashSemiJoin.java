@@ -0,0 +1,190 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The HashSemiJoin operator returns the tuples of its left child which have
+ * a match in its right child, each of them once and without the fields of
+ * the right child, as a semi-join; or, as an anti-join, the tuples of the
+ * left child which have none. It runs IN and NOT IN subqueries, and EXISTS
+ * and NOT EXISTS subqueries without a predicate.
+ * <p>
+ * For an equality the join keys of the right child are loaded into a hash
+ * set, which only holds each distinct key once, and each left tuple is
+ * decided by one lookup; for other predicates the keys are checked in turn
+ * until the first match. Without a predicate, only the first tuple of the
+ * right child is read, and the left child is not read at all if no tuple
+ * can pass.
+ * <p>
+ * As for HashEquiJoin, a semi-join on an equality hands a Bloom filter of
+ * its keys down to the scans of the left child.
+ */
+public class HashSemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate predicate;
+    private final boolean anti;
+    private DbIterator childIt1;
+    private DbIterator childIt2;
+
+    private transient boolean built = false;
+    // the distinct keys of the right child, for an equality
+    private transient Set<Field> keys = null;
+    // the keys of the right child, for other predicates
+    private transient ArrayList<Field> values = null;
+    // whether the right child has any tuple, without a predicate
+    private transient boolean nonEmpty = false;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            the predicate a left tuple and a right tuple match on, or
+     *            null if every left tuple matches every right tuple, so that
+     *            only whether the right child has tuples matters
+     * @param child1
+     *            the tuples to return
+     * @param child2
+     *            the tuples to match them with
+     * @param anti
+     *            true to return the left tuples without a match instead of
+     *            those with one
+     */
+    public HashSemiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, boolean anti) {
+        this.predicate = p;
+        this.childIt1 = child1;
+        this.childIt2 = child2;
+        this.anti = anti;
+    }
+
+    /** @return the predicate of this join, or null if it has none */
+    public JoinPredicate getJoinPredicate() {
+        return predicate;
+    }
+
+    /** @return true if this is an anti-join */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    /** @return the name of this join shown in query plans */
+    public String getName() {
+        if (predicate == null)
+            return anti ? "not exists" : "exists";
+        return anti ? "anti join" : "semi join";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return childIt1.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        childIt1.open();
+        childIt2.open();
+    }
+
+    public void close() {
+        childIt1.close();
+        childIt2.close();
+        built = false;
+        keys = null;
+        values = null;
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the keys of the right child are kept
+        childIt1.rewind();
+    }
+
+    /**
+     * Read the keys of the right child, or only its first tuple if there is
+     * no predicate.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        built = true;
+        if (predicate == null) {
+            nonEmpty = childIt2.hasNext();
+            return;
+        }
+        int field2 = predicate.getField2();
+        if (predicate.getOperator() == Predicate.Op.EQUALS) {
+            keys = new HashSet<Field>();
+            while (childIt2.hasNext())
+                keys.add(childIt2.next().getField(field2));
+            if (!anti) {
+                BloomFilter filter = new BloomFilter(keys.size());
+                for (Field f : keys)
+                    filter.add(f);
+                BloomFilter.pushDown(childIt1, predicate.getField1(), filter);
+            }
+            return;
+        }
+        values = new ArrayList<Field>();
+        while (childIt2.hasNext())
+            values.add(childIt2.next().getField(field2));
+    }
+
+    /** @return true if a key of the left child has a match in the right child */
+    private boolean matches(Field f) {
+        if (keys != null)
+            return keys.contains(f);
+        for (Field v : values)
+            if (f.compare(predicate.getOperator(), v))
+                return true;
+        return false;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!built)
+            build();
+        if (predicate == null)
+            return nonEmpty != anti && childIt1.hasNext() ? childIt1.next() : null;
+        while (childIt1.hasNext()) {
+            Tuple t = childIt1.next();
+            if (matches(t.getField(predicate.getField1())) != anti)
+                return t;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next batch of the left child with the rows that pass
+     * selected, skipping batches of which none pass.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!built)
+            build();
+        if (predicate == null)
+            return nonEmpty == anti ? null : TupleBatch.next(childIt1);
+        int field1 = predicate.getField1();
+        TupleBatch batch;
+        while ((batch = TupleBatch.next(childIt1)) != null) {
+            int[] sel = new int[batch.size()];
+            int n = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                int row = batch.row(i);
+                if (matches(batch.getField(field1, row)) != anti)
+                    sel[n++] = row;
+            }
+            batch.select(sel, n);
+            if (n > 0)
+                return batch;
+        }
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { childIt1, childIt2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        childIt1 = children[0];
+        childIt2 = children[1];
+    }
+}
@@ -4,6 +4,7 @@ import com.sun.org.apache.bcel.internal.generic.ALOAD;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -107,51 +108,97 @@ public class HeapFile implements DbFile {
         return (int)Math.ceil(file.length() / BufferPool.getPageSize());
     }
     
-    private int cnt = 0;
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if(!t.getTupleDesc().equals(tupleDesc))
+            throw new DbException("TupleDesc mismatch, the tuple cannot be inserted.");
+        BufferPool bufferPool = Database.getBufferPool();
         int numPage = numPages();
         ArrayList<Page> rtn = new ArrayList<>();
         for(int i = 0; i < numPage; i++)
         {
-            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
-            try
+            HeapPageId pageId = new HeapPageId(getId(), i);
+            boolean held = bufferPool.holdsLock(tid, pageId);
+            HeapPage page = (HeapPage)bufferPool.getPageForUpdate(tid, pageId);
+            if(insertIntoPage(tid, page, t))
             {
-                page.insertTuple(t);
                 rtn.add(page);
                 return rtn;
             }
-            catch(DbException e)
+            if(!held)
+                bufferPool.releasePage(tid, pageId);
+        }
+        // Need to create a new page to the file
+        while(true)
+        {
+            HeapPage newPage = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());
+            writePage(newPage);
+            newPage = (HeapPage)bufferPool.getPageForUpdate(tid, newPage.getId());
+            if(insertIntoPage(tid, newPage, t))
             {
-                if(e.getMessage().equals("TupleDesc mismatch."))
-                    throw new DbException("TupleDesc mismatch, the tuple cannot be inserted.");
+                rtn.add(newPage);
+                return rtn;
             }
-            Database.getBufferPool().releasePage(tid, new HeapPageId(getId(), i));
         }
-        // Need to create a new page to the file
-        /*HeapPage newPage = new HeapPage(new HeapPageId(getId(), numPage), HeapPage.createEmptyPageData());
-        newPage.insertTuple(t);
-        rtn.add(newPage);
-        writePage(newPage);
-		*/
-		HeapPage newPage = new HeapPage(new HeapPageId(getId(), numPage), HeapPage.createEmptyPageData());
-		writePage(newPage);
-		newPage = (HeapPage)Database.getBufferPool().getPage(tid, newPage.getId(), Permissions.READ_WRITE);
-		newPage.insertTuple(t);
-        rtn.add(newPage);
-        return rtn;
+    }
+
+    /**
+     * Puts t into the first empty slot of page whose row lock tid gets without
+     * waiting. A slot emptied by a transaction that is still running stays
+     * locked by it, so that its delete can be undone.
+     *
+     * @return true if the tuple was inserted
+     */
+    private boolean insertIntoPage(TransactionId tid, HeapPage page, Tuple t)
+            throws DbException {
+        BufferPool bufferPool = Database.getBufferPool();
+        StampedLock latch = bufferPool.getLatch(page.getId());
+        long stamp = latch.writeLock();
+        try
+        {
+            for(int i = page.nextEmptySlot(0); i >= 0; i = page.nextEmptySlot(i + 1))
+            {
+                RecordId rid = new RecordId(page.getId(), i);
+                if(bufferPool.tryLockTuple(tid, rid, Permissions.READ_WRITE))
+                {
+                    page.insertTuple(t, i);
+                    bufferPool.recordRowUndo(tid, rid, null);
+                    return true;
+                }
+            }
+        }
+        finally
+        {
+            latch.unlockWrite(stamp);
+        }
+        return false;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
-        PageId pageId = t.getRecordId().getPageId();
-        HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-        page.deleteTuple(t);
+        RecordId rid = t.getRecordId();
+        if(rid == null)
+            throw new DbException("The tuple is not stored in a page.");
+        BufferPool bufferPool = Database.getBufferPool();
+        bufferPool.lockTuple(tid, rid, Permissions.READ_WRITE);
+        HeapPage page = (HeapPage)bufferPool.getPageForUpdate(tid, rid.getPageId());
+        StampedLock latch = bufferPool.getLatch(page.getId());
+        long stamp = latch.writeLock();
+        try
+        {
+            Tuple before = page.tuples[rid.tupleno()];
+            page.deleteTuple(t);
+            bufferPool.recordRowUndo(tid, rid, before);
+        }
+        finally
+        {
+            latch.unlockWrite(stamp);
+        }
         ArrayList<Page> rtn = new ArrayList<>();
         rtn.add(page);
         return rtn;
@@ -163,19 +210,32 @@ public class HeapFile implements DbFile {
         private int curId;
         private int numIterators;
         private TransactionId tid;
+        // the pages to scan, or -1 to scan the whole file as of open()
+        private int firstPage;
+        private int endPage;
         
         public HeapFileIterator(TransactionId id)
+        {
+            this(id, -1, -1);
+        }
+        
+        public HeapFileIterator(TransactionId id, int first, int end)
         {
             tid = id;
+            firstPage = first;
+            endPage = end;
         }
     
         @Override
         public void open()
                 throws DbException, TransactionAbortedException
         {
-            numIterators = numPages();
-            curId = 0;
-            curIterator = ((HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), curId), Permissions.READ_ONLY)).iterator();
+            numIterators = endPage < 0 ? numPages() : endPage;
+            curId = firstPage < 0 ? 0 : firstPage;
+            if((firstPage >= 0 || endPage >= 0) && curId >= numIterators)
+                curIterator = Collections.<Tuple>emptyIterator();
+            else
+                curIterator = ((HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), curId), Permissions.READ_ONLY)).iterator();
         }
         
         public boolean hasNext()
@@ -226,6 +286,19 @@ public class HeapFile implements DbFile {
         // some code goes here
         return new HeapFileIterator(tid);
     }
+    
+    /**
+     * Returns an iterator over the tuples of a range of pages of this file,
+     * so that disjoint ranges can be scanned by different threads.
+     *
+     * @param tid the transaction the scan is running as a part of
+     * @param first the number of the first page to scan
+     * @param end the number of the page after the last page to scan, or -1
+     *            to scan to the end of the file
+     */
+    public DbFileIterator iterator(TransactionId tid, int first, int end) {
+        return new HeapFileIterator(tid, first, end);
+    }
 
 }
 
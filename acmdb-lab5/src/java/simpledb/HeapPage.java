@@ -111,6 +111,14 @@ public class HeapPage implements Page {
         }
     }
 
+    /** Sets the before image to the given page data instead of the current content. */
+    void setBeforeImage(byte[] data) {
+        synchronized(oldDataLock)
+        {
+        oldData = data.clone();
+        }
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -272,16 +280,50 @@ public class HeapPage implements Page {
             throw new DbException("The page is full.");
         if(!t.getTupleDesc().equals(td))
             throw new DbException("TupleDesc mismatch.");
-        for(int i = 0; i < numSlots; i++)
+        insertTuple(t, nextEmptySlot(0));
+    }
+
+    /**
+     * Adds the specified tuple to the given empty slot of the page. Used by
+     * row-level writers, which pick the slot only after locking its RecordId.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if(!t.getTupleDesc().equals(td))
+            throw new DbException("TupleDesc mismatch.");
+        if(isSlotUsed(slot))
+            throw new DbException("The tuple slot is already in use.");
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Puts t back into the given slot, or empties the slot if t is null.
+     * Used to undo the changes of a row-level writer.
+     */
+    void restoreSlot(int slot, Tuple t) {
+        if(t == null)
+        {
+            markSlotUsed(slot, false);
+            return;
+        }
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Returns the index of the first empty slot at or after from, or -1 if
+     * there is none.
+     */
+    int nextEmptySlot(int from) {
+        for(int i = from; i < numSlots; i++)
         {
             if(!isSlotUsed(i))
-            {
-                tuples[i] = t;
-                markSlotUsed(i, true);
-                t.setRecordId(new RecordId(pid, i));
-                break;
-            }
+                return i;
         }
+        return -1;
     }
 
     /**
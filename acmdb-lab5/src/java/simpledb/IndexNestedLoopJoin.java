@@ -0,0 +1,240 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins each tuple of its outer child with
+ * the tuples of a B+ tree it finds by an index lookup, instead of scanning
+ * the whole inner relation.
+ * <p>
+ * The inner child must be a SeqScan over a BTreeFile keyed on the join field,
+ * possibly below Filters; it describes the inner relation but is never
+ * opened. Outer tuples are read in batches which are sorted on the join key,
+ * so that consecutive lookups go down the same path of the tree and mostly
+ * hit pages that are already in the buffer pool.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of bytes of outer tuples in one sorted batch. */
+    public static final int DEFAULT_BATCH_SIZE = 1 << 20;
+
+    private final JoinPredicate predicate;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final TupleDesc td;
+    private final int batchSize;
+
+    private transient BTreeFile index;
+    private transient TransactionId tid;
+    private transient PredicateCompiler.TupleTest innerFilters;
+
+    private transient ArrayList<Tuple> batch = new ArrayList<Tuple>();
+    private transient int batchPos = 0;
+    private transient Tuple cur = null;
+    private transient DbFileIterator matches = null;
+
+    /**
+     * Constructor. Accepts the outer child, an inner child that can be probed
+     * through an index and the predicate to join them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; one of EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the outer relation
+     * @param child2
+     *            Iterator for the inner relation, accepted by canProbe
+     * @throws IllegalArgumentException
+     *             if the inner child cannot be probed on the join field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor with an explicit batch size.
+     *
+     * @see #IndexNestedLoopJoin(JoinPredicate, DbIterator, DbIterator)
+     * @param batchSize
+     *            The number of bytes of outer tuples to sort and probe
+     *            together
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int batchSize) {
+        if (!SortMergeJoin.supports(p.getOperator()))
+            throw new IllegalArgumentException("cannot probe an index on " + p.getOperator());
+        if (!canProbe(child2, p.getField2()))
+            throw new IllegalArgumentException("no index on the inner join field");
+        this.predicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Return true if the tuples of the given operator can be looked up by the
+     * given field through a B+ tree: a SeqScan over a BTreeFile keyed on that
+     * field, possibly below Filters, which returns whole tuples.
+     */
+    public static boolean canProbe(DbIterator it, int field) {
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        if (!(it instanceof SeqScan) || ((SeqScan) it).hasPushdown())
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return predicate;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table name
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(predicate.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table name
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(predicate.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        ArrayList<Predicate> filters = new ArrayList<Predicate>();
+        DbIterator it = child2;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        innerFilters = PredicateCompiler.compile(filters);
+        SeqScan scan = (SeqScan) it;
+        index = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        tid = scan.getTransactionId();
+        child1.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        if (matches != null)
+            matches.close();
+        matches = null;
+        batch = new ArrayList<Tuple>();
+        batchPos = 0;
+        cur = null;
+    }
+
+    /**
+     * Read the next batch of outer tuples and sort it on the join key.
+     *
+     * @return false if the outer child is exhausted
+     */
+    private boolean readBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        batchPos = 0;
+        int max = Join.blockTuples(child1.getTupleDesc(), batchSize);
+        while (batch.size() < max && child1.hasNext())
+            batch.add(child1.next());
+        if (batch.isEmpty())
+            return false;
+        final int field = predicate.getField1();
+        Collections.sort(batch, new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                Field fa = a.getField(field);
+                Field fb = b.getField(field);
+                if (fa.compare(Predicate.Op.LESS_THAN, fb))
+                    return -1;
+                return fa.compare(Predicate.Op.GREATER_THAN, fb) ? 1 : 0;
+            }
+        });
+        return true;
+    }
+
+    /**
+     * The operator to look up the inner key with, such that outer op inner
+     * holds exactly when inner reverse(op) outer does.
+     */
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    private boolean passesFilters(Tuple t) {
+        return innerFilters.test(t);
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple out = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            out.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            out.setField(n1 + i, t2.getField(i));
+        return out;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (matches != null) {
+                while (matches.hasNext()) {
+                    Tuple t2 = matches.next();
+                    if (passesFilters(t2))
+                        return merge(cur, t2);
+                }
+                matches.close();
+                matches = null;
+            }
+            if (batchPos == batch.size() && !readBatch())
+                return null;
+            cur = batch.get(batchPos++);
+            IndexPredicate ipred = new IndexPredicate(
+                    reverse(predicate.getOperator()), cur.getField(predicate.getField1()));
+            matches = index.indexIterator(tid, ipred);
+            matches.open();
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
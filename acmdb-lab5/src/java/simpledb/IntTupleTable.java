@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * IntTupleTable is a hash table from int keys to tuples, used to join on INT
+ * fields without boxing the keys. The distinct keys are kept in an
+ * open-addressing table with linear probing; the tuples are kept in one array
+ * in the order they were added, with the tuples of a key chained through a
+ * parallel array of row numbers.
+ * <p>
+ * Rows are numbered from 0 to size() - 1. To visit the tuples of a key:
+ * <pre>
+ * for (int row = table.first(key); row != -1; row = table.next(row))
+ *     ... table.get(row) ...
+ * </pre>
+ */
+public class IntTupleTable {
+
+    private int[] keys;
+    private int[] heads;
+    private int[] tails;
+    private int mask;
+    private int numKeys = 0;
+
+    private Tuple[] rows;
+    private int[] next;
+    private int size = 0;
+
+    /**
+     * Create an empty table.
+     */
+    public IntTupleTable() {
+        initSlots(16);
+        rows = new Tuple[16];
+        next = new int[16];
+    }
+
+    private void initSlots(int capacity) {
+        keys = new int[capacity];
+        heads = new int[capacity];
+        tails = new int[capacity];
+        Arrays.fill(heads, -1);
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Return the slot holding key, or the empty slot where it belongs. */
+    private int slotOf(int key) {
+        int slot = hash(key) & mask;
+        while (heads[slot] != -1 && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Add a tuple with the given key.
+     */
+    public void add(int key, Tuple t) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+            next = Arrays.copyOf(next, size * 2);
+        }
+        int row = size++;
+        rows[row] = t;
+        next[row] = -1;
+
+        int slot = slotOf(key);
+        if (heads[slot] == -1) {
+            keys[slot] = key;
+            heads[slot] = row;
+            tails[slot] = row;
+            if (++numKeys * 2 > keys.length)
+                grow();
+        } else {
+            next[tails[slot]] = row;
+            tails[slot] = row;
+        }
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldHeads = heads;
+        int[] oldTails = tails;
+        initSlots(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] != -1) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                heads[slot] = oldHeads[i];
+                tails[slot] = oldTails[i];
+            }
+        }
+    }
+
+    /**
+     * @return the first row with the given key, or -1 if there is none
+     */
+    public int first(int key) {
+        return heads[slotOf(key)];
+    }
+
+    /**
+     * @return the row after the given one with the same key, or -1 if there
+     *         is none
+     */
+    public int next(int row) {
+        return next[row];
+    }
+
+    /**
+     * @return the tuple of the given row
+     */
+    public Tuple get(int row) {
+        return rows[row];
+    }
+
+    /**
+     * @return the number of tuples in the table
+     */
+    public int size() {
+        return size;
+    }
+}
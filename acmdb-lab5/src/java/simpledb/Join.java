@@ -4,17 +4,27 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loops join: the outer relation is read in blocks of
+ * tuples that fit in a memory budget, and the inner relation is scanned once
+ * per block instead of once per outer tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of bytes of outer tuples buffered per block. */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
     
     private JoinPredicate predicate;
     private DbIterator childIt1;
     private DbIterator childIt2;
     private TupleDesc tupleDesc;
-    private boolean fetched = false;
-    private Tuple t1;
+    private final int blockSize;
+    private final ArrayList<Tuple> block = new ArrayList<>();
+    private int blockPos = 0;
+    private boolean firstBlock = true;
+    private Tuple t2;
     
     
     /**
@@ -29,11 +39,39 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor with an explicit memory budget for the blocks of the outer
+     * relation.
+     * 
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockSize
+     *            The number of bytes of outer tuples to buffer per scan of
+     *            the inner relation
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockSize) {
         // some code goes here
         predicate = p;
         childIt1 = child1;
         childIt2 = child2;
         tupleDesc = TupleDesc.merge(childIt1.getTupleDesc(), childIt2.getTupleDesc());
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Return the number of outer tuples with the given descriptor that fit
+     * in a block of the given number of bytes; at least one.
+     */
+    public static int blockTuples(TupleDesc td, int blockSize)
+    {
+        return Math.max(1, blockSize / Math.max(1, td.getSize()));
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -82,6 +120,7 @@ public class Join extends Operator {
         // some code goes here
         childIt1.close();
         childIt2.close();
+        block.clear();
         super.close();
     }
 
@@ -89,6 +128,10 @@ public class Join extends Operator {
         // some code goes here
         childIt1.rewind();
         childIt2.rewind();
+        block.clear();
+        blockPos = 0;
+        firstBlock = true;
+        t2 = null;
     }
 
     /**
@@ -110,22 +153,15 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     
-    private int num1 = 0, num2 = 0;
-    
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if(!fetched)
-        {
-            fetched = true;
-            if(!childIt1.hasNext())
-                return null;
-            t1 = childIt1.next();
-        }
         while(true)
         {
-            while(childIt2.hasNext())
+            if(block.isEmpty() && !nextBlock())
+                return null;
+            while(t2 != null && blockPos < block.size())
             {
-                Tuple t2 = childIt2.next();
+                Tuple t1 = block.get(blockPos++);
                 if(predicate.filter(t1, t2))
                 {
                     Tuple newTuple = new Tuple(tupleDesc);
@@ -143,13 +179,43 @@ public class Join extends Operator {
                     return newTuple;
                 }
             }
-            childIt2.rewind();
-            if(!childIt1.hasNext())
-                return null;
-            t1 = childIt1.next();
+            if(childIt2.hasNext())
+            {
+                t2 = childIt2.next();
+                blockPos = 0;
+            }
+            else
+            {
+                // the inner relation is done with this block
+                block.clear();
+                t2 = null;
+            }
         }
     }
 
+    /**
+     * Read the next block of outer tuples and rewind the inner relation if
+     * it has been scanned for a previous block.
+     * 
+     * @return false if the outer relation is exhausted
+     */
+    private boolean nextBlock() throws TransactionAbortedException, DbException
+    {
+        int max = blockTuples(childIt1.getTupleDesc(), blockSize);
+        while(block.size() < max && childIt1.hasNext())
+        {
+            block.add(childIt1.next());
+        }
+        if(block.isEmpty())
+            return false;
+        if(!firstBlock)
+            childIt2.rewind();
+        firstBlock = false;
+        blockPos = 0;
+        t2 = null;
+        return true;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         // some code goes here
@@ -68,7 +68,25 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
         
-        if(lj.p.equals(Predicate.Op.EQUALS))
+        if(lj instanceof LogicalSubplanJoinNode
+                && ((LogicalSubplanJoinNode) lj).kind != LogicalSubplanJoinNode.Kind.JOIN)
+        {
+            // IN and NOT IN only test whether an outer tuple has a match
+            j = new HashSemiJoin(p, plan1, plan2,
+                    ((LogicalSubplanJoinNode) lj).kind == LogicalSubplanJoinNode.Kind.ANTI);
+        }
+        else if(SortMergeJoin.supports(lj.p) && SortMergeJoin.isSortedOn(plan1, t1id)
+                && SortMergeJoin.isSortedOn(plan2, t2id))
+        {
+            // both inputs are ordered already, so merge them in one pass
+            j = new SortMergeJoin(p, plan1, plan2);
+        }
+        else if(lj.p.equals(Predicate.Op.EQUALS) && IndexNestedLoopJoin.canProbe(plan2, t2id))
+        {
+            // look the outer keys up in the B+ tree of the inner table
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        }
+        else if(lj.p.equals(Predicate.Op.EQUALS))
         {
             j = new HashEquiJoin(p, plan1, plan2);
         }
@@ -118,16 +136,71 @@ public class JoinOptimizer {
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
             
+            if(j.p == Predicate.Op.EQUALS && innerIndex(j) != null)
+            {
+                // IndexNestedLoopJoin: one descent of the tree per outer tuple
+                return cost1 + card1 * probeCost(innerIndex(j), cost2)
+                        + card1 * Math.log(card2 + 1) / Math.log(2);
+            }
             if(j.p == Predicate.Op.EQUALS)  // HashEquiJoin
             {
                 return cost1 + cost2 + card1 * card2;   // You may see my writeup for more details.
             }
             
-            // Natural Join
-            return cost1 + card1 * cost2 + card1 * card2;
+            // Block nested-loops join: one scan of the inner relation per
+            // block of outer tuples
+            double blocks = Math.ceil((double) card1 / blockTuples(j));
+            return cost1 + blocks * cost2 + card1 * card2;
         }
     }
 
+    /**
+     * Return the B+ tree of the inner table of the given join if it is keyed
+     * on the join field, or null.
+     */
+    private BTreeFile innerIndex(LogicalJoinNode j) {
+        Integer tableId = p == null ? null : p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile))
+            return null;
+        BTreeFile index = (BTreeFile) f;
+        try {
+            if (index.getTupleDesc().fieldNameToIndex(j.f2PureName) != index.keyField())
+                return null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * Estimate the cost of one lookup in the given B+ tree, as the number of
+     * pages from the root to a leaf times the cost of reading one page of a
+     * scan costing scanCost.
+     */
+    private static double probeCost(BTreeFile index, double scanCost) {
+        int pages = Math.max(1, index.numPages());
+        Type keyType = index.getTupleDesc().getFieldType(index.keyField());
+        double fanout = Math.max(2, BufferPool.getPageSize()
+                / (double) (keyType.getLen() + BTreePage.INDEX_SIZE));
+        double height = 1 + Math.ceil(Math.log(pages) / Math.log(fanout));
+        return height * scanCost / pages;
+    }
+
+    /**
+     * Return the number of tuples of the outer relation of the given join
+     * that fit in one block of a nested-loops Join.
+     */
+    private int blockTuples(LogicalJoinNode j) {
+        Integer tableId = p == null ? null : p.getTableId(j.t1Alias);
+        if (tableId == null)
+            return 1;
+        return Join.blockTuples(Database.getCatalog().getTupleDesc(tableId),
+                Join.DEFAULT_BLOCK_SIZE);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -331,12 +404,13 @@ public class JoinOptimizer {
 
         if (this.p.getTableId(j.t1Alias) == null)
             throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
+        // the inner side of a subquery join is not a table
+        if (j.t2Alias != null && this.p.getTableId(j.t2Alias) == null)
             throw new ParsingException("Unknown table " + j.t2Alias);
 
         String table1Name = Database.getCatalog().getTableName(
                 this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
+        String table2Name = j.t2Alias == null ? null : Database.getCatalog().getTableName(
                 this.p.getTableId(j.t2Alias));
         String table1Alias = j.t1Alias;
         String table2Alias = j.t2Alias;
@@ -13,6 +13,8 @@ public class JoinPredicate implements Serializable {
     private int fieldId1;
     private int fieldId2;
     private Predicate.Op op;
+    // the comparison compiled for the types of the fields
+    private transient PredicateCompiler.PairTest test;
     
     /**
      * Constructor -- create a new predicate over two fields of two tuples.
@@ -43,7 +45,9 @@ public class JoinPredicate implements Serializable {
      */
     public boolean filter(Tuple t1, Tuple t2) {
         // some code goes here
-        return new Predicate(fieldId1, op, t2.getField(fieldId2)).filter(t1);
+        if (test == null)
+            test = PredicateCompiler.compile(this, t1.getTupleDesc(), t2.getTupleDesc());
+        return test.test(t1, t2);
     }
     
     public int getField1()
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that implements LIMIT ... OFFSET. It skips the first
+ * offset tuples of its child and returns at most limit of the ones after
+ * them. It stops reading its child as soon as the limit is reached, and
+ * closes it then, so that no further tuples are read; the locks taken on
+ * the pages already read are held until the transaction completes.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int limit;
+    private final int offset;
+
+    private transient int skipped = 0;
+    private transient int returned = 0;
+    private transient boolean childClosed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param offset
+     *            the number of tuples of the child to skip first
+     * @param child
+     *            the tuples to limit
+     */
+    public Limit(int limit, int offset, DbIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("negative limit or offset");
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    /**
+     * @return the maximum number of tuples this operator returns
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the number of tuples of the child this operator skips
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        childClosed = false;
+        skipped = 0;
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (!childClosed)
+            child.close();
+        childClosed = true;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (childClosed)
+            child.open();
+        else
+            child.rewind();
+        childClosed = false;
+        skipped = 0;
+        returned = 0;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (returned >= limit) {
+            if (!childClosed)
+                child.close();
+            childClosed = true;
+            return null;
+        }
+        while (skipped < offset && child.hasNext()) {
+            child.next();
+            skipped++;
+        }
+        if (!child.hasNext())
+            return null;
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+}
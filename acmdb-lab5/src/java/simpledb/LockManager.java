@@ -0,0 +1,345 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LockManager keeps the transactional locks used by the BufferPool.
+ * <p>
+ * A lock can be taken on any object with a proper equals() and hashCode(),
+ * e.g. a table (see tableKey()), a PageId or a RecordId, so that the same
+ * manager serves every level of the table/page/tuple hierarchy. Besides SHARED
+ * and EXCLUSIVE it knows the intention modes of multi-granularity locking: a
+ * transaction that modifies single tuples of a page takes an
+ * INTENTION_EXCLUSIVE lock on the table and the page and EXCLUSIVE locks on
+ * the tuples, so several such transactions can work on the same page while a
+ * transaction reading the whole page or table still waits for them.
+ * <p>
+ * Every lock is held until it is released explicitly, normally when its
+ * transaction completes. A transaction that cannot get a lock within a
+ * randomized timeout is aborted, which also breaks deadlocks.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+	public static final int NONE = 0;
+	public static final int SHARED = 1;
+	public static final int EXCLUSIVE = 2;
+	public static final int INTENTION_SHARED = 3;
+	public static final int INTENTION_EXCLUSIVE = 4;
+	public static final int SHARED_INTENTION_EXCLUSIVE = 5;
+
+	private static final int WAIT_TIME = 50;
+	private static final int ABORT_BASE_TIME = 200;
+	private static final int ABORT_VAR_TIME = 200;	// abort time in [Base, Base + Var] millisecond
+
+	private static final String[] NAMES = {"NONE", "S", "X", "IS", "IX", "SIX"};
+
+	// COMPATIBLE[held][requested]
+	private static final boolean[][] COMPATIBLE = {
+			//         NONE   S      X      IS     IX     SIX
+			/* NONE */ {true, true,  true,  true,  true,  true },
+			/* S    */ {true, true,  false, true,  false, false},
+			/* X    */ {true, false, false, false, false, false},
+			/* IS   */ {true, true,  false, true,  true,  true },
+			/* IX   */ {true, false, false, true,  true,  false},
+			/* SIX  */ {true, false, false, true,  false, false}
+	};
+
+	// COMBINE[held][requested] is the weakest mode covering both
+	private static final int[][] COMBINE = {
+			/* NONE */ {NONE, SHARED, EXCLUSIVE, INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE},
+			/* S    */ {SHARED, SHARED, EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE},
+			/* X    */ {EXCLUSIVE, EXCLUSIVE, EXCLUSIVE, EXCLUSIVE, EXCLUSIVE, EXCLUSIVE},
+			/* IS   */ {INTENTION_SHARED, SHARED, EXCLUSIVE, INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE},
+			/* IX   */ {INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE, INTENTION_EXCLUSIVE, INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE},
+			/* SIX  */ {SHARED_INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE}
+	};
+
+	/**
+	 * The holders of the lock on one object. Almost every lock has a single holder,
+	 * so they are kept in two small parallel arrays instead of a map.
+	 */
+	private static class LockEntry
+	{
+		TransactionId[] tids = new TransactionId[1];
+		int[] modes = new int[1];
+		int size = 0;
+
+		int modeOf(TransactionId tid)
+		{
+			for(int i = 0; i < size; i++)
+			{
+				if(tids[i].equals(tid))
+					return modes[i];
+			}
+			return NONE;
+		}
+
+		boolean compatible(TransactionId tid, int mode)
+		{
+			for(int i = 0; i < size; i++)
+			{
+				if(!tids[i].equals(tid) && !COMPATIBLE[modes[i]][mode])
+					return false;
+			}
+			return true;
+		}
+
+		void set(TransactionId tid, int mode)
+		{
+			for(int i = 0; i < size; i++)
+			{
+				if(tids[i].equals(tid))
+				{
+					modes[i] = mode;
+					return;
+				}
+			}
+			if(size == tids.length)
+			{
+				tids = Arrays.copyOf(tids, size * 2);
+				modes = Arrays.copyOf(modes, size * 2);
+			}
+			tids[size] = tid;
+			modes[size] = mode;
+			size++;
+		}
+
+		void remove(TransactionId tid)
+		{
+			for(int i = 0; i < size; i++)
+			{
+				if(tids[i].equals(tid))
+				{
+					size--;
+					tids[i] = tids[size];
+					modes[i] = modes[size];
+					tids[size] = null;
+					return;
+				}
+			}
+		}
+	}
+
+	/** The key locked to lock a whole table. */
+	private static class TableKey
+	{
+		final int tableId;
+
+		TableKey(int id)
+		{
+			tableId = id;
+		}
+
+		public boolean equals(Object o)
+		{
+			return o instanceof TableKey && ((TableKey)o).tableId == tableId;
+		}
+
+		public int hashCode()
+		{
+			return tableId;
+		}
+
+		public String toString()
+		{
+			return "table " + tableId;
+		}
+	}
+
+	private final Map<Object, LockEntry> locks = new HashMap<>();
+	private final Map<TransactionId, HashSet<Object>> tidToLocks = new HashMap<>();
+	// number of page locks each transaction holds per table, to decide on escalation
+	private final Map<TransactionId, HashMap<Integer, Integer>> tidToPageCount = new HashMap<>();
+	private final Random rand = new Random();
+
+	/**
+	 * Acquire a lock on obj for tid, blocking while it conflicts with locks held by
+	 * other transactions. If tid already holds a lock on obj, the lock is upgraded to
+	 * a mode covering both the old and the requested one.
+	 *
+	 * @param tid the transaction requesting the lock
+	 * @param obj the object to lock
+	 * @param mode the requested lock mode
+	 * @throws TransactionAbortedException if the lock cannot be granted in time
+	 */
+	public synchronized void acquire(TransactionId tid, Object obj, int mode)
+			throws TransactionAbortedException
+	{
+		long stTime = System.currentTimeMillis();
+		long timeout = ABORT_BASE_TIME + rand.nextInt(ABORT_VAR_TIME);
+		while(!tryAcquire(tid, obj, mode))
+		{
+			if(System.currentTimeMillis() - stTime > timeout)
+			{
+				throw new TransactionAbortedException();
+			}
+			try
+			{
+				wait(WAIT_TIME);
+			} catch(InterruptedException e) {}
+		}
+	}
+
+	/**
+	 * Acquire a lock on obj for tid if it can be granted right away.
+	 *
+	 * @return true if the lock was granted
+	 */
+	public synchronized boolean tryAcquire(TransactionId tid, Object obj, int mode)
+	{
+		LockEntry entry = locks.get(obj);
+		if(entry == null)
+		{
+			entry = new LockEntry();
+			entry.set(tid, mode);
+			locks.put(obj, entry);
+			addHeld(tid, obj);
+			return true;
+		}
+		int held = entry.modeOf(tid);
+		int want = COMBINE[held][mode];
+		if(want == held)
+			return true;
+		if(!entry.compatible(tid, want))
+			return false;
+		entry.set(tid, want);
+		if(held == NONE)
+			addHeld(tid, obj);
+		return true;
+	}
+
+	/** Release the lock tid holds on obj, if any. */
+	public synchronized void release(TransactionId tid, Object obj)
+	{
+		HashSet<Object> held = tidToLocks.get(tid);
+		if(held == null || !held.remove(obj))
+			return;
+		if(held.isEmpty())
+			tidToLocks.remove(tid);
+		if(obj instanceof PageId)
+			countPage(tid, (PageId)obj, -1);
+		removeHolder(tid, obj);
+		notifyAll();
+	}
+
+	/** Weaken the lock tid holds on obj to mode, which must be covered by the held mode. */
+	public synchronized void downgrade(TransactionId tid, Object obj, int mode)
+	{
+		LockEntry entry = locks.get(obj);
+		if(entry == null || entry.modeOf(tid) == NONE)
+			return;
+		entry.set(tid, mode);
+		notifyAll();
+	}
+
+	/** Release all the locks held by tid. */
+	public synchronized void releaseAll(TransactionId tid)
+	{
+		HashSet<Object> held = tidToLocks.remove(tid);
+		tidToPageCount.remove(tid);
+		if(held == null)
+			return;
+		for(Object obj : held)
+			removeHolder(tid, obj);
+		notifyAll();
+	}
+
+	/** Return true if tid holds a lock of any mode on obj. */
+	public synchronized boolean holdsLock(TransactionId tid, Object obj)
+	{
+		HashSet<Object> held = tidToLocks.get(tid);
+		return held != null && held.contains(obj);
+	}
+
+	/** Return true if a lock in the given mode on obj would conflict with the lock of another transaction. */
+	public synchronized boolean conflicts(TransactionId tid, Object obj, int mode)
+	{
+		LockEntry entry = locks.get(obj);
+		return entry != null && !entry.compatible(tid, mode);
+	}
+
+	/** Return the mode of the lock tid holds on obj, or NONE. */
+	public synchronized int getMode(TransactionId tid, Object obj)
+	{
+		LockEntry entry = locks.get(obj);
+		if(entry == null)
+			return NONE;
+		return entry.modeOf(tid);
+	}
+
+	/** Return the objects tid holds locks on. */
+	public synchronized List<Object> getLocks(TransactionId tid)
+	{
+		HashSet<Object> held = tidToLocks.get(tid);
+		if(held == null)
+			return new ArrayList<>();
+		return new ArrayList<>(held);
+	}
+
+	/** Return the number of pages of the given table tid holds locks on. */
+	public synchronized int numPageLocks(TransactionId tid, int tableId)
+	{
+		HashMap<Integer, Integer> count = tidToPageCount.get(tid);
+		if(count == null || !count.containsKey(tableId))
+			return 0;
+		return count.get(tableId);
+	}
+
+	/** Return the number of objects currently locked by any transaction. */
+	public synchronized int numLocks()
+	{
+		return locks.size();
+	}
+
+	/** Return the printable name of a lock mode. */
+	public static String modeName(int mode)
+	{
+		return NAMES[mode];
+	}
+
+	/** Return the key to lock the table with the given id. */
+	public static Object tableKey(int tableId)
+	{
+		return new TableKey(tableId);
+	}
+
+	private void addHeld(TransactionId tid, Object obj)
+	{
+		HashSet<Object> held = tidToLocks.get(tid);
+		if(held == null)
+		{
+			held = new HashSet<>();
+			tidToLocks.put(tid, held);
+		}
+		held.add(obj);
+		if(obj instanceof PageId)
+			countPage(tid, (PageId)obj, 1);
+	}
+
+	private void countPage(TransactionId tid, PageId pid, int delta)
+	{
+		HashMap<Integer, Integer> count = tidToPageCount.get(tid);
+		if(count == null)
+		{
+			count = new HashMap<>();
+			tidToPageCount.put(tid, count);
+		}
+		int n = count.getOrDefault(pid.getTableId(), 0) + delta;
+		if(n == 0)
+			count.remove(pid.getTableId());
+		else
+			count.put(pid.getTableId(), n);
+	}
+
+	private void removeHolder(TransactionId tid, Object obj)
+	{
+		LockEntry entry = locks.get(obj);
+		if(entry == null)
+			return;
+		entry.remove(tid);
+		if(entry.size == 0)
+			locks.remove(obj);
+	}
+}
@@ -2,9 +2,11 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -29,12 +31,17 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAsc = new Vector<Boolean>();
+    private int limit = -1, offset = 0;
+    // the subqueries of EXISTS tests, and whether each is negated
+    private Vector<DbIterator> exists = new Vector<DbIterator>();
+    private Vector<Boolean> existsNegated = new Vector<Boolean>();
     private String query;
 //    private Query owner;
 
@@ -146,16 +153,39 @@ public class LogicalPlan {
      *      or is not in one of the tables added via {@link #addScan}
      */
     public void addJoin( String joinField1, DbIterator joinField2, Predicate.Op pred) throws ParsingException {
+        addJoin(joinField1, joinField2, pred, LogicalSubplanJoinNode.Kind.JOIN);
+    }
+
+    /** Add a join between a field and a subquery of the given kind: a
+     *  semi-join keeps the tuples with a match in the subquery once, as
+     *  field IN (subquery) does, and an anti-join the tuples without one,
+     *  as field NOT IN (subquery) does.
+     *  @see #addJoin(String, DbIterator, Predicate.Op)
+     */
+    public void addJoin( String joinField1, DbIterator joinField2, Predicate.Op pred,
+            LogicalSubplanJoinNode.Kind kind) throws ParsingException {
         joinField1 = disambiguateName(joinField1);
 
         String table1 = joinField1.split("[.]")[0];
         String pureField = joinField1.split("[.]")[1];
 
-        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1,pureField, joinField2, pred);
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1,pureField, joinField2, pred, kind);
         System.out.println("Added subplan join on " + joinField1);
         joins.addElement(lj);
     }
 
+    /** Add an EXISTS test of a subquery, which does not refer to the tables
+     *  of the query: the query returns its tuples only if the subquery
+     *  returns any, or only if it returns none if the test is negated.
+     *  @param subplan the plan of the subquery
+     *  @param negated true for NOT EXISTS
+     */
+    public void addExists(DbIterator subplan, boolean negated) {
+        System.out.println("Added " + (negated ? "NOT EXISTS" : "EXISTS") + " subquery");
+        exists.addElement(subplan);
+        existsNegated.addElement(negated);
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -186,36 +216,68 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  All aggregates of the query are computed together, over
+        the groups of all the GROUP BY fields added.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
+        if (aggregateIndex(op, afield) < 0) {
+            aggOps.addElement(op);
+            aggFields.addElement(afield);
+        }
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to group the aggregates of the query by.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** @return the position of an aggregate among the aggregates added, or -1 */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equals(op) && aggFields.elementAt(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Fields added
+        later break the ties of the fields added before them.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAsc.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Return at most limit result tuples, after skipping the first offset ones.
+        @param limit the maximum number of tuples to return
+        @param offset the number of tuples to skip
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void setLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -304,6 +366,8 @@ public class LogicalPlan {
             filterSelectivities.put(table.alias, 1.0);
 
         }
+        // the filters of scans of heap files, which are pushed into the scans
+        HashMap<String,ArrayList<Predicate>> scanFilters = new HashMap<String,ArrayList<Predicate>>();
         Iterator<LogicalFilterNode> filterIt = filters.iterator();
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -332,7 +396,13 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (isHeapScan(subplan)) {
+                if (!scanFilters.containsKey(lf.tableAlias))
+                    scanFilters.put(lf.tableAlias, new ArrayList<Predicate>());
+                scanFilters.get(lf.tableAlias).add(p);
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -341,6 +411,26 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+        // scans of heap files only return the tuples passing their filters,
+        // and, where it pays off, only the columns used above them
+        int threads = Exchange.getThreads();
+        HashSet<String> usedFields = usedFields();
+        for (java.util.Map.Entry<String, DbIterator> e : subplanMap.entrySet()) {
+            if (!isHeapScan(e.getValue()))
+                continue;
+            SeqScan scan = (SeqScan) e.getValue();
+            List<Predicate> preds = scanFilters.get(e.getKey());
+            int[] columns = usedFields == null ? null : usedColumns(scan.getTupleDesc(), usedFields);
+            if (columns != null && !pushesColumns(scan, columns, threads))
+                columns = null;
+            if (preds != null || columns != null)
+                e.setValue(scan.pushDown(preds == null ? new ArrayList<Predicate>() : preds, columns));
+        }
+
+        // large scans are split into ranges of pages read by a thread each
+        for (java.util.Map.Entry<String, DbIterator> e : subplanMap.entrySet())
+            e.setValue(Gather.parallelScan(e.getValue(), threads));
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -377,6 +467,9 @@ public class LogicalPlan {
             
             DbIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
+            if (j instanceof HashEquiJoin)
+                ((HashEquiJoin) j).setBuildEstimate(
+                        OperatorCardinality.estimateCardinality(plan2, tableMap, baseTableStats));
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -400,6 +493,12 @@ public class LogicalPlan {
         }
         
         DbIterator node =  (DbIterator)(subplanMap.entrySet().iterator().next().getValue());
+        node = parallelJoins(node, baseTableStats);
+
+        // an EXISTS test keeps all the tuples or none of them, reading only
+        // the first tuple of its subquery
+        for (int i = 0; i < exists.size(); i++)
+            node = new HashSemiJoin(null, node, exists.elementAt(i), existsNegated.elementAt(i));
 
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
@@ -407,7 +506,7 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                outFields.add(groupByFields.size() + aggregateIndex(si.aggOp, si.fname));
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -419,16 +518,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -452,12 +552,25 @@ public class LogicalPlan {
         }
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            DbIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggFields.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.elementAt(i));
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                // all aggregates in one pass over the child, a group at a
+                // time if it is sorted on a group field, and split among
+                // threads if it is a scan
+                if (StreamAggregate.canStream(node, gfields))
+                    aggNode = new StreamAggregate(node, afields, gfields, aops);
+                else
+                    aggNode = new Aggregate(node, afields, gfields, aops,
+                                            AggregateSpill.DEFAULT_MEMORY, threads);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -467,10 +580,27 @@ public class LogicalPlan {
         }
         
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                asc[i] = oByAsc.elementAt(i);
+            }
+            if (limit >= 0)
+                // only the first offset + limit tuples of the ordering are needed
+                node = new TopN(fields, asc, (int) Math.min(Integer.MAX_VALUE, (long) limit + offset), node);
+            else
+                node = new OrderBy(fields, asc, node);
         }
 
-        return new Project(outFields, outTypes, node);
+        if (limit >= 0) {
+            node = new Limit(limit, offset, node);
+        }
+
+        node = new Project(outFields, outTypes, node);
+        if (PipelineCompiler.isEnabled())
+            node = PipelineCompiler.compile(node);
+        return node;
     }
 
     public static void main(String argv[]) {
@@ -535,4 +665,125 @@ public class LogicalPlan {
        
     }
 
+    private static boolean isHeapScan(DbIterator it) {
+        return it instanceof SeqScan
+                && Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId()) instanceof HeapFile;
+    }
+
+    /**
+     * @return the fields the query reads above the scans of its tables, by
+     *         their qualified names, or null if it reads all of them
+     */
+    private HashSet<String> usedFields() {
+        HashSet<String> used = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList)
+            used.add(si.fname);
+        used.addAll(aggFields);
+        used.addAll(groupByFields);
+        used.addAll(oByFields);
+        for (LogicalJoinNode j : joins) {
+            used.add(j.f1QuantifiedName);
+            // the inner side of a subquery join is the subquery
+            if (j.f2QuantifiedName != null)
+                used.add(j.f2QuantifiedName);
+        }
+        for (String f : used) {
+            String[] parts = f.split("[.]");
+            if (parts.length != 2 || parts[0].equals("null") || parts[1].equals("*"))
+                return null;
+        }
+        return used;
+    }
+
+    /**
+     * @return the indexes of the columns of a scan the query reads, or null
+     *         if it reads all of them
+     */
+    private static int[] usedColumns(TupleDesc td, HashSet<String> used) {
+        ArrayList<Integer> columns = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++)
+            if (used.contains(td.getFieldName(i)))
+                columns.add(i);
+        if (columns.isEmpty() || columns.size() == td.numFields())
+            return null;
+        int[] rtn = new int[columns.size()];
+        for (int i = 0; i < rtn.length; i++)
+            rtn[i] = columns.get(i);
+        return rtn;
+    }
+
+    /**
+     * @return true if a scan should return only the given columns of its
+     *         table. Each tuple it returns alone is then a new tuple, so this
+     *         only pays off if its consumer reads batches, as the threads of
+     *         a parallel scan and the aggregate of a query of one table do,
+     *         or if the columns are at most half of a row.
+     */
+    private boolean pushesColumns(SeqScan scan, int[] columns, int threads) {
+        if (columns.length * 2 <= scan.getTupleDesc().numFields())
+            return true;
+        if (hasAgg && joins.isEmpty() && tables.size() == 1)
+            return true;
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return threads > 1 && ((HeapFile) file).numPages() >= Exchange.MIN_PARALLEL_PAGES;
+    }
+
+    /**
+     * Run the hash joins of a plan whose outer child is a Gather in parallel:
+     * the children of the Gather are joined by a thread each. The inner child
+     * is broadcast to every thread if it is small, see {@link #broadcasts};
+     * otherwise both children are repartitioned, so that each thread builds
+     * a hash table of its own partition only. The joins are gathered in turn,
+     * so that joins above can be parallelized likewise.
+     */
+    private DbIterator parallelJoins(DbIterator plan, Map<String,TableStats> stats) {
+        if (!(plan instanceof Operator) || plan instanceof Exchange)
+            return plan;
+        Operator op = (Operator) plan;
+        DbIterator[] children = op.getChildren();
+        for (int i = 0; i < children.length; i++)
+            children[i] = parallelJoins(children[i], stats);
+        op.setChildren(children);
+        if (!(op instanceof HashEquiJoin) || !(children[0] instanceof Gather))
+            return op;
+        JoinPredicate p = ((HashEquiJoin) op).getJoinPredicate();
+        DbIterator[] outer = ((Gather) children[0]).getChildren();
+        int n = outer.length;
+        int card = OperatorCardinality.estimateCardinality(children[1], tableMap, stats);
+        DbIterator[] inner;
+        int buildCard;
+        if (!(children[1] instanceof Gather) && broadcasts(children[1].getTupleDesc(), card, n)) {
+            inner = Broadcast.create(new DbIterator[] { children[1] }, n);
+            buildCard = card;
+        } else {
+            DbIterator[] inputs = children[1] instanceof Gather
+                    ? ((Gather) children[1]).getChildren() : new DbIterator[] { children[1] };
+            outer = Repartition.create(outer, p.getField1(), n);
+            inner = Repartition.create(inputs, p.getField2(), n);
+            buildCard = card / n + 1;
+        }
+        DbIterator[] joins = new DbIterator[n];
+        for (int i = 0; i < n; i++) {
+            HashEquiJoin join = new HashEquiJoin(p, outer[i], inner[i]);
+            join.setBuildEstimate(buildCard);
+            joins[i] = join;
+        }
+        return new Gather(joins);
+    }
+
+    /**
+     * Whether the inner child of a parallel hash join is small enough to
+     * broadcast to each of its joins: the hash tables the joins build of
+     * their copies must fit together in the memory budget of one join.
+     *
+     * @param td
+     *            the TupleDesc of the inner child
+     * @param card
+     *            its estimated number of tuples
+     * @param joins
+     *            the number of joins
+     */
+    static boolean broadcasts(TupleDesc td, int card, int joins) {
+        return (long) card * td.getSize() * joins <= HashEquiJoin.DEFAULT_MEMORY;
+    }
 }
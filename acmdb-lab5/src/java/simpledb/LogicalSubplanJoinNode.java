@@ -6,10 +6,22 @@ package simpledb;
  */
 public class LogicalSubplanJoinNode extends LogicalJoinNode {
     
+    /** How the tuples of the subplan are matched: JOIN returns each matching
+     * pair, SEMI each outer tuple with a match once (IN), ANTI each outer
+     * tuple without one (NOT IN) */
+    public enum Kind { JOIN, SEMI, ANTI }
+
     /** The subplan (used on the inner) of the join */
     DbIterator subPlan;
+
+    /** How the subplan is joined */
+    Kind kind = Kind.JOIN;
     
     public LogicalSubplanJoinNode(String table1, String joinField1, DbIterator sp, Predicate.Op pred) {
+        this(table1, joinField1, sp, pred, Kind.JOIN);
+    }
+
+    public LogicalSubplanJoinNode(String table1, String joinField1, DbIterator sp, Predicate.Op pred, Kind kind) {
         t1Alias = table1;
         String[] tmps = joinField1.split("[.]");
         if (tmps.length>1)
@@ -19,6 +31,7 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         f1QuantifiedName=t1Alias+"."+f1PureName;
         subPlan = sp;
         p = pred;
+        this.kind = kind;
     }
     
     @Override public int hashCode() {
@@ -30,11 +43,11 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
         
-        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
+        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan) && ((LogicalSubplanJoinNode)o).kind == kind);
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
-        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p, kind);
         return j2;
     }
 
@@ -6,8 +6,12 @@ import java.util.NoSuchElementException;
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
  * <code>open</code> and <code>readNext</code>.
+ * <p>
+ * Operators also return batches of tuples through <code>nextBatch</code>,
+ * which by default collects the tuples of <code>next</code>; operators which
+ * can work on a batch at a time override it.
  */
-public abstract class Operator implements DbIterator {
+public abstract class Operator implements DbIterator, BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -44,6 +48,19 @@ public abstract class Operator implements DbIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    /**
+     * Returns the next batch of at most TupleBatch.DEFAULT_SIZE tuples of
+     * this operator, or null if there are no more.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(getTupleDesc());
+        while (!batch.isFull() && hasNext())
+            batch.add(next());
+        return batch;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
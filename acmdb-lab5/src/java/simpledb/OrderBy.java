@@ -4,21 +4,35 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples are sorted in memory if they fit in the memory budget. Otherwise
+ * the child's tuples are cut into sorted runs of the budget's size, which are
+ * written to SpillFiles and then merged, at most MAX_MERGE_RUNS at a time.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of bytes of tuples sorted in memory. */
+    public static final int DEFAULT_MEMORY = 16 << 20;
+
+    /** The maximum number of runs merged in one pass. */
+    public static final int MAX_MERGE_RUNS = 64;
+
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
+    private boolean[] asc;
     private String orderByFieldName;
+    private final int memory;
     private Iterator<Tuple> it;
-    private boolean asc;
+    private transient ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private transient Merge merge = null;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,61 +41,183 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting on several fields: tuples are
+     * ordered by the first field, ties by the second field, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        this(orderbyFields, asc, child, DEFAULT_MEMORY);
+    }
+
+    /**
+     * Creates a new OrderBy node with an explicit memory budget.
+     *
+     * @see #OrderBy(int[], boolean[], DbIterator)
+     * @param memory
+     *            the number of bytes of tuples to sort in memory before
+     *            writing them to disk as a sorted run.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child, int memory) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one sort order per field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.memory = memory;
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
+    /**
+     * @return the fields the tuples are sorted on, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each field of getOrderByFields, true if it is ascending
+     */
+    public boolean[] getAscending() {
+        return asc.clone();
+    }
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        clear();
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // sort as many tuples as fit in memory, and write them out as a run
+        // when they don't
+        TupleComparator cmp = new TupleComparator(orderByFields, asc);
+        long bytes = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            long size = t.getTupleDesc().getSize();
+            if (bytes + size > memory && !childTups.isEmpty()) {
+                runs.add(writeRun(childTups, cmp));
+                childTups.clear();
+                bytes = 0;
+            }
+            childTups.add(t);
+            bytes += size;
+        }
+        Collections.sort(childTups, cmp);
+        if (!runs.isEmpty()) {
+            if (!childTups.isEmpty())
+                runs.add(writeRun(childTups, cmp));
+            childTups.clear();
+            // merge the runs down to few enough to merge while reading
+            while (runs.size() > MAX_MERGE_RUNS)
+                mergePass();
+        }
+        start();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        start();
+    }
+
+    /** Start reading the sorted tuples from the beginning. */
+    private void start() throws DbException, TransactionAbortedException {
+        if (merge != null)
+            merge.close();
+        merge = null;
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+        } else {
+            it = null;
+            merge = new Merge(runs);
+        }
+    }
+
+    private void clear() {
+        it = null;
+        if (merge != null)
+            merge.close();
+        merge = null;
+        childTups.clear();
+        for (SpillFile run : runs)
+            run.delete();
+        runs.clear();
+    }
+
+    private SpillFile writeRun(ArrayList<Tuple> tups, TupleComparator cmp)
+            throws DbException {
+        Collections.sort(tups, cmp);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : tups)
+            run.add(t);
+        return run;
+    }
+
+    /**
+     * Merge the runs in groups of MAX_MERGE_RUNS, replacing each group by a
+     * single run.
+     */
+    private void mergePass() throws DbException, TransactionAbortedException {
+        ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+        for (int i = 0; i < runs.size(); i += MAX_MERGE_RUNS) {
+            List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + MAX_MERGE_RUNS));
+            SpillFile out = new SpillFile(td);
+            Merge m = new Merge(group);
+            Tuple t;
+            while ((t = m.next()) != null)
+                out.add(t);
+            m.close();
+            for (SpillFile run : group)
+                run.delete();
+            merged.add(out);
+        }
+        runs = merged;
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null)
+            return merge.next();
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -98,26 +234,61 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * A k-way merge of sorted runs, which keeps the next tuple of each run in
+     * a heap. Tuples that compare equal come out in the order of their runs,
+     * so the sort is stable.
+     */
+    private class Merge {
+        private final ArrayList<DbIterator> sources = new ArrayList<DbIterator>();
+        private final PriorityQueue<Head> heap;
+
+        Merge(List<SpillFile> runs) throws DbException, TransactionAbortedException {
+            final TupleComparator cmp = new TupleComparator(orderByFields, asc);
+            heap = new PriorityQueue<Head>(Math.max(1, runs.size()), new Comparator<Head>() {
+                public int compare(Head a, Head b) {
+                    int c = cmp.compare(a.tuple, b.tuple);
+                    return c != 0 ? c : Integer.compare(a.run, b.run);
+                }
+            });
+            for (SpillFile run : runs) {
+                DbIterator source = run.iterator();
+                source.open();
+                sources.add(source);
+                advance(sources.size() - 1);
+            }
+        }
+
+        private void advance(int run) throws DbException, TransactionAbortedException {
+            DbIterator source = sources.get(run);
+            if (source.hasNext())
+                heap.add(new Head(source.next(), run));
+        }
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        /** @return the next tuple in the ordering, or null at the end */
+        Tuple next() throws DbException, TransactionAbortedException {
+            Head h = heap.poll();
+            if (h == null)
+                return null;
+            advance(h.run);
+            return h.tuple;
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        void close() {
+            for (DbIterator source : sources)
+                source.close();
+            heap.clear();
+        }
     }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+    private static class Head {
+        final Tuple tuple;
+        final int run;
+
+        Head(Tuple tuple, int run) {
+            this.tuple = tuple;
+            this.run = run;
+        }
     }
-    
+
 }
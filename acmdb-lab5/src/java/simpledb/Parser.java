@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -50,6 +52,17 @@ public class Parser {
         } else if (wx.getOperator().equals("OR")) {
             throw new simpledb.ParsingException(
                     "OR expressions currently unsupported.");
+        } else if (wx.getOperator().equals("NOT")) {
+            // NOT EXISTS (q) and NOT (f IN (q))
+            ZExp negated = wx.getOperand(0);
+            if (!(negated instanceof ZExpression)
+                    || !isSubqueryTest(((ZExpression) negated).getOperator())) {
+                throw new simpledb.ParsingException(
+                        "NOT is only supported before IN and EXISTS.");
+            }
+            processSubqueryTest(tid, (ZExpression) negated, lp, true);
+        } else if (isSubqueryTest(wx.getOperator())) {
+            processSubqueryTest(tid, wx, lp, false);
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -132,6 +145,51 @@ public class Parser {
 
     }
 
+    private static boolean isSubqueryTest(String op) {
+        return op.equals("IN") || op.equals("NOT IN") || op.equals("EXISTS");
+    }
+
+    /**
+     * Add an IN, NOT IN or EXISTS test of a subquery to the plan: IN as a
+     * semi-join of the field with the first field of the subquery, NOT IN as
+     * an anti-join, and EXISTS as a test of whether the subquery returns any
+     * tuple. Subqueries cannot refer to the tables of the enclosing query.
+     */
+    void processSubqueryTest(TransactionId tid, ZExpression wx, LogicalPlan lp,
+            boolean negated) throws simpledb.ParsingException {
+        String op = wx.getOperator();
+        if (op.equals("NOT IN")) {
+            op = "IN";
+            negated = !negated;
+        }
+        ZExp query = wx.getOperand(wx.nbOperands() - 1);
+        if (!(query instanceof ZQuery)) {
+            throw new simpledb.ParsingException(
+                    op + " is only supported with a subquery.");
+        }
+        DbIterator pp;
+        try {
+            LogicalPlan sublp = parseQueryLogicalPlan(tid, (ZQuery) query);
+            pp = sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        } catch (IOException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + query);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + query);
+        }
+        if (op.equals("EXISTS")) {
+            lp.addExists(pp, negated);
+            return;
+        }
+        ZExp field = wx.getOperand(0);
+        if (!(field instanceof ZConstant)
+                || ((ZConstant) field).getType() != ZConstant.COLUMNNAME) {
+            throw new simpledb.ParsingException(
+                    "Only fields can be tested with IN.");
+        }
+        lp.addJoin(((ZConstant) field).getValue(), pp, Predicate.Op.EQUALS,
+                negated ? LogicalSubplanJoinNode.Kind.ANTI : LogicalSubplanJoinNode.Kind.SEMI);
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -182,23 +240,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
             }
 
         }
@@ -207,8 +261,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,21 +272,22 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
                 lp.addProjectField(aggField, aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
-                                .getColumn()))) {
+                boolean grouped = groupByFields.isEmpty();
+                for (String groupByField : groupByFields) {
+                    grouped |= groupByField.equals(si.getTable() + "."
+                            + si.getColumn())
+                            || groupByField.equals(si.getColumn());
+                }
+                if (!grouped) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
                             + " does not appear in GROUP BY list.");
@@ -241,30 +296,31 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        // all aggregates are computed together over the same groups
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
+        }
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.elementAt(i), aggFields.elementAt(i), null);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -273,12 +329,49 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    // Zql has no LIMIT clause, so it is taken off the end of a query before
+    // parsing and applied to its plan; other statements keep it, and fail
+    // to parse
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "^(\\s*SELECT\\b.*?)\\s+LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?\\s*;?\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private int limit = -1;
+    private int offset = 0;
+
+    /**
+     * Remove a trailing LIMIT n [OFFSET m] clause from a SELECT statement,
+     * and remember it for the query parsed from the rest.
+     *
+     * @return the statement without the clause
+     */
+    private String stripLimit(String s) throws simpledb.ParsingException {
+        limit = -1;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.matches())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(2));
+            if (m.group(3) != null)
+                offset = Integer.parseInt(m.group(3));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT or OFFSET out of range");
+        }
+        return m.group(1) + ";";
+    }
+
+    private void applyLimit(LogicalPlan lp) throws simpledb.ParsingException {
+        if (limit >= 0)
+            lp.setLimit(limit, offset);
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
         
         Query query = new Query(tId);
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        applyLimit(lp);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                     TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -463,12 +556,13 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                applyLimit(lp);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -501,7 +595,13 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream statement = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                statement.write(buf, 0, n);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    stripLimit(statement.toString("UTF-8")).getBytes("UTF-8")));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -510,7 +610,11 @@ public class Parser {
             else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
-                    curtrans.start();
+                    // a stand-alone SELECT only reads, so run it on a snapshot
+                    if (s instanceof ZQuery)
+                        curtrans.startReadOnly();
+                    else
+                        curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
                 }
@@ -0,0 +1,563 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * PipelineCompiler fuses the pipelines of a plan into generated classes. A
+ * pipeline is a SeqScan over a HeapFile with the Filters and Projects above
+ * it, possibly topped by an Aggregate without grouping; it is turned into
+ * one loop over the tuples of the table, in the source of a class generated
+ * for it, which evaluates the predicates against constants held in locals,
+ * reads each field it needs once into a local, and writes the fields
+ * returned, or updates the accumulators of the aggregates, without calling
+ * through the operators of the pipeline. The source is compiled in memory
+ * with the system Java compiler and the class is loaded on its own class
+ * loader. The constants of the predicates are passed to the constructor
+ * rather than written into the source, and classes are cached by source, so
+ * plans of the same shape share one whatever their constants; the cache
+ * keeps the classes used last, up to MAX_CLASSES.
+ * <p>
+ * The rest of the plan, e.g. joins and grouped aggregates, still runs as
+ * operators, reading the compiled pipelines below it. Parts of a plan which
+ * cannot be compiled, e.g. predicates of Predicate subclasses or scans of
+ * other files, and all of it if no compiler is available (the program runs
+ * on a JRE), run as they were planned.
+ * <p>
+ * The planner compiles plans only if enabled, see {@link #setEnabled}.
+ */
+public final class PipelineCompiler {
+
+    /**
+     * Generated is the base class of the generated classes, which extend
+     * Pipeline or AggregatePipeline by the kind of pipeline they were
+     * generated for.
+     */
+    public static abstract class Generated {
+
+        /** The int constants of the predicates. */
+        protected final int[] ints;
+        /** The string constants of the predicates. */
+        protected final String[] strings;
+        /** The descriptor of the tuples returned. */
+        protected final TupleDesc td;
+
+        protected Generated(int[] ints, String[] strings, TupleDesc td) {
+            this.ints = ints;
+            this.strings = strings;
+            this.td = td;
+        }
+    }
+
+    /** The base class of the classes returning the tuples of a pipeline. */
+    public static abstract class Pipeline extends Generated {
+
+        protected Pipeline(int[] ints, String[] strings, TupleDesc td) {
+            super(ints, strings, td);
+        }
+
+        /**
+         * @return the tuple returned for a tuple of the table, or null if it
+         *         is filtered out
+         */
+        public abstract Tuple apply(Tuple t);
+
+        /**
+         * Add the tuples returned for the next tuples of the table to a batch,
+         * until it is full or the table is read.
+         */
+        public abstract void fill(DbFileIterator in, TupleBatch out)
+                throws DbException, TransactionAbortedException;
+    }
+
+    /** The base class of the classes aggregating the tuples of a pipeline. */
+    public static abstract class AggregatePipeline extends Generated {
+
+        protected AggregatePipeline(int[] ints, String[] strings, TupleDesc td) {
+            super(ints, strings, td);
+        }
+
+        /**
+         * Aggregate the rest of the tuples of the table into accumulators
+         * laid out as the ones of a GroupAggregator: the value and count of
+         * each aggregate.
+         */
+        public abstract void aggregate(DbFileIterator in, int[] acc)
+                throws DbException, TransactionAbortedException;
+    }
+
+    private static boolean enabled = false;
+
+    /** The number of compiled classes kept. */
+    public static final int MAX_CLASSES = 256;
+
+    // the compiled classes by their source, with NAME for the class name, in
+    // the order they were last used
+    private static final Map<String, Class<?>> classes = Collections.synchronizedMap(
+            new LinkedHashMap<String, Class<?>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Class<?>> eldest) {
+                    return size() > MAX_CLASSES;
+                }
+            });
+    private static final AtomicInteger classCount = new AtomicInteger();
+    // set once no compiler was found, to stop looking
+    private static volatile boolean unavailable = false;
+
+    private PipelineCompiler() {
+    }
+
+    /** @return true if the planner compiles the pipelines of its plans */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Turn the compilation of the plans of the planner on or off. */
+    public static void setEnabled(boolean enabled) {
+        PipelineCompiler.enabled = enabled;
+    }
+
+    /** @return the number of compiled classes cached */
+    static int cachedClasses() {
+        return classes.size();
+    }
+
+    /**
+     * A pipeline found in a plan: the scan, the predicates above it and the
+     * column of the table each field returned is, with the predicates
+     * referring to the columns of the table.
+     */
+    private static final class Chain {
+        SeqScan scan;
+        TupleDesc tableTd;
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        int[] out;
+        // true if there is a pushdown, filter or projection to compile
+        boolean fused = false;
+    }
+
+    /**
+     * Return the plan with its pipelines replaced by compiled ones. Parts
+     * which cannot be compiled are returned as they are.
+     */
+    public static DbIterator compile(DbIterator plan) {
+        if (unavailable)
+            return plan;
+        DbIterator compiled = fuse(plan);
+        if (compiled != null)
+            return compiled;
+        // the consumers of a Repartition or a Broadcast share their inputs
+        if (!(plan instanceof Operator) || plan instanceof Repartition || plan instanceof Broadcast)
+            return plan;
+        Operator op = (Operator) plan;
+        DbIterator[] children = op.getChildren();
+        int n = children.length;
+        // the inner side of an index join is read through its index
+        if (op instanceof IndexNestedLoopJoin)
+            n = 1;
+        // an aggregate splits the scan it reads among its threads
+        if (op instanceof Aggregate && ((Aggregate) op).getThreads() > 1
+                && Aggregate.canParallelize(children[0]) && !(children[0] instanceof Gather))
+            n = 0;
+        boolean changed = false;
+        for (int i = 0; i < n; i++) {
+            DbIterator child = compile(children[i]);
+            changed |= child != children[i];
+            children[i] = child;
+        }
+        if (changed)
+            op.setChildren(children);
+        return op;
+    }
+
+    /**
+     * @return a compiled plan of the same tuples as the given one, or null if
+     *         it is not a pipeline or not worth compiling
+     */
+    private static DbIterator fuse(DbIterator plan) {
+        if (plan.getClass() == Aggregate.class) {
+            Aggregate agg = (Aggregate) plan;
+            DbIterator child = agg.getChildren()[0];
+            if (agg.groupFields().length > 0
+                    || (agg.getThreads() > 1 && Aggregate.canParallelize(child)))
+                return null;
+            Chain c = chain(child);
+            if (c == null)
+                return null;
+            int[] fields = agg.aggregateFields();
+            Aggregator.Op[] ops = agg.aggregateOps();
+            int[] columns = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                columns[i] = c.out[fields[i]];
+                if (ops[i] == Aggregator.Op.SUM_COUNT || ops[i] == Aggregator.Op.SC_AVG)
+                    return null;
+                if (ops[i] != Aggregator.Op.COUNT && c.tableTd.getFieldType(columns[i]) != Type.INT_TYPE)
+                    return null;
+            }
+            AggregatePipeline p = (AggregatePipeline) load(aggregateSource(c, columns, ops), agg.getTupleDesc());
+            return p == null ? null : new CompiledPlan(agg, c.scan, p, ops);
+        }
+        Chain c = chain(plan);
+        if (c == null || !c.fused)
+            return null;
+        Pipeline p = (Pipeline) load(scanSource(c), plan.getTupleDesc());
+        return p == null ? null : new CompiledPlan(plan, c.scan, p);
+    }
+
+    private static boolean compilable(Predicate p) {
+        return p.getClass() == Predicate.class
+                && (p.getOperand() instanceof IntField || p.getOperand() instanceof StringField);
+    }
+
+    /**
+     * @return the pipeline the plan is the top of, or null if it is not one
+     */
+    private static Chain chain(DbIterator plan) {
+        if (plan instanceof SeqScan) {
+            SeqScan scan = (SeqScan) plan;
+            if (!(Database.getCatalog().getDatabaseFile(scan.getTableId()) instanceof HeapFile))
+                return null;
+            Chain c = new Chain();
+            c.scan = scan;
+            c.tableTd = Database.getCatalog().getTupleDesc(scan.getTableId());
+            for (Predicate p : scan.getFilters()) {
+                if (!compilable(p))
+                    return null;
+                c.preds.add(p);
+            }
+            c.out = new int[scan.getTupleDesc().numFields()];
+            for (int i = 0; i < c.out.length; i++)
+                c.out[i] = scan.getColumn(i);
+            c.fused = scan.hasPushdown();
+            return c;
+        }
+        if (plan instanceof Filter) {
+            Filter f = (Filter) plan;
+            Predicate p = f.getPredicate();
+            Chain c = compilable(p) ? chain(f.getChildren()[0]) : null;
+            if (c == null)
+                return null;
+            c.preds.add(new Predicate(c.out[p.getField()], p.getOp(), p.getOperand()));
+            c.fused = true;
+            return c;
+        }
+        if (plan instanceof Project) {
+            Project pr = (Project) plan;
+            Chain c = chain(pr.getChildren()[0]);
+            if (c == null)
+                return null;
+            int[] out = new int[pr.getTupleDesc().numFields()];
+            for (int i = 0; i < out.length; i++)
+                out[i] = c.out[pr.getChildField(i)];
+            c.out = out;
+            c.fused = true;
+            return c;
+        }
+        return null;
+    }
+
+    /**
+     * Code generation of the body of the loop over the tuples, which reads
+     * each column into a local the first time it is used. The int constants
+     * it uses are read into locals before the loop, by the code in consts.
+     */
+    private static final class Body {
+        final Chain chain;
+        final StringBuilder code = new StringBuilder();
+        final StringBuilder consts = new StringBuilder();
+        final Set<Integer> read = new HashSet<Integer>();
+        final Source src;
+        final String indent;
+
+        Body(Chain chain, Source src, String indent) {
+            this.chain = chain;
+            this.src = src;
+            this.indent = indent;
+        }
+
+        /** @return the local holding the value of a column */
+        String column(int col) {
+            boolean isInt = chain.tableTd.getFieldType(col) == Type.INT_TYPE;
+            String name = (isInt ? "i" : "s") + col;
+            if (read.add(col)) {
+                if (isInt)
+                    line("int " + name + " = ((IntField) t.getField(" + col + ")).getValue();");
+                else
+                    line("String " + name + " = ((StringField) t.getField(" + col + ")).getValue();");
+            }
+            return name;
+        }
+
+        void line(String s) {
+            code.append(indent).append(s).append('\n');
+        }
+
+        /** Emit a check of each predicate, leaving the loop with skip. */
+        void filters(String skip) {
+            for (Predicate p : chain.preds)
+                line("if (!(" + condition(p) + ")) " + skip);
+        }
+
+        private String condition(Predicate p) {
+            String v = column(p.getField());
+            if (p.getOperand() instanceof IntField) {
+                String k = "k" + src.ints.size();
+                consts.append("        final int " + k + " = ints[" + src.ints.size() + "];\n");
+                src.ints.add(((IntField) p.getOperand()).getValue());
+                switch (p.getOp()) {
+                case EQUALS:
+                case LIKE:
+                    return v + " == " + k;
+                case NOT_EQUALS:
+                    return v + " != " + k;
+                case GREATER_THAN:
+                    return v + " > " + k;
+                case GREATER_THAN_OR_EQ:
+                    return v + " >= " + k;
+                case LESS_THAN:
+                    return v + " < " + k;
+                default:
+                    return v + " <= " + k;
+                }
+            }
+            String k = "strings[" + src.strings.size() + "]";
+            src.strings.add(((StringField) p.getOperand()).getValue());
+            switch (p.getOp()) {
+            case EQUALS:
+                return v + ".equals(" + k + ")";
+            case NOT_EQUALS:
+                return "!" + v + ".equals(" + k + ")";
+            case GREATER_THAN:
+                return v + ".compareTo(" + k + ") > 0";
+            case GREATER_THAN_OR_EQ:
+                return v + ".compareTo(" + k + ") >= 0";
+            case LESS_THAN:
+                return v + ".compareTo(" + k + ") < 0";
+            case LESS_THAN_OR_EQ:
+                return v + ".compareTo(" + k + ") <= 0";
+            default:
+                return v + ".contains(" + k + ")";
+            }
+        }
+    }
+
+    private static final String HEADER =
+            "package simpledb.gen;\n"
+            + "import simpledb.*;\n"
+            + "public final class NAME extends PipelineCompiler.BASE {\n"
+            + "    public NAME(int[] ints, String[] strings, TupleDesc td) {\n"
+            + "        super(ints, strings, td);\n"
+            + "    }\n";
+
+    private static final String FILL =
+            "    public void fill(DbFileIterator in, TupleBatch out) throws DbException, TransactionAbortedException {\n";
+
+    private static final String AGGREGATE =
+            "    public void aggregate(DbFileIterator in, int[] acc) throws DbException, TransactionAbortedException {\n";
+
+    /** The source of a class returning the tuples of a pipeline. */
+    private static Source scanSource(Chain c) {
+        Source src = new Source();
+        StringBuilder s = src.code;
+        s.append(HEADER.replace("BASE", "Pipeline"));
+
+        // a tuple at a time
+        Body apply = new Body(c, src, "        ");
+        apply.filters("return null;");
+        boolean all = c.out.length == c.tableTd.numFields();
+        for (int i = 0; i < c.out.length && all; i++)
+            all = c.out[i] == i;
+        if (all) {
+            // the tuple of the table itself, which keeps its record id
+            apply.line("return t;");
+        } else {
+            apply.line("Tuple r = new Tuple(td);");
+            for (int i = 0; i < c.out.length; i++)
+                apply.line("r.setField(" + i + ", t.getField(" + c.out[i] + "));");
+            apply.line("r.setRecordId(t.getRecordId());");
+            apply.line("return r;");
+        }
+        s.append("    public Tuple apply(Tuple t) {\n");
+        s.append(apply.consts);
+        s.append(apply.code);
+        s.append("    }\n");
+
+        // a batch at a time
+        Body fill = new Body(c, src, "            ");
+        fill.filters("continue;");
+        fill.line("int row = out.addRow();");
+        fill.line("out.setRecordId(row, t.getRecordId());");
+        for (int i = 0; i < c.out.length; i++) {
+            if (c.tableTd.getFieldType(c.out[i]) == Type.INT_TYPE)
+                fill.line("o" + i + "[row] = " + fill.column(c.out[i]) + ";");
+            else
+                fill.line("out.set(row, " + i + ", t.getField(" + c.out[i] + "));");
+        }
+        s.append(FILL);
+        s.append(fill.consts);
+        for (int i = 0; i < c.out.length; i++)
+            if (c.tableTd.getFieldType(c.out[i]) == Type.INT_TYPE)
+                s.append("        int[] o" + i + " = out.getInts(" + i + ");\n");
+        s.append("        while (!out.isFull() && in.hasNext()) {\n");
+        s.append("            Tuple t = in.next();\n");
+        s.append(fill.code);
+        s.append("        }\n");
+        s.append("    }\n");
+        s.append("}\n");
+        return src;
+    }
+
+    /** The source of a class aggregating the tuples of a pipeline. */
+    private static Source aggregateSource(Chain c, int[] columns, Aggregator.Op[] ops) {
+        Source src = new Source();
+        StringBuilder s = src.code;
+        s.append(HEADER.replace("BASE", "AggregatePipeline"));
+        Body body = new Body(c, src, "            ");
+        body.filters("continue;");
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+            case COUNT:
+                break;
+            case MIN:
+                body.line("if (" + body.column(columns[i]) + " < a" + i + ") a" + i + " = " + body.column(columns[i]) + ";");
+                break;
+            case MAX:
+                body.line("if (" + body.column(columns[i]) + " > a" + i + ") a" + i + " = " + body.column(columns[i]) + ";");
+                break;
+            default:
+                body.line("a" + i + " += " + body.column(columns[i]) + ";");
+            }
+            body.line("c" + i + "++;");
+        }
+        s.append(AGGREGATE);
+        s.append(body.consts);
+        for (int i = 0; i < ops.length; i++)
+            s.append("        int a" + i + " = acc[" + 2 * i + "], c" + i + " = acc[" + (2 * i + 1) + "];\n");
+        s.append("        while (in.hasNext()) {\n");
+        s.append("            Tuple t = in.next();\n");
+        s.append(body.code);
+        s.append("        }\n");
+        for (int i = 0; i < ops.length; i++)
+            s.append("        acc[" + 2 * i + "] = a" + i + "; acc[" + (2 * i + 1) + "] = c" + i + ";\n");
+        s.append("    }\n");
+        s.append("}\n");
+        return src;
+    }
+
+    /** Generated source, and the constants it uses. */
+    private static final class Source {
+        final StringBuilder code = new StringBuilder();
+        final ArrayList<Integer> ints = new ArrayList<Integer>();
+        final ArrayList<String> strings = new ArrayList<String>();
+    }
+
+    /**
+     * @return an instance of the class of the source, or null if it could
+     *         not be compiled
+     */
+    private static Generated load(Source src, TupleDesc td) {
+        String code = src.code.toString();
+        Class<?> cls = classes.get(code);
+        try {
+            if (cls == null) {
+                cls = compileClass(code);
+                if (cls == null)
+                    return null;
+                classes.put(code, cls);
+            }
+            int[] ints = new int[src.ints.size()];
+            for (int i = 0; i < ints.length; i++)
+                ints[i] = src.ints.get(i);
+            String[] strings = src.strings.toArray(new String[src.strings.size()]);
+            return (Generated) cls.getConstructor(int[].class, String[].class, TupleDesc.class)
+                    .newInstance(ints, strings, td);
+        } catch (ReflectiveOperationException e) {
+            Debug.log("could not load pipeline: %s", e);
+            return null;
+        }
+    }
+
+    /**
+     * Compile a generated class in memory.
+     *
+     * @return the class, or null if there is no compiler or the source did
+     *         not compile
+     */
+    private static Class<?> compileClass(String code) throws ClassNotFoundException {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            unavailable = true;
+            return null;
+        }
+        final String name = "Pipeline" + classCount.incrementAndGet();
+        final String source = code.replace("NAME", name);
+        final Map<String, byte[]> bytes = new ConcurrentHashMap<String, byte[]>();
+        StandardJavaFileManager std = javac.getStandardFileManager(null, null, null);
+        JavaFileManager files = new ForwardingJavaFileManager<StandardJavaFileManager>(std) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, final String className,
+                    JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return new ByteArrayOutputStream() {
+                            @Override
+                            public void close() {
+                                bytes.put(className, toByteArray());
+                            }
+                        };
+                    }
+                };
+            }
+        };
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///simpledb/gen/" + name + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        String classpath = System.getProperty("java.class.path");
+        try {
+            // the classes of simpledb, wherever they were loaded from
+            File self = new File(PipelineCompiler.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            classpath = self.getPath() + File.pathSeparator + classpath;
+        } catch (Exception e) {
+            // compile against the class path alone
+        }
+        StringWriter errors = new StringWriter();
+        boolean ok = javac.getTask(errors, files, null, Arrays.asList("-classpath", classpath, "-nowarn"),
+                null, Collections.singletonList(file)).call();
+        if (!ok) {
+            Debug.log("could not compile pipeline: %s", errors);
+            return null;
+        }
+        ClassLoader loader = new ClassLoader(PipelineCompiler.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String className) throws ClassNotFoundException {
+                byte[] b = bytes.get(className);
+                if (b == null)
+                    throw new ClassNotFoundException(className);
+                return defineClass(className, b, 0, b.length);
+            }
+        };
+        return loader.loadClass("simpledb.gen." + name);
+    }
+}
@@ -11,6 +11,10 @@ public class Predicate implements Serializable {
     private int fieldNo;
     private Op op;
     private Field fvalue;
+    // the comparison compiled for the type of the operand
+    private transient PredicateCompiler.TupleTest test;
+    // the same over the rows of batches, compiled when first used
+    private transient PredicateCompiler.BatchTest batchTest;
 
     /** Constants used for return codes in Field.compare */
     public enum Op implements Serializable {
@@ -62,6 +66,7 @@ public class Predicate implements Serializable {
         fieldNo = field;
         this.op = op;
         fvalue = operand;
+        test = PredicateCompiler.compile(field, op, operand);
     }
 
     /**
@@ -103,7 +108,24 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
-        return t.getField(fieldNo).compare(op, fvalue);
+        if (test == null)
+            test = PredicateCompiler.compile(fieldNo, op, fvalue);
+        return test.test(t);
+    }
+
+    /**
+     * Narrows the selection of a batch to the rows that pass this predicate.
+     * Comparisons of an INT column with an IntField run over the vector of
+     * the column, see {@link PredicateCompiler#compileBatch(Predicate)}.
+     * 
+     * @param batch
+     *            The batch to filter
+     */
+    public void filter(TupleBatch batch) {
+        if (batchTest == null)
+            batchTest = PredicateCompiler.compileBatch(this);
+        int[] sel = new int[batch.size()];
+        batch.select(sel, batchTest.select(batch, sel));
     }
 
     /**
@@ -0,0 +1,295 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * PredicateCompiler turns predicates into evaluators specialized to the type
+ * of the compared field and the comparison operator, built once when the
+ * predicate is created instead of being interpreted for every tuple: an
+ * evaluator of an INT predicate reads the int of the field and compares it
+ * to the unboxed operand, with no Field.compare call and no switch over
+ * Predicate.Op, so each evaluator is a small monomorphic method the JIT can
+ * inline. The comparison of ints with a constant is compiled once for both
+ * tuples and batches, whose evaluators run it over the vector of an INT
+ * column.
+ * <p>
+ * A conjunction of predicates is folded before it is compiled: predicates
+ * comparing the same INT field to constants are merged into one range
+ * check, a range that is empty makes the whole conjunction false, and
+ * comparisons every value passes are dropped.
+ */
+public final class PredicateCompiler {
+
+    /** A compiled predicate over a tuple. */
+    public interface TupleTest {
+        boolean test(Tuple t);
+    }
+
+    /** A compiled predicate over a pair of tuples. */
+    public interface PairTest {
+        boolean test(Tuple t1, Tuple t2);
+    }
+
+    /** A compiled comparison of an int with a constant. */
+    public interface IntTest {
+        boolean test(int v);
+    }
+
+    /** A compiled predicate over the rows of a batch. */
+    public interface BatchTest {
+        /**
+         * Write the selected rows of the batch which pass the predicate to
+         * sel, in order.
+         *
+         * @return the number of rows written
+         */
+        int select(TupleBatch batch, int[] sel);
+    }
+
+    private static final TupleTest TRUE = t -> true;
+    private static final TupleTest FALSE = t -> false;
+
+    private PredicateCompiler() {
+    }
+
+    /**
+     * Compile the comparison of ints with a constant.
+     *
+     * @param op the comparison
+     * @param c the constant the ints are compared to
+     */
+    public static IntTest compile(Predicate.Op op, final int c) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return v -> v == c;
+        case NOT_EQUALS:
+            return v -> v != c;
+        case GREATER_THAN:
+            return v -> v > c;
+        case GREATER_THAN_OR_EQ:
+            return v -> v >= c;
+        case LESS_THAN:
+            return v -> v < c;
+        default:
+            return v -> v <= c;
+        }
+    }
+
+    /**
+     * Compile the comparison of a field of tuples with a constant, as
+     * {@link Predicate#filter(Tuple)} evaluates it.
+     *
+     * @param field the index of the field
+     * @param op the comparison
+     * @param operand the constant the field is compared to
+     */
+    public static TupleTest compile(final int field, final Predicate.Op op, final Field operand) {
+        if (operand instanceof IntField) {
+            final IntTest test = compile(op, ((IntField) operand).getValue());
+            return t -> test.test(((IntField) t.getField(field)).getValue());
+        }
+        if (operand instanceof StringField) {
+            final String c = ((StringField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+                return t -> ((StringField) t.getField(field)).getValue().equals(c);
+            case NOT_EQUALS:
+                return t -> !((StringField) t.getField(field)).getValue().equals(c);
+            case GREATER_THAN:
+                return t -> ((StringField) t.getField(field)).getValue().compareTo(c) > 0;
+            case GREATER_THAN_OR_EQ:
+                return t -> ((StringField) t.getField(field)).getValue().compareTo(c) >= 0;
+            case LESS_THAN:
+                return t -> ((StringField) t.getField(field)).getValue().compareTo(c) < 0;
+            case LESS_THAN_OR_EQ:
+                return t -> ((StringField) t.getField(field)).getValue().compareTo(c) <= 0;
+            case LIKE:
+                if (c.isEmpty())
+                    return TRUE;
+                return t -> ((StringField) t.getField(field)).getValue().contains(c);
+            }
+        }
+        return t -> t.getField(field).compare(op, operand);
+    }
+
+    /**
+     * Compile a predicate over the rows of batches, as
+     * {@link Predicate#filter(TupleBatch)} evaluates it. Comparisons of an INT
+     * column with an IntField run over the vector of the column; subclasses
+     * of Predicate, which may override filter(Tuple), are evaluated through it
+     * on the tuple of each row.
+     */
+    public static BatchTest compileBatch(final Predicate p) {
+        if (p.getClass() != Predicate.class) {
+            return (batch, sel) -> {
+                int k = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    int row = batch.row(i);
+                    if (p.filter(batch.getTuple(row)))
+                        sel[k++] = row;
+                }
+                return k;
+            };
+        }
+        final int field = p.getField();
+        final Predicate.Op op = p.getOp();
+        final Field operand = p.getOperand();
+        if (operand instanceof IntField) {
+            final IntTest test = compile(op, ((IntField) operand).getValue());
+            return (batch, sel) -> {
+                int n = batch.size();
+                int k = 0;
+                int[] v = batch.getInts(field);
+                if (v != null) {
+                    for (int i = 0; i < n; i++) {
+                        int row = batch.row(i);
+                        if (test.test(v[row]))
+                            sel[k++] = row;
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        int row = batch.row(i);
+                        if (test.test(((IntField) batch.getField(field, row)).getValue()))
+                            sel[k++] = row;
+                    }
+                }
+                return k;
+            };
+        }
+        return (batch, sel) -> {
+            int k = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                int row = batch.row(i);
+                if (batch.getField(field, row).compare(op, operand))
+                    sel[k++] = row;
+            }
+            return k;
+        };
+    }
+
+    /**
+     * Compile a predicate. Subclasses of Predicate, which may override
+     * filter(Tuple), are evaluated through it.
+     */
+    public static TupleTest compile(Predicate p) {
+        return compile(Collections.singletonList(p));
+    }
+
+    /**
+     * Compile the conjunction of the given predicates, folding comparisons of
+     * the same INT field with constants into a single range check.
+     */
+    public static TupleTest compile(List<Predicate> conjuncts) {
+        // the range of values each INT field may have, as [low, high]
+        TreeMap<Integer, long[]> ranges = new TreeMap<Integer, long[]>();
+        ArrayList<TupleTest> tests = new ArrayList<TupleTest>();
+        for (final Predicate p : conjuncts) {
+            if (p.getClass() != Predicate.class) {
+                tests.add(p::filter);
+                continue;
+            }
+            if (!(p.getOperand() instanceof IntField) || p.getOp() == Predicate.Op.NOT_EQUALS) {
+                tests.add(compile(p.getField(), p.getOp(), p.getOperand()));
+                continue;
+            }
+            long c = ((IntField) p.getOperand()).getValue();
+            long[] range = ranges.get(p.getField());
+            if (range == null) {
+                range = new long[] { Integer.MIN_VALUE, Integer.MAX_VALUE };
+                ranges.put(p.getField(), range);
+            }
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                range[0] = Math.max(range[0], c);
+                range[1] = Math.min(range[1], c);
+                break;
+            case GREATER_THAN:
+                range[0] = Math.max(range[0], c + 1);
+                break;
+            case GREATER_THAN_OR_EQ:
+                range[0] = Math.max(range[0], c);
+                break;
+            case LESS_THAN:
+                range[1] = Math.min(range[1], c - 1);
+                break;
+            case LESS_THAN_OR_EQ:
+                range[1] = Math.min(range[1], c);
+                break;
+            default:
+                break;
+            }
+        }
+        ArrayList<TupleTest> rangeTests = new ArrayList<TupleTest>();
+        for (Map.Entry<Integer, long[]> e : ranges.entrySet()) {
+            final int field = e.getKey();
+            final int low = (int) Math.max(e.getValue()[0], Integer.MIN_VALUE);
+            final int high = (int) Math.min(e.getValue()[1], Integer.MAX_VALUE);
+            if (e.getValue()[0] > e.getValue()[1])
+                return FALSE;
+            if (low == high)
+                rangeTests.add(t -> ((IntField) t.getField(field)).getValue() == low);
+            else if (low == Integer.MIN_VALUE && high == Integer.MAX_VALUE)
+                continue;
+            else if (low == Integer.MIN_VALUE)
+                rangeTests.add(t -> ((IntField) t.getField(field)).getValue() <= high);
+            else if (high == Integer.MAX_VALUE)
+                rangeTests.add(t -> ((IntField) t.getField(field)).getValue() >= low);
+            else
+                rangeTests.add(t -> {
+                    int v = ((IntField) t.getField(field)).getValue();
+                    return v >= low && v <= high;
+                });
+        }
+        // the folded range checks first, as they are the cheapest
+        rangeTests.addAll(tests);
+        return and(rangeTests);
+    }
+
+    private static TupleTest and(List<TupleTest> tests) {
+        if (tests.isEmpty())
+            return TRUE;
+        if (tests.size() == 1)
+            return tests.get(0);
+        if (tests.size() == 2) {
+            final TupleTest a = tests.get(0);
+            final TupleTest b = tests.get(1);
+            return t -> a.test(t) && b.test(t);
+        }
+        final TupleTest[] all = tests.toArray(new TupleTest[tests.size()]);
+        return t -> {
+            for (TupleTest test : all)
+                if (!test.test(t))
+                    return false;
+            return true;
+        };
+    }
+
+    /**
+     * Compile a join predicate over tuples of the given descriptors.
+     */
+    public static PairTest compile(JoinPredicate p, TupleDesc td1, TupleDesc td2) {
+        final int f1 = p.getField1();
+        final int f2 = p.getField2();
+        final Predicate.Op op = p.getOperator();
+        if (td1.getFieldType(f1) == Type.INT_TYPE && td2.getFieldType(f2) == Type.INT_TYPE) {
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() == ((IntField) t2.getField(f2)).getValue();
+            case NOT_EQUALS:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() != ((IntField) t2.getField(f2)).getValue();
+            case GREATER_THAN:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() > ((IntField) t2.getField(f2)).getValue();
+            case GREATER_THAN_OR_EQ:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() >= ((IntField) t2.getField(f2)).getValue();
+            case LESS_THAN:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() < ((IntField) t2.getField(f2)).getValue();
+            case LESS_THAN_OR_EQ:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() <= ((IntField) t2.getField(f2)).getValue();
+            }
+        }
+        return (t1, t2) -> t1.getField(f1).compare(op, t2.getField(f2));
+    }
+}
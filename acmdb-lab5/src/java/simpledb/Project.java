@@ -45,6 +45,13 @@ public class Project extends Operator {
         return td;
     }
 
+    /**
+     * @return the index in the child's tuples of the i-th output field
+     */
+    public int getChildField(int i) {
+        return outFieldIds.get(i);
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -80,6 +87,15 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of the child, projected without copying its
+     * columns.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = TupleBatch.next(child);
+        return batch == null ? null : batch.project(outFieldIds, td);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -0,0 +1,121 @@
+package simpledb;
+
+/**
+ * Repartition is an exchange that splits the tuples of its inputs among
+ * several consumers by the hash of a field, so that each consumer gets all
+ * the tuples of the values it gets, e.g. for one join of a partitioned join.
+ * The consumers are created together by {@link #create}, share the threads
+ * running the inputs, and must be read concurrently, e.g. each by a child of
+ * a Gather: a consumer that is not read holds the others up once its queue
+ * is full.
+ */
+public class Repartition extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Shuffle shuffle;
+    private final int part;
+    private final int field;
+    private final TupleDesc td;
+    private transient boolean opened = false;
+
+    private Repartition(Shuffle shuffle, int part, int field, TupleDesc td) {
+        this.shuffle = shuffle;
+        this.part = part;
+        this.field = field;
+        this.td = td;
+    }
+
+    /**
+     * Create the consumers of a repartition.
+     *
+     * @param inputs
+     *            the iterators whose tuples are split; they must return
+     *            tuples of the same TupleDesc
+     * @param field
+     *            the index of the field the tuples are split by
+     * @param partitions
+     *            the number of consumers
+     * @return the consumers, the i-th of which returns the tuples of the i-th
+     *         partition
+     */
+    public static Repartition[] create(DbIterator[] inputs, final int field, final int partitions) {
+        final TupleDesc td = inputs[0].getTupleDesc();
+        Producers producers = new Producers(inputs, partitions) {
+            void route(TupleBatch batch) {
+                TupleBatch[] parts = new TupleBatch[partitions];
+                for (int i = 0; i < batch.size(); i++) {
+                    int row = batch.row(i);
+                    int p = partition(batch, row, field, partitions);
+                    if (parts[p] == null)
+                        parts[p] = new TupleBatch(td, batch.size());
+                    parts[p].set(parts[p].addRow(), 0, batch, row);
+                }
+                for (int p = 0; p < partitions; p++)
+                    if (parts[p] != null)
+                        send(p, parts[p]);
+            }
+        };
+        Shuffle shuffle = new Shuffle(producers);
+        Repartition[] consumers = new Repartition[partitions];
+        for (int i = 0; i < partitions; i++)
+            consumers[i] = new Repartition(shuffle, i, field, td);
+        return consumers;
+    }
+
+    /**
+     * @return the partition of a row; equal values of any two repartitions
+     *         go to partitions of the same number
+     */
+    static int partition(TupleBatch batch, int row, int field, int partitions) {
+        int h = batch.getTupleDesc().getFieldType(field) == Type.INT_TYPE
+                ? batch.getInt(field, row) : batch.getField(field, row).hashCode();
+        h *= 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % partitions;
+    }
+
+    public String getName() {
+        return "repartition(" + td.getFieldName(field) + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (!opened)
+            shuffle.open(part);
+        opened = true;
+        super.open();
+    }
+
+    protected TupleBatch take() throws DbException, TransactionAbortedException {
+        return shuffle.producers.take(part);
+    }
+
+    /**
+     * A repartition cannot be rewound, since its inputs are shared with the
+     * other consumers.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        throw new DbException("cannot rewind a repartition");
+    }
+
+    public void close() {
+        super.close();
+        if (opened)
+            shuffle.close(part);
+        opened = false;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return shuffle.producers.getInputs();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        shuffle.producers.setInputs(children);
+    }
+}
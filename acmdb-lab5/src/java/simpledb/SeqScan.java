@@ -1,6 +1,5 @@
 package simpledb;
 
-import javax.xml.crypto.Data;
 import java.io.IOException;
 import java.util.*;
 
@@ -8,8 +7,16 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * A scan may be given predicates and a subset of the columns of the table
+ * to return, see {@link #pushDown(List, int[])}. The predicates are checked
+ * on the tuples held by the pages, so tuples failing them are dropped
+ * without copying anything. Of the tuples that pass, batches copy only the
+ * chosen columns, while each tuple returned alone is a new tuple of those
+ * columns; the planner therefore only pushes columns into scans read in
+ * batches or which drop most of a row.
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements DbIterator, BatchIterator {
 
     private static final long serialVersionUID = 1L;
     
@@ -17,6 +24,20 @@ public class SeqScan implements DbIterator {
     private int tableId;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
+    // the pages of a HeapFile to scan, or -1 to scan the whole file
+    private int firstPage = -1;
+    private int endPage = -1;
+    // predicates over the columns of the table, and the columns returned,
+    // or null to return all of them
+    private List<Predicate> filters = Collections.emptyList();
+    private PredicateCompiler.TupleTest filter = null;
+    private int[] columns = null;
+    private TupleDesc td = null;
+    // filter handed down by a join, dropping tuples that cannot join
+    private int runtimeField = -1;
+    private BloomFilter runtimeFilter = null;
+    private Tuple next = null;
+
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -41,6 +62,108 @@ public class SeqScan implements DbIterator {
         dbFileIterator = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
     }
 
+    /**
+     * Creates a scan of a range of pages of a table stored in a HeapFile, see
+     * {@link #split(int)}.
+     *
+     * @param firstPage
+     *            the number of the first page to scan
+     * @param endPage
+     *            the number of the page after the last page to scan, or -1 to
+     *            scan to the end of the file
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int firstPage, int endPage) {
+        this.tid = tid;
+        tableId = tableid;
+        this.tableAlias = tableAlias;
+        this.firstPage = firstPage;
+        this.endPage = endPage;
+        dbFileIterator = fileIterator();
+    }
+
+    DbFileIterator fileIterator() {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!isRange())
+            return file.iterator(tid);
+        return ((HeapFile) file).iterator(tid, firstPage, endPage);
+    }
+
+    /**
+     * @return true if this scan reads a range of the pages of its table
+     */
+    public boolean isRange() {
+        return firstPage >= 0;
+    }
+
+    /**
+     * Split this scan into scans of n ranges of about as many pages of its
+     * table, which together return the tuples of this scan and can run on
+     * different threads. The last range extends to the end of the file. Scans
+     * of files other than HeapFiles, and scans of ranges, are not split.
+     *
+     * @return the scans of the ranges, or this scan alone
+     */
+    public SeqScan[] split(int n) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (n <= 1 || isRange() || !(file instanceof HeapFile))
+            return new SeqScan[] { this };
+        int pages = ((HeapFile) file).numPages();
+        SeqScan[] ranges = new SeqScan[n];
+        for (int i = 0; i < n; i++) {
+            int first = (int) ((long) pages * i / n);
+            int end = i == n - 1 ? -1 : (int) ((long) pages * (i + 1) / n);
+            ranges[i] = new SeqScan(tid, tableId, tableAlias, first, end);
+            ranges[i].setPushdown(filters, columns);
+        }
+        return ranges;
+    }
+
+    /**
+     * Return a scan of the same pages of the table that only returns the
+     * tuples passing all the given predicates, and only the given columns of
+     * them. The predicates refer to the columns of the table. The tuples keep
+     * their record ids.
+     *
+     * @param filters
+     *            the predicates the tuples returned pass
+     * @param columns
+     *            the indexes of the columns of the table to return, in the
+     *            order to return them, or null to return all columns
+     */
+    public SeqScan pushDown(List<Predicate> filters, int[] columns) {
+        SeqScan scan = new SeqScan(tid, tableId, tableAlias, firstPage, endPage);
+        scan.setPushdown(filters, columns);
+        return scan;
+    }
+
+    private void setPushdown(List<Predicate> filters, int[] columns) {
+        this.filters = new ArrayList<Predicate>(filters);
+        filter = filters.isEmpty() ? null : PredicateCompiler.compile(this.filters);
+        this.columns = columns == null ? null : columns.clone();
+    }
+
+    /**
+     * @return the predicates pushed into this scan
+     */
+    public List<Predicate> getFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+
+    /**
+     * @return true if predicates or a subset of the columns were pushed into
+     *         this scan
+     */
+    public boolean hasPushdown() {
+        return filter != null || columns != null;
+    }
+
+    /**
+     * @return the index in the table of a column this scan returns
+     */
+    public int getColumn(int field) {
+        return columns == null ? field : columns[field];
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -51,6 +174,20 @@ public class SeqScan implements DbIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -76,7 +213,8 @@ public class SeqScan implements DbIterator {
         // some code goes here
         tableId = tableid;
         this.tableAlias = tableAlias;
-        dbFileIterator = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        setPushdown(Collections.<Predicate>emptyList(), null);
+        dbFileIterator = fileIterator();
     }
 
     public SeqScan(TransactionId tid, int tableid) {
@@ -86,6 +224,7 @@ public class SeqScan implements DbIterator {
     public void open() throws DbException, TransactionAbortedException
     {
         // some code goes here
+        td = getTupleDesc();
         dbFileIterator.open();
     }
 
@@ -102,6 +241,15 @@ public class SeqScan implements DbIterator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc newDesc = Database.getCatalog().getDatabaseFile(tableId).getTupleDesc();
+        if (columns != null) {
+            Type[] types = new Type[columns.length];
+            String[] names = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                types[i] = newDesc.getFieldType(columns[i]);
+                names[i] = tableAlias + "." + newDesc.getFieldName(columns[i]);
+            }
+            return new TupleDesc(types, names);
+        }
         Iterator<TupleDesc.TDItem> it = newDesc.iterator();
         Type[] newType = new Type[newDesc.numFields()];
         String[] newField = new String[newDesc.numFields()];
@@ -116,25 +264,106 @@ public class SeqScan implements DbIterator {
         return new TupleDesc(newType, newField);
     }
 
+    /**
+     * Only return the tuples whose given field might be in the filter from
+     * now on. The filter applies until the scan is closed.
+     *
+     * @param field
+     *            the index of the field to check
+     * @param filter
+     *            the filter of the values that may pass
+     */
+    public void setRuntimeFilter(int field, BloomFilter filter) {
+        runtimeField = field;
+        runtimeFilter = filter;
+    }
+
+    /** @return true if a tuple of the table passes the filters of this scan */
+    private boolean passes(Tuple t) {
+        return (filter == null || filter.test(t))
+                && (runtimeFilter == null || runtimeFilter.mightContain(t.getField(getColumn(runtimeField))));
+    }
+
+    /** @return the columns this scan returns of a tuple of the table */
+    private Tuple project(Tuple t) {
+        if (columns == null)
+            return t;
+        Tuple out = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            out.setField(i, t.getField(columns[i]));
+        out.setRecordId(t.getRecordId());
+        return out;
+    }
+
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return dbFileIterator.hasNext();
+        if (runtimeFilter == null && filter == null)
+            return next != null || dbFileIterator.hasNext();
+        while (next == null && dbFileIterator.hasNext()) {
+            Tuple t = dbFileIterator.next();
+            if (passes(t))
+                next = t;
+        }
+        return next != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return dbFileIterator.next();
+        if (!hasNext())
+            throw new NoSuchElementException();
+        if (next != null) {
+            Tuple t = next;
+            next = null;
+            return project(t);
+        }
+        return project(dbFileIterator.next());
+    }
+
+    /**
+     * Returns the next batch of tuples of the table, copying the values of
+     * the columns returned of the tuples of its pages that pass the filters
+     * into the batch.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(td);
+        if (next != null) {
+            addRow(batch, next);
+            next = null;
+        }
+        while (!batch.isFull() && dbFileIterator.hasNext()) {
+            Tuple t = dbFileIterator.next();
+            if (passes(t))
+                addRow(batch, t);
+        }
+        return batch;
+    }
+
+    private void addRow(TupleBatch batch, Tuple t) {
+        if (columns == null) {
+            batch.add(t);
+            return;
+        }
+        int row = batch.addRow();
+        for (int i = 0; i < columns.length; i++)
+            batch.set(row, i, t.getField(columns[i]));
+        batch.setRecordId(row, t.getRecordId());
     }
 
     public void close() {
         // some code goes here
         dbFileIterator.close();
+        next = null;
+        runtimeFilter = null;
+        runtimeField = -1;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         dbFileIterator.rewind();
+        next = null;
     }
 }
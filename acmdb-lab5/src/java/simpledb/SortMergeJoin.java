@@ -0,0 +1,378 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two children which are both sorted in
+ * ascending order of their join fields, e.g. an OrderBy or a BTreeScan on the
+ * key field, in a single pass over each of them.
+ * <p>
+ * For an equality predicate it keeps the current run of right tuples with
+ * equal keys and joins every left tuple with the same key against it. For a
+ * range predicate, every tuple of one child joins with a prefix of the other
+ * one, which grows as the keys increase and is kept the same way. Runs are
+ * kept in memory up to a budget, and the rest of a run is written to a
+ * SpillFile.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of bytes of a run kept in memory. */
+    public static final int DEFAULT_MEMORY = 16 << 20;
+
+    private final JoinPredicate predicate;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final TupleDesc td;
+    private final int memory;
+
+    // for range predicates, the child driving the merge and the child whose
+    // tuples are kept as the prefix matching the current driving tuple
+    private final boolean leftDrives;
+    private final boolean strict;
+
+    private transient Run run;
+    private transient Field runKey = null;
+    private transient Tuple leftNext = null;
+    private transient Tuple rightNext = null;
+    private transient boolean started = false;
+    // the tuple currently joined against the run, and the position in the run
+    private transient Tuple cur = null;
+    private transient Run.Cursor cursor = null;
+
+    /**
+     * Constructor. Accepts two sorted children to join and the predicate to
+     * join them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; one of EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left relation, sorted ascending on the join
+     *            field
+     * @param child2
+     *            Iterator for the right relation, sorted ascending on the
+     *            join field
+     * @throws IllegalArgumentException
+     *             if the predicate cannot be evaluated by merging
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY);
+    }
+
+    /**
+     * Constructor with an explicit memory budget for the runs.
+     *
+     * @see #SortMergeJoin(JoinPredicate, DbIterator, DbIterator)
+     * @param memory
+     *            The number of bytes of a run to keep in memory before
+     *            writing the rest of it to disk
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memory) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        this.predicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.memory = memory;
+        Predicate.Op op = p.getOperator();
+        // left > right: each left tuple joins the right tuples below it, and
+        // left < right: each right tuple joins the left tuples below it
+        leftDrives = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+        strict = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.LESS_THAN;
+    }
+
+    /**
+     * @return true if a SortMergeJoin can evaluate the given operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ || op == Predicate.Op.GREATER_THAN
+                || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * Return true if the tuples of the given operator come in ascending order
+     * of the given field: an ascending OrderBy, a BTreeScan on that field or
+     * a SeqScan of a BTreeFile keyed on it, possibly below operators that
+     * keep the order.
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof BTreeScan)
+            return ((BTreeScan) it).getKeyField() == field;
+        if (it instanceof SeqScan) {
+            // a B+ tree file is scanned leaf by leaf, in key order
+            SeqScan scan = (SeqScan) it;
+            DbFile f = Database.getCatalog().getDatabaseFile(scan.getTableId());
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == scan.getColumn(field);
+        }
+        if (it instanceof StreamAggregate)
+            return ((StreamAggregate) it).getSortedField() == field;
+        if (it instanceof Filter)
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        if (it instanceof Project) {
+            Project p = (Project) it;
+            return isSortedOn(p.getChildren()[0], p.getChildField(field));
+        }
+        if (it instanceof SortMergeJoin) {
+            // an equi-join comes out in the order of the join fields of both sides
+            SortMergeJoin j = (SortMergeJoin) it;
+            JoinPredicate p = j.getJoinPredicate();
+            int width = j.child1.getTupleDesc().numFields();
+            return p.getOperator() == Predicate.Op.EQUALS
+                    && (field == p.getField1() || field == width + p.getField2());
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return predicate;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table name
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(predicate.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table name
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(predicate.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        if (run != null)
+            run.clear();
+        run = new Run();
+        runKey = null;
+        leftNext = null;
+        rightNext = null;
+        started = false;
+        cur = null;
+        cursor = null;
+    }
+
+    private static Tuple advance(DbIterator it) throws DbException,
+            TransactionAbortedException {
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private Field key1(Tuple t) {
+        return t.getField(predicate.getField1());
+    }
+
+    private Field key2(Tuple t) {
+        return t.getField(predicate.getField2());
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple out = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            out.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            out.setField(n1 + i, t2.getField(i));
+        return out;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (!started) {
+            started = true;
+            leftNext = advance(child1);
+            rightNext = advance(child2);
+        }
+        while (true) {
+            // join the current tuple with the rest of the run
+            if (cursor != null) {
+                if (cursor.hasNext()) {
+                    Tuple other = cursor.next();
+                    if (predicate.getOperator() == Predicate.Op.EQUALS || leftDrives)
+                        return merge(cur, other);
+                    return merge(other, cur);
+                }
+                cursor.close();
+                cursor = null;
+            }
+            if (predicate.getOperator() == Predicate.Op.EQUALS) {
+                if (!nextEquals())
+                    return null;
+            } else if (!nextRange()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Find the next left tuple which joins with some right tuples, and make
+     * the run of these right tuples current.
+     *
+     * @return false if the join is done
+     */
+    private boolean nextEquals() throws DbException, TransactionAbortedException {
+        while (leftNext != null) {
+            Field k = key1(leftNext);
+            if (runKey != null && k.compare(Predicate.Op.EQUALS, runKey)) {
+                cur = leftNext;
+                leftNext = advance(child1);
+                cursor = run.cursor();
+                return true;
+            }
+            // skip the right tuples below the left key
+            while (rightNext != null && key2(rightNext).compare(Predicate.Op.LESS_THAN, k))
+                rightNext = advance(child2);
+            if (rightNext == null)
+                return false;
+            if (key2(rightNext).compare(Predicate.Op.EQUALS, k)) {
+                // read the run of right tuples with this key
+                run.clear();
+                runKey = key2(rightNext);
+                while (rightNext != null && key2(rightNext).compare(Predicate.Op.EQUALS, runKey)) {
+                    run.add(rightNext);
+                    rightNext = advance(child2);
+                }
+            } else {
+                leftNext = advance(child1);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take the next tuple of the driving child, and add the tuples of the
+     * other child it joins with to the prefix.
+     *
+     * @return false if the join is done
+     */
+    private boolean nextRange() throws DbException, TransactionAbortedException {
+        Tuple d = leftDrives ? leftNext : rightNext;
+        if (d == null)
+            return false;
+        Field k = leftDrives ? key1(d) : key2(d);
+        Predicate.Op below = strict ? Predicate.Op.LESS_THAN : Predicate.Op.LESS_THAN_OR_EQ;
+        while (true) {
+            Tuple o = leftDrives ? rightNext : leftNext;
+            if (o == null || !(leftDrives ? key2(o) : key1(o)).compare(below, k))
+                break;
+            run.add(o);
+            if (leftDrives)
+                rightNext = advance(child2);
+            else
+                leftNext = advance(child1);
+        }
+        cur = d;
+        if (leftDrives)
+            leftNext = advance(child1);
+        else
+            rightNext = advance(child2);
+        cursor = run.cursor();
+        return true;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+
+    /**
+     * A run of tuples, kept in memory up to the memory budget and in a spill
+     * file beyond that.
+     */
+    private class Run {
+        private final ArrayList<Tuple> mem = new ArrayList<Tuple>();
+        private SpillFile disk = null;
+        private long bytes = 0;
+
+        void add(Tuple t) throws DbException {
+            long size = t.getTupleDesc().getSize();
+            if (disk == null && bytes + size <= memory) {
+                mem.add(t);
+                bytes += size;
+                return;
+            }
+            if (disk == null)
+                disk = new SpillFile(t.getTupleDesc());
+            disk.add(t);
+        }
+
+        void clear() {
+            mem.clear();
+            bytes = 0;
+            if (disk != null)
+                disk.delete();
+            disk = null;
+        }
+
+        Cursor cursor() throws DbException, TransactionAbortedException {
+            return new Cursor();
+        }
+
+        /** Iterates over the tuples of the run at the time it was created. */
+        class Cursor {
+            private final int memSize = mem.size();
+            private int pos = 0;
+            private DbIterator diskIt = null;
+
+            Cursor() throws DbException, TransactionAbortedException {
+                if (disk != null) {
+                    diskIt = disk.iterator();
+                    diskIt.open();
+                }
+            }
+
+            boolean hasNext() throws DbException, TransactionAbortedException {
+                return pos < memSize || (diskIt != null && diskIt.hasNext());
+            }
+
+            Tuple next() throws DbException, TransactionAbortedException {
+                if (pos < memSize)
+                    return mem.get(pos++);
+                return diskIt.next();
+            }
+
+            void close() {
+                if (diskIt != null)
+                    diskIt.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples, used by operators that run out of
+ * memory to set tuples aside and read them back later. Tuples are appended
+ * with add() and read back, in the same order, through iterator(). The file
+ * is created on the first add() and removed by delete().
+ * <p>
+ * Fields are written in the format of Field.serialize, except that strings
+ * are not padded to their maximum length, so a spilled tuple takes only as
+ * many bytes as its values need.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private File file = null;
+    private DataOutputStream out = null;
+    private int size = 0;
+
+    /**
+     * Create an empty spill file for tuples with the given descriptor.
+     */
+    public SpillFile(TupleDesc td) {
+        this.td = td;
+    }
+
+    /** @return the TupleDesc of the tuples in this file */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples added to this file */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append a tuple to the file.
+     *
+     * @throws DbException if the tuple cannot be written
+     */
+    public void add(Tuple t) throws DbException {
+        try {
+            if (out == null) {
+                if (file == null) {
+                    file = File.createTempFile("spill", ".dat");
+                    file.deleteOnExit();
+                }
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file, true)));
+            }
+            for (int i = 0; i < td.numFields(); i++)
+                writeField(out, t.getField(i));
+        } catch (IOException e) {
+            throw new DbException("error writing spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /**
+     * Return an iterator over the tuples in this file. Tuples added after the
+     * iterator is opened are not guaranteed to be seen until it is rewound.
+     */
+    public DbIterator iterator() {
+        return new SpillIterator();
+    }
+
+    /**
+     * Delete the file. It is empty afterwards and may be used again.
+     */
+    public void delete() {
+        closeOutput();
+        if (file != null)
+            file.delete();
+        file = null;
+        size = 0;
+    }
+
+    private static void writeField(DataOutputStream out, Field f) throws IOException {
+        if (f.getType() == Type.STRING_TYPE) {
+            String s = ((StringField) f).getValue();
+            out.writeShort(s.length());
+            out.writeBytes(s);
+        } else {
+            f.serialize(out);
+        }
+    }
+
+    private static Field readField(DataInputStream in, Type type)
+            throws IOException, ParseException {
+        if (type == Type.STRING_TYPE) {
+            byte[] bs = new byte[in.readUnsignedShort()];
+            in.readFully(bs);
+            return new StringField(new String(bs), Type.STRING_LEN);
+        }
+        return type.parse(in);
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignore failures closing the file
+            }
+            out = null;
+        }
+    }
+
+    private class SpillIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private DataInputStream in = null;
+        private int count = 0;
+        private int read = 0;
+
+        public void open() throws DbException {
+            try {
+                closeOutput();
+                count = size;
+                read = 0;
+                if (count > 0)
+                    in = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(file)));
+            } catch (IOException e) {
+                throw new DbException("error reading spill file: " + e.getMessage());
+            }
+        }
+
+        public boolean hasNext() {
+            return read < count;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, readField(in, td.getFieldType(i)));
+            } catch (IOException e) {
+                throw new DbException("error reading spill file: " + e.getMessage());
+            } catch (ParseException e) {
+                throw new DbException("error reading spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore failures closing the file
+                }
+                in = null;
+            }
+            read = count;
+        }
+    }
+}
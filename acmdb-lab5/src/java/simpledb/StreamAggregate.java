@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * StreamAggregate is an Aggregate over a child that comes in order of one of
+ * the group-by fields. The groups are aggregated one run of tuples with the
+ * same value of that field at a time, and the groups of a run are returned
+ * as soon as the value changes, so only the groups of the current run are
+ * kept in memory: a single group if that is the only group-by field.
+ * <p>
+ * The groups are returned in the order of the child.
+ */
+public class StreamAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    // the child field the child is sorted on, and its position among the
+    // group-by fields
+    private final int runField;
+    private final int runGroup;
+    private final GroupAggregator run;
+    private final TupleDesc td;
+
+    private transient DbIterator child = null;
+    private transient Tuple pending = null;
+    private transient DbIterator out = null;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples, accepted by
+     *            canStream
+     * @param afields
+     *            The column of each aggregate.
+     * @param gfields
+     *            The columns over which we are grouping the result
+     * @param aops
+     *            The aggregation operator of each aggregate
+     * @throws IllegalArgumentException
+     *             if the child is not known to be sorted on a group-by field
+     */
+    public StreamAggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        super(child, afields, gfields, aops, AggregateSpill.DEFAULT_MEMORY);
+        runGroup = sortedGroup(child, gfields);
+        if (runGroup < 0)
+            throw new IllegalArgumentException("child is not sorted on a group-by field");
+        runField = gfields[runGroup];
+        TupleDesc childTd = child.getTupleDesc();
+        Type[] gTypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            gTypes[i] = childTd.getFieldType(gfields[i]);
+        Type[] aTypes = new Type[afields.length];
+        for (int i = 0; i < afields.length; i++)
+            aTypes[i] = childTd.getFieldType(afields[i]);
+        run = new GroupAggregator(gfields, gTypes, afields, aTypes, aops,
+                AggregateSpill.DEFAULT_MEMORY);
+        td = run.iterator().getTupleDesc();
+        for (int i = 0; i < gfields.length; i++)
+            td.setFieldName(i, childTd.getFieldName(gfields[i]));
+    }
+
+    /**
+     * Return true if the tuples of the given operator can be aggregated a run
+     * at a time: they come in order of one of the group-by fields.
+     */
+    public static boolean canStream(DbIterator child, int[] gfields) {
+        return sortedGroup(child, gfields) >= 0;
+    }
+
+    private static int sortedGroup(DbIterator child, int[] gfields) {
+        for (int i = 0; i < gfields.length; i++) {
+            if (SortMergeJoin.isSortedOn(child, gfields[i]))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position among the output fields of the group-by field
+     *         the output is sorted on
+     */
+    public int getSortedField() {
+        return runGroup;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        child = getChildren()[0];
+        child.open();
+        pending = child.hasNext() ? child.next() : null;
+        out = null;
+        super.open();
+    }
+
+    /**
+     * Returns the next group: the rest of the groups of the current run, or
+     * the groups of the next run of the child.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (out != null) {
+                if (out.hasNext())
+                    return out.next();
+                out.close();
+                out = null;
+            }
+            if (pending == null)
+                return null;
+            run.clear();
+            Field value = pending.getField(runField);
+            run.mergeTupleIntoGroup(pending);
+            pending = null;
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (!value.equals(t.getField(runField))) {
+                    pending = t;
+                    break;
+                }
+                run.mergeTupleIntoGroup(t);
+            }
+            out = run.iterator();
+            out.open();
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (out != null)
+            out.close();
+        out = null;
+        child.rewind();
+        pending = child.hasNext() ? child.next() : null;
+    }
+
+    public void close() {
+        if (out != null)
+            out.close();
+        out = null;
+        pending = null;
+        if (child != null)
+            child.close();
+        child = null;
+        super.close();
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n. It returns the
+ * first n tuples of its child in the order of the sort fields, like an
+ * OrderBy followed by a Limit, but keeps only the best n tuples seen so far
+ * in a bounded heap instead of sorting all of them.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final int n;
+
+    private transient ArrayList<Tuple> top = new ArrayList<Tuple>();
+    private transient Iterator<Tuple> it = null;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param n
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int n, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one sort order per field");
+        if (n < 0)
+            throw new IllegalArgumentException("negative number of tuples");
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.n = n;
+        this.child = child;
+    }
+
+    /**
+     * @return the number of tuples this operator returns at most
+     */
+    public int getLimit() {
+        return n;
+    }
+
+    public int getOrderByField() {
+        return orderByFields[0];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final TupleComparator cmp = new TupleComparator(orderByFields, asc);
+        // the heap's head is the worst of the tuples kept; of tuples that
+        // compare equal the earlier one is kept, so the result is stable
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, Math.min(n, 1024)),
+                new Comparator<Entry>() {
+                    public int compare(Entry a, Entry b) {
+                        int c = cmp.compare(b.tuple, a.tuple);
+                        return c != 0 ? c : Long.compare(b.seq, a.seq);
+                    }
+                });
+        long seq = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < n) {
+                heap.add(new Entry(t, seq++));
+            } else if (n > 0 && cmp.compare(t, heap.peek().tuple) < 0) {
+                heap.poll();
+                heap.add(new Entry(t, seq++));
+            }
+        }
+        Entry[] entries = new Entry[heap.size()];
+        for (int i = entries.length - 1; i >= 0; i--)
+            entries[i] = heap.poll();
+        top = new ArrayList<Tuple>(entries.length);
+        for (Entry e : entries)
+            top.add(e.tuple);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        top = new ArrayList<Tuple>();
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+}
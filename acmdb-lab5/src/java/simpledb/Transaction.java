@@ -25,6 +25,18 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction running as a read-only transaction. It reads a
+     * consistent snapshot of the database without taking any page locks, so
+     * it neither waits for nor delays concurrent writers.
+     *
+     * @see BufferPool#beginSnapshot
+     */
+    public void startReadOnly() {
+        start();
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
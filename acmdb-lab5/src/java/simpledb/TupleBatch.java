@@ -0,0 +1,250 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TupleBatch holds a batch of tuples column by column, for operators that
+ * process many tuples per call instead of one, see {@link BatchIterator}.
+ * INT columns are stored as int[] vectors and other columns as arrays of
+ * fields, so that operators can loop over the values of a column without
+ * creating a Tuple or an IntField per row.
+ * <p>
+ * The rows of a batch are numbered in the order they were added. A selection
+ * vector lists the rows still in the batch, so that a filter drops rows by
+ * narrowing the selection instead of copying the rest; size() and row(i)
+ * walk the selected rows. Rows are added only while all rows are selected.
+ * <p>
+ * A batch also keeps the record ids of rows which are whole tuples of a
+ * table, so that the tuples rebuilt from it can still be deleted.
+ */
+public class TupleBatch {
+
+    /** Default maximum number of rows of a batch. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    // the vector of each INT column, and the fields of the other columns
+    private final int[][] ints;
+    private final Field[][] fields;
+    private final int capacity;
+    private int rows = 0;
+    // the selected rows, or null if all rows are selected
+    private int[] sel = null;
+    private int selected = 0;
+    // the record id of each row, or null while no row has one
+    private RecordId[] rids = null;
+
+    /**
+     * Create an empty batch of at most DEFAULT_SIZE tuples.
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the descriptor of the tuples of the batch
+     * @param capacity the maximum number of rows of the batch
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        ints = new int[td.numFields()][];
+        fields = new Field[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                fields[i] = new Field[capacity];
+        }
+    }
+
+    private TupleBatch(TupleDesc td, int[][] ints, Field[][] fields, TupleBatch rowsOf) {
+        this.td = td;
+        this.ints = ints;
+        this.fields = fields;
+        this.capacity = rowsOf.capacity;
+        this.rows = rowsOf.rows;
+        this.sel = rowsOf.sel;
+        this.selected = rowsOf.selected;
+        this.rids = rowsOf.rids;
+    }
+
+    /**
+     * Return the next batch of an iterator, or null if it has no more
+     * tuples. Iterators which are not BatchIterators are read a tuple at a
+     * time.
+     */
+    public static TupleBatch next(DbIterator it) throws DbException, TransactionAbortedException {
+        if (it instanceof BatchIterator)
+            return ((BatchIterator) it).nextBatch();
+        if (!it.hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(it.getTupleDesc());
+        while (!batch.isFull() && it.hasNext())
+            batch.add(it.next());
+        return batch;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of selected rows */
+    public int size() {
+        return sel == null ? rows : selected;
+    }
+
+    /** @return the number of the i-th selected row */
+    public int row(int i) {
+        return sel == null ? i : sel[i];
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return rows == capacity;
+    }
+
+    /**
+     * Keep only the given rows selected.
+     *
+     * @param rows the numbers of the rows to keep, in increasing order; the
+     *            batch takes the array over
+     * @param n the number of rows to keep
+     */
+    public void select(int[] rows, int n) {
+        sel = rows;
+        selected = n;
+    }
+
+    /**
+     * @return the vector of an INT column, indexed by row number
+     */
+    public int[] getInts(int col) {
+        return ints[col];
+    }
+
+    public int getInt(int col, int row) {
+        return ints[col][row];
+    }
+
+    public Field getField(int col, int row) {
+        if (ints[col] != null)
+            return new IntField(ints[col][row]);
+        return fields[col][row];
+    }
+
+    /** @return the record id of a row, or null if it has none */
+    public RecordId getRecordId(int row) {
+        return rids == null ? null : rids[row];
+    }
+
+    public void setRecordId(int row, RecordId rid) {
+        if (rids == null) {
+            if (rid == null)
+                return;
+            rids = new RecordId[capacity];
+        }
+        rids[row] = rid;
+    }
+
+    /**
+     * @return the tuple of the given row, with its record id
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+
+    /**
+     * Add an empty row, selected, whose fields are set afterwards.
+     *
+     * @return the number of the row
+     */
+    public int addRow() {
+        if (sel != null)
+            throw new IllegalStateException("rows are added to a batch before selecting");
+        if (rows == capacity)
+            throw new IllegalStateException("batch is full");
+        return rows++;
+    }
+
+    /** Add a tuple as a new row. */
+    public void add(Tuple t) {
+        set(addRow(), 0, t);
+    }
+
+    public void set(int row, int col, Field f) {
+        if (ints[col] != null)
+            ints[col][row] = ((IntField) f).getValue();
+        else
+            fields[col][row] = f;
+    }
+
+    /**
+     * Set the fields of a row from col on to the fields of a tuple. A row set
+     * to a whole tuple takes its record id.
+     */
+    public void set(int row, int col, Tuple t) {
+        int n = t.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++)
+            set(row, col + i, t.getField(i));
+        if (col == 0 && n == ints.length)
+            setRecordId(row, t.getRecordId());
+    }
+
+    /**
+     * Set the fields of a row from col on to the fields of a row of a batch.
+     * A row set to a whole row takes its record id.
+     */
+    public void set(int row, int col, TupleBatch from, int fromRow) {
+        for (int i = 0; i < from.ints.length; i++) {
+            if (ints[col + i] != null)
+                ints[col + i][row] = from.ints[i][fromRow];
+            else
+                fields[col + i][row] = from.getField(i, fromRow);
+        }
+        if (col == 0 && from.ints.length == ints.length)
+            setRecordId(row, from.getRecordId(fromRow));
+    }
+
+    /**
+     * Return a batch of the given columns of the same rows, sharing the
+     * vectors, the selection and the record ids of this one.
+     *
+     * @param cols the columns of this batch in the new one
+     * @param td the descriptor of the new batch
+     */
+    public TupleBatch project(List<Integer> cols, TupleDesc td) {
+        int[][] pInts = new int[cols.size()][];
+        Field[][] pFields = new Field[cols.size()][];
+        for (int i = 0; i < pInts.length; i++) {
+            pInts[i] = ints[cols.get(i)];
+            pFields[i] = fields[cols.get(i)];
+        }
+        return new TupleBatch(td, pInts, pFields, this);
+    }
+
+    /**
+     * @return an iterator over the tuples of the selected rows
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < size();
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return getTuple(row(i++));
+            }
+        };
+    }
+}
@@ -5,10 +5,13 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.*;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class AggregateTest extends SimpleDbTestBase {
 
@@ -176,6 +179,99 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() computing several aggregates over two
+   * group-by fields
+   */
+  @Test public void multipleAggregates() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 1, 4,
+                    1, 2, 6,
+                    3, 1, 2,
+                    3, 1, 5,
+                    1, 1, 9 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 2, 2, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT,
+                              Aggregator.Op.MIN, Aggregator.Op.AVG },
+        AggregateSpill.DEFAULT_MEMORY);
+    assertEquals(6, op.getTupleDesc().numFields());
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(6,
+        new int[] { 1, 1, 15, 3, 2, 5,
+                    1, 2, 6, 1, 6, 6,
+                    3, 1, 7, 2, 2, 3 }), op);
+    op.close();
+  }
+
+  /**
+   * A query with several aggregates and GROUP BY fields is planned as one
+   * Aggregate
+   */
+  @Test public void parsedMultipleAggregates() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 500, 4, null, tuples, "c");
+    Database.getCatalog().addTable(f, "grp");
+    Map<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("grp", new TableStats(f.getId(), 1));
+
+    Map<List<Integer>, int[]> groups = new HashMap<List<Integer>, int[]>();
+    for (ArrayList<Integer> t : tuples) {
+      List<Integer> key = Arrays.asList(t.get(1), t.get(0));
+      if (!groups.containsKey(key))
+        groups.put(key, new int[] { 0, Integer.MIN_VALUE });
+      groups.get(key)[0]++;
+      groups.get(key)[1] = Math.max(groups.get(key)[1], t.get(2));
+    }
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (Map.Entry<List<Integer>, int[]> e : groups.entrySet()) {
+      expected.add(new ArrayList<Integer>(Arrays.asList(e.getKey().get(0),
+          e.getValue()[1], e.getKey().get(1), e.getValue()[0])));
+    }
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT grp.c1, MAX(grp.c2), grp.c0, COUNT(grp.c2) FROM grp GROUP BY grp.c0, grp.c1;");
+    DbIterator plan = lp.physicalPlan(tid, stats, false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Aggregate);
+    SystemTestUtil.matchTuples(plan, expected);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A parallel Aggregate over a scan returns the same groups as a sequential
+   * one, with and without filters, grouping and spilling
+   */
+  @Test public void parallelAggregate() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 30000, 2000, null, tuples, "c");
+    assertTrue(f.numPages() >= 4 * Aggregate.MIN_PAGES_PER_THREAD);
+    TransactionId tid = new TransactionId();
+    Aggregator.Op[] ops = new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.AVG,
+        Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.COUNT };
+    int[] afields = new int[] { 2, 2, 1, 1, 0 };
+    int[][] gfields = new int[][] { {}, { 0 }, { 0, 1 } };
+    int[] memories = new int[] { AggregateSpill.DEFAULT_MEMORY, 8 << 10 };
+    for (int[] g : gfields) {
+      for (int memory : memories) {
+        for (boolean filtered : new boolean[] { false, true }) {
+          DbIterator[] children = new DbIterator[2];
+          for (int i = 0; i < 2; i++) {
+            children[i] = new SeqScan(tid, f.getId(), "par");
+            if (filtered)
+              children[i] = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1000)),
+                  children[i]);
+          }
+          assertTrue(Aggregate.canParallelize(children[1]));
+          Aggregate sequential = new Aggregate(children[0], afields, g, ops, memory, 1);
+          Aggregate parallel = new Aggregate(children[1], afields, g, ops, memory, 4);
+          assertEquals(TestUtil.sortedTuples(sequential), TestUtil.sortedTuples(parallel));
+        }
+      }
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
@@ -313,6 +313,39 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+
+		// leave some empty slots between the entries
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = 1; i < entries.size(); i += 3)
+			page.deleteKeyAndRightChild(entries.get(i));
+
+		assertEquals(entries.get(0).getLeftChild(), page.findChild(null));
+		for (int key = 0; key < 70000; key += 500) {
+			Field f = new IntField(key);
+			// the child a linear scan of the entries would follow
+			it = page.iterator();
+			BTreeEntry e = it.next();
+			BTreePageId expected = null;
+			while (expected == null) {
+				if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()))
+					expected = e.getLeftChild();
+				else if (!it.hasNext())
+					expected = e.getRightChild();
+				else
+					e = it.next();
+			}
+			assertEquals(expected, page.findChild(f));
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
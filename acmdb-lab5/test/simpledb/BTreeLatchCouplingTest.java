@@ -0,0 +1,159 @@
+package simpledb;
+
+import simpledb.BTreeUtility.BTreeWriter;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchCouplingTest extends SimpleDbTestBase {
+	private static final int POLL_INTERVAL = 100;
+
+	// just so we have a pointer shorter than Database.getBufferPool
+	private BufferPool bp;
+	private BTreeFile bf;
+	private BTreePageId rootPtrId;
+	private BTreePageId rootId;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before public void setUp() throws Exception {
+		// a tree with a few leaf pages below an internal root page
+		bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+		bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+		TransactionId tid = new TransactionId();
+		rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		rootId = ((BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * Thread searching the B+ tree for the leaf page of a key.
+	 */
+	private class LeafFinder extends Thread {
+		private final TransactionId tid;
+		private final Field key;
+		private volatile BTreeLeafPage leaf;
+		private volatile Exception error;
+
+		LeafFinder(TransactionId tid, Field key) {
+			this.tid = tid;
+			this.key = key;
+		}
+
+		public void run() {
+			try {
+				leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, key);
+			} catch (Exception e) {
+				error = e;
+			}
+		}
+	}
+
+	/** Return the largest key on the given leaf page */
+	private Field maxKey(BTreeLeafPage leaf) {
+		return leaf.reverseIterator().next().getField(bf.keyField());
+	}
+
+	/** Return true if the given leaf page holds a tuple with the given key */
+	private boolean containsKey(BTreeLeafPage leaf, Field key) {
+		Iterator<Tuple> it = leaf.iterator();
+		while (it.hasNext()) {
+			if (it.next().getField(bf.keyField()).equals(key))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * An insert that does not split locks only its leaf page, not the pages
+	 * on the path to it.
+	 */
+	@Test public void descentLocksLeafOnly() throws Exception {
+		// the tree is packed, so split the left-most leaf first to make room
+		TransactionId tid = new TransactionId();
+		bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(0, 2));
+		assertTrue(bp.holdsLock(tid, rootId));
+		bp.transactionComplete(tid);
+
+		tid = new TransactionId();
+		Tuple t = BTreeUtility.getBTreeTuple(0, 2);
+		bp.insertTuple(tid, bf.getId(), t);
+
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertTrue(bp.holdsLock(tid, t.getRecordId().getPageId()));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A search does not wait for a transaction writing an internal page on
+	 * its path, but a split below that page does.
+	 */
+	@Test public void searchPassesWriter() throws Exception {
+		TransactionId writer = new TransactionId();
+		bp.getPage(writer, rootId, Permissions.READ_WRITE);
+
+		TransactionId reader = new TransactionId();
+		BTreeLeafPage leaf = bf.findLeafPage(reader, Permissions.READ_ONLY, new IntField(0));
+		assertNotNull(leaf);
+		assertFalse(bp.holdsLock(reader, rootId));
+		// searches share one image of the committed contents of the page
+		Page committed = bp.getCommittedImage(rootId);
+		assertNotNull(bf.findLeafPage(reader, Permissions.READ_ONLY, new IntField(1)));
+		assertSame(committed, bp.getCommittedImage(rootId));
+		bp.transactionComplete(reader);
+
+		BTreeWriter w = new BTreeWriter(new TransactionId(), bf, 0, 1);
+		w.start();
+		Thread.sleep(POLL_INTERVAL);
+		assertFalse(w.succeeded());
+
+		bp.transactionComplete(writer);
+		w.join();
+		assertTrue(w.succeeded());
+	}
+
+	/**
+	 * A search that reaches a leaf page while it is being split moves right
+	 * to the new page once the split commits.
+	 */
+	@Test public void searchMovesRightAfterSplit() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeLeafPage first = bf.findLeafPage(tid, Permissions.READ_ONLY, null);
+		Field key = maxKey(first);
+		bp.transactionComplete(tid);
+
+		// split the left-most leaf page, and search for its largest key meanwhile
+		TransactionId writer = new TransactionId();
+		bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(0, 2));
+		LeafFinder finder = new LeafFinder(new TransactionId(), key);
+		finder.start();
+		Thread.sleep(POLL_INTERVAL / 2);
+		assertNull(finder.leaf);
+		bp.transactionComplete(writer);
+		finder.join();
+
+		assertNull(finder.error);
+		assertFalse(first.getId().equals(finder.leaf.getId()));
+		assertTrue(containsKey(finder.leaf, key));
+		tid = new TransactionId();
+		assertEquals(bf.findLeafPage(tid, Permissions.READ_ONLY, key).getId(), finder.leaf.getId());
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchCouplingTest.class);
+	}
+}
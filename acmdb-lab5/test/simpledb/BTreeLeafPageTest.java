@@ -336,6 +336,33 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field)
+	 */
+	@Test public void testIteratorFrom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+
+		// leave some empty slots between the tuples
+		Iterator<Tuple> it = page.iterator();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		while (it.hasNext())
+			tuples.add(it.next());
+		for (int i = 1; i < tuples.size(); i += 3)
+			page.deleteTuple(tuples.get(i));
+
+		for (int key = 0; key < 70000; key += 500) {
+			Field f = new IntField(key);
+			Iterator<Tuple> from = page.iterator(f);
+			it = page.iterator();
+			while (it.hasNext()) {
+				Tuple tup = it.next();
+				if (tup.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+					assertEquals(tup.getField(0), from.next().getField(0));
+			}
+			assertFalse(from.hasNext());
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BloomFilterTest extends SimpleDbTestBase {
+
+  /**
+   * Every added key is found, and few others are
+   */
+  @Test public void falsePositives() {
+    BloomFilter filter = new BloomFilter(1000);
+    for (int i = 0; i < 1000; i++)
+      filter.add(new IntField(i * 7));
+    for (int i = 0; i < 1000; i++)
+      assertTrue(filter.mightContain(new IntField(i * 7)));
+
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (filter.mightContain(new IntField(7 * 1000 + i)))
+        falsePositives++;
+    }
+    assertTrue(falsePositives < 300);
+  }
+
+  /**
+   * A hash join hands its filter down to the scan of its probe side through
+   * a Filter, which then sees only the tuples that might join
+   */
+  @Test public void pushedToProbeScan() throws Exception {
+    ArrayList<ArrayList<Integer>> probeTuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 2000, 100000, null, probeTuples);
+    ArrayList<ArrayList<Integer>> buildTuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 10; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(probeTuples.get(i * 100).get(0));
+      t.add(i);
+      buildTuples.add(t);
+    }
+    HeapFile build = JoinOptimizerTest.createDuplicateHeapFile(buildTuples, 2, "c");
+
+    TransactionId tid = new TransactionId();
+    SeqScan probeScan = new SeqScan(tid, probe.getId(), "");
+    final int[] seen = new int[1];
+    Predicate counting = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(Integer.MIN_VALUE)) {
+      private static final long serialVersionUID = 1L;
+
+      public boolean filter(Tuple t) {
+        seen[0]++;
+        return super.filter(t);
+      }
+    };
+    Filter f = new Filter(counting, probeScan);
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        f, new SeqScan(tid, build.getId(), ""));
+
+    join.open();
+    int joined = 0;
+    while (join.hasNext()) {
+      join.next();
+      joined++;
+    }
+    join.close();
+    Database.getBufferPool().transactionComplete(tid);
+
+    assertTrue(joined >= 10);
+    assertTrue(seen[0] >= joined);
+    assertTrue(seen[0] < 200);
+  }
+
+  /**
+   * A filter reaches the scan that produces the filtered field
+   */
+  @Test public void pushDownFindsScan() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, table.getId(), "");
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(1);
+    ArrayList<Type> types = new ArrayList<Type>();
+    types.add(Type.INT_TYPE);
+    Project project = new Project(fields, types, scan);
+
+    BloomFilter empty = new BloomFilter(0);
+    assertTrue(BloomFilter.pushDown(project, 0, empty));
+    scan.open();
+    assertEquals(false, scan.hasNext());
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BloomFilterTest.class);
+  }
+}
@@ -0,0 +1,215 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  private HeapFile left;
+  private HeapFile right;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    left = SystemTestUtil.createRandomHeapFile(2, 3000, 500, null, new ArrayList<ArrayList<Integer>>(), "c");
+    right = SystemTestUtil.createRandomHeapFile(2, 1000, 500, null, new ArrayList<ArrayList<Integer>>(), "c");
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Exchange.resetThreads();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private SeqScan scan(HeapFile f) {
+    return new SeqScan(tid, f.getId(), "t");
+  }
+
+  /**
+   * The ranges of a split scan together return the tuples of the file
+   */
+  @Test public void split() throws Exception {
+    SeqScan[] ranges = scan(left).split(3);
+    assertEquals(3, ranges.length);
+    List<String> all = new ArrayList<String>();
+    for (SeqScan range : ranges) {
+      assertTrue(range.isRange());
+      all.addAll(TestUtil.sortedTuples(range));
+    }
+    Collections.sort(all);
+    assertEquals(TestUtil.sortedTuples(scan(left)), all);
+
+    // more ranges than pages leaves some empty
+    int pages = left.numPages();
+    all.clear();
+    for (SeqScan range : scan(left).split(pages + 2))
+      all.addAll(TestUtil.sortedTuples(range));
+    Collections.sort(all);
+    assertEquals(TestUtil.sortedTuples(scan(left)), all);
+  }
+
+  /**
+   * A Gather returns the tuples of all its children, and again after a
+   * rewind
+   */
+  @Test public void gather() throws Exception {
+    SeqScan[] ranges = scan(left).split(4);
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(250));
+    DbIterator[] parts = new DbIterator[ranges.length];
+    for (int i = 0; i < parts.length; i++)
+      parts[i] = new Filter(p, ranges[i]);
+    Gather gather = new Gather(parts);
+    List<String> expected = TestUtil.sortedTuples(new Filter(p, scan(left)));
+    assertEquals(expected, TestUtil.sortedTuples(gather));
+
+    gather.open();
+    for (int i = 0; i < 10; i++)
+      gather.next();
+    gather.rewind();
+    List<String> again = new ArrayList<String>();
+    while (gather.hasNext())
+      again.add(gather.next().toString());
+    gather.close();
+    Collections.sort(again);
+    assertEquals(expected, again);
+  }
+
+  /**
+   * Joins of the partitions of a repartition, and joins of ranges with a
+   * broadcast of the other side, return the tuples of the sequential join
+   */
+  @Test public void partitionedJoins() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<String> expected = TestUtil.sortedTuples(new HashEquiJoin(p, scan(left), scan(right)));
+    assertTrue(expected.size() > 0);
+
+    Repartition[] outer = Repartition.create(scan(left).split(3), 0, 4);
+    Repartition[] inner = Repartition.create(scan(right).split(2), 0, 4);
+    DbIterator[] joins = new DbIterator[4];
+    for (int i = 0; i < 4; i++)
+      joins[i] = new HashEquiJoin(p, outer[i], inner[i]);
+    assertEquals(expected, TestUtil.sortedTuples(new Gather(joins)));
+
+    SeqScan[] ranges = scan(left).split(3);
+    Broadcast[] copies = Broadcast.create(new DbIterator[] { scan(right) }, 3);
+    Predicate low = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(250));
+    joins = new DbIterator[3];
+    for (int i = 0; i < 3; i++) {
+      // a filter on one copy does not drop tuples of the others
+      DbIterator in = i == 0 ? new Filter(low, copies[i]) : copies[i];
+      joins[i] = new HashEquiJoin(p, ranges[i], in);
+    }
+    List<String> all = new ArrayList<String>();
+    SeqScan[] r = scan(left).split(3);
+    all.addAll(TestUtil.sortedTuples(new HashEquiJoin(p, r[0], new Filter(low, scan(right)))));
+    all.addAll(TestUtil.sortedTuples(new HashEquiJoin(p, r[1], scan(right))));
+    all.addAll(TestUtil.sortedTuples(new HashEquiJoin(p, r[2], scan(right))));
+    Collections.sort(all);
+    assertEquals(all, TestUtil.sortedTuples(new Gather(joins)));
+  }
+
+  private static boolean contains(DbIterator plan, Class<?> c) {
+    if (c.isInstance(plan))
+      return true;
+    if (plan instanceof Operator)
+      for (DbIterator child : ((Operator) plan).getChildren())
+        if (contains(child, c))
+          return true;
+    return false;
+  }
+
+  /**
+   * The planner gathers large scans, and joins and aggregates over them,
+   * when more than one thread is allowed
+   */
+  @Test public void plannedExchanges() throws Exception {
+    HeapFile big = SystemTestUtil.createRandomHeapFile(2, 40000, 1000, null,
+        new ArrayList<ArrayList<Integer>>(), "c");
+    assertTrue(big.numPages() >= Exchange.MIN_PARALLEL_PAGES);
+    Database.getCatalog().addTable(big, "xbig");
+    Database.getCatalog().addTable(right, "xsmall");
+    Map<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("xbig", new TableStats(big.getId(), 1));
+    stats.put("xsmall", new TableStats(right.getId(), 1));
+
+    String join = "SELECT * FROM xbig b, xsmall s WHERE b.c0 = s.c0 AND b.c1 < 500;";
+    String agg = "SELECT b.c1, COUNT(b.c0) FROM xbig b GROUP BY b.c1;";
+    Exchange.setThreads(1);
+    DbIterator joinPlan = new Parser().generateLogicalPlan(tid, join).physicalPlan(tid, stats, false);
+    DbIterator aggPlan = new Parser().generateLogicalPlan(tid, agg).physicalPlan(tid, stats, false);
+    assertTrue(!contains(joinPlan, Exchange.class));
+    List<String> expectedJoin = TestUtil.sortedTuples(joinPlan);
+    List<String> expectedAgg = TestUtil.sortedTuples(aggPlan);
+
+    Exchange.setThreads(4);
+    joinPlan = new Parser().generateLogicalPlan(tid, join).physicalPlan(tid, stats, false);
+    aggPlan = new Parser().generateLogicalPlan(tid, agg).physicalPlan(tid, stats, false);
+    assertTrue(contains(joinPlan, Broadcast.class));
+    assertTrue(contains(aggPlan, Gather.class));
+    assertEquals(expectedJoin, TestUtil.sortedTuples(joinPlan));
+    assertEquals(expectedAgg, TestUtil.sortedTuples(aggPlan));
+  }
+
+  /**
+   * A DELETE over a gathered scan deletes the tuples it finds, which keep
+   * their record ids through the batches of the exchange
+   */
+  @Test public void parallelDelete() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile big = SystemTestUtil.createRandomHeapFile(2, 40000, 1000, null, tuples, "c");
+    assertTrue(big.numPages() >= Exchange.MIN_PARALLEL_PAGES);
+    Database.getCatalog().addTable(big, "xdel");
+    TableStats.setTableStats("xdel", new TableStats(big.getId(), 1));
+    // drop the locks of the scan computing the statistics
+    Database.resetBufferPool(4 * big.numPages());
+    int remaining = 0;
+    for (ArrayList<Integer> t : tuples)
+      if (t.get(1) != 3)
+        remaining++;
+
+    Exchange.setThreads(4);
+    new Parser().processNextStatement("DELETE FROM xdel WHERE xdel.c1 = 3;");
+    TransactionId t = new TransactionId();
+    assertEquals(remaining, TestUtil.sortedTuples(new SeqScan(t, big.getId(), "xdel")).size());
+    Database.getBufferPool().transactionComplete(t);
+  }
+
+  /**
+   * The inner side of a parallel join is only broadcast if its copies fit
+   * in the memory of one join; otherwise both sides are repartitioned
+   */
+  @Test public void broadcastsSmallInnerSides() throws Exception {
+    TupleDesc td = right.getTupleDesc();
+    assertTrue(LogicalPlan.broadcasts(td, 1000, 4));
+    int tuples = HashEquiJoin.DEFAULT_MEMORY / td.getSize();
+    assertTrue(LogicalPlan.broadcasts(td, tuples, 1));
+    assertTrue(!LogicalPlan.broadcasts(td, tuples, 4));
+
+    // a repartition of a single input, as for an inner side which is
+    // not gathered
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<String> expected = TestUtil.sortedTuples(new HashEquiJoin(p, scan(left), scan(right)));
+    Repartition[] outer = Repartition.create(scan(left).split(3), 0, 4);
+    Repartition[] inner = Repartition.create(new DbIterator[] { scan(right) }, 0, 4);
+    DbIterator[] joins = new DbIterator[4];
+    for (int i = 0; i < joins.length; i++)
+      joins[i] = new HashEquiJoin(p, outer[i], inner[i]);
+    assertEquals(expected, TestUtil.sortedTuples(new Gather(joins)));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
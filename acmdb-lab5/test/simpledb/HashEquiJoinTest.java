@@ -130,6 +130,69 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
       validateJoin(1,10,1,30001);
   }
 
+  /**
+   * Join two tables with a memory budget far below the size of the right
+   * one, so both are partitioned to disk, and compare with the expected
+   * result of a nested loops join
+   */
+  private void validateSpillingJoin(int rows1, int rows2, int maxValue)
+      throws Exception {
+    ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+        COLUMNS, rows1, maxValue, null, t1Tuples);
+    ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+        COLUMNS, rows2, maxValue, null, t2Tuples);
+
+    ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t1 : t1Tuples) {
+      for (ArrayList<Integer> t2 : t2Tuples) {
+        if (t1.get(0).equals(t2.get(0))) {
+          ArrayList<Integer> out = new ArrayList<Integer>(t1);
+          out.addAll(t2);
+          expectedResults.add(out);
+        }
+      }
+    }
+
+    TransactionId tid = new TransactionId();
+    SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+    SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    int memory = 20 * ss2.getTupleDesc().getSize();
+    HashEquiJoin joinOp = new HashEquiJoin(p, ss1, ss2, memory);
+    SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+    // a rewind redoes the partitioning
+    joinOp.open();
+    while (joinOp.hasNext())
+      joinOp.next();
+    joinOp.rewind();
+    int cnt = 0;
+    while (joinOp.hasNext()) {
+      joinOp.next();
+      cnt++;
+    }
+    assertEquals(expectedResults.size(), cnt);
+    joinOp.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for a HashEquiJoin which partitions its inputs to disk
+   */
+  @Test public void spillingJoin() throws Exception {
+    validateSpillingJoin(2000, 3000, 5000);
+  }
+
+  /**
+   * Unit test for a HashEquiJoin which spills a right child with few
+   * distinct keys, so that partitioning does not shrink the partitions
+   */
+  @Test public void spillingJoinSkewed() throws Exception {
+    validateSpillingJoin(200, 300, 3);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,207 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashSemiJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    1, 3, 4,
+                    3, 4, 5,
+                    3, 5, 6,
+                    5, 6, 7 });
+  }
+
+  /**
+   * The tuples of a semi-join are the tuples of its left child
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashSemiJoin op = new HashSemiJoin(pred, scan1, scan2, false);
+    assertEquals(Utility.getTupleDesc(width1), op.getTupleDesc());
+  }
+
+  /**
+   * A semi-join returns each left tuple with matches once, and an anti-join
+   * the others
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashSemiJoin op = new HashSemiJoin(pred, scan1, scan2, false);
+    op.open();
+    DbIterator expected = TestUtil.createTupleList(width1, new int[] { 1, 2, 3, 4, 5, 6 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+
+    op = new HashSemiJoin(pred, scan1, scan2, true);
+    op.open();
+    expected = TestUtil.createTupleList(width1, new int[] { 7, 8 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+
+    // and again after a rewind
+    op.rewind();
+    expected.rewind();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  /**
+   * Other predicates are checked against the keys of the right child
+   */
+  @Test public void gtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 2);
+    HashSemiJoin op = new HashSemiJoin(pred, scan1, scan2, false);
+    op.open();
+    DbIterator expected = TestUtil.createTupleList(width1, new int[] { 5, 6, 7, 8 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  /**
+   * Without a predicate, the left tuples are returned if the right child
+   * has tuples, or if it has none for an anti-join
+   */
+  @Test public void exists() throws Exception {
+    DbIterator empty = TestUtil.createTupleList(width2, new int[0]);
+    HashSemiJoin op = new HashSemiJoin(null, scan1, scan2, false);
+    op.open();
+    scan1.rewind();
+    TestUtil.matchAllTuples(scan1, op);
+    op.close();
+
+    op = new HashSemiJoin(null, scan1, empty, false);
+    op.open();
+    assertFalse(op.hasNext());
+    op.close();
+
+    op = new HashSemiJoin(null, scan1, scan2, true);
+    op.open();
+    assertFalse(op.hasNext());
+    op.close();
+
+    op = new HashSemiJoin(null, scan1, empty, true);
+    op.open();
+    scan1.rewind();
+    TestUtil.matchAllTuples(scan1, op);
+    op.close();
+  }
+
+  /**
+   * Batches of a semi-join select the rows of the batches of the left child
+   * with a match
+   */
+  @Test public void batches() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashSemiJoin op = new HashSemiJoin(pred, scan1, scan2, true);
+    op.open();
+    TupleBatch batch = op.nextBatch();
+    assertEquals(1, batch.size());
+    assertEquals(7, batch.getInt(0, batch.row(0)));
+    assertEquals(null, op.nextBatch());
+    op.close();
+  }
+
+  /**
+   * IN, NOT IN, EXISTS and NOT EXISTS subqueries are planned as semi-joins
+   * and anti-joins
+   */
+  @Test public void subqueries() throws Exception {
+    ArrayList<ArrayList<Integer>> outer = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> inner = new ArrayList<ArrayList<Integer>>();
+    HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 500, 100, null, outer, "c");
+    HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 200, 100, null, inner, "c");
+    Database.getCatalog().addTable(f1, "semi_outer");
+    Database.getCatalog().addTable(f2, "semi_inner");
+    TableStats.setTableStats("semi_outer", new TableStats(f1.getId(), 1));
+    TableStats.setTableStats("semi_inner", new TableStats(f2.getId(), 1));
+
+    // the values of c0 of the inner tuples with c1 < 50
+    Set<Integer> keys = new HashSet<Integer>();
+    for (ArrayList<Integer> t : inner)
+      if (t.get(1) < 50)
+        keys.add(t.get(0));
+    ArrayList<ArrayList<Integer>> in = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> notIn = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t : outer)
+      (keys.contains(t.get(0)) ? in : notIn).add(t);
+
+    String sub = "(SELECT i.c0 FROM semi_inner i WHERE i.c1 < 50)";
+    TransactionId tid = new TransactionId();
+    assertEquals(in, run(tid, "SELECT * FROM semi_outer o WHERE o.c0 IN " + sub + ";"));
+    assertEquals(notIn, run(tid, "SELECT * FROM semi_outer o WHERE o.c0 NOT IN " + sub + ";"));
+    assertEquals(notIn, run(tid, "SELECT * FROM semi_outer o WHERE NOT (o.c0 IN " + sub + ");"));
+
+    String none = "(SELECT i.c0 FROM semi_inner i WHERE i.c1 < 0)";
+    assertEquals(outer, run(tid, "SELECT * FROM semi_outer o WHERE EXISTS " + sub + ";"));
+    assertEquals(0, run(tid, "SELECT * FROM semi_outer o WHERE EXISTS " + none + ";").size());
+    assertEquals(0, run(tid, "SELECT * FROM semi_outer o WHERE NOT EXISTS " + sub + ";").size());
+    assertEquals(outer, run(tid, "SELECT * FROM semi_outer o WHERE NOT EXISTS " + none + ";"));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The tuples of a query, as lists of values in scan order, checking that
+   * its plan has a semi-join
+   */
+  private static List<ArrayList<Integer>> run(TransactionId tid, String sql) throws Exception {
+    DbIterator plan = new Parser().generateLogicalPlan(tid, sql)
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(contains(plan));
+    List<ArrayList<Integer>> rtn = new ArrayList<ArrayList<Integer>>();
+    plan.open();
+    while (plan.hasNext()) {
+      Tuple t = plan.next();
+      ArrayList<Integer> values = new ArrayList<Integer>();
+      for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+        values.add(((IntField) t.getField(i)).getValue());
+      rtn.add(values);
+    }
+    plan.close();
+    return rtn;
+  }
+
+  private static boolean contains(DbIterator plan) {
+    if (plan instanceof HashSemiJoin)
+      return true;
+    if (plan instanceof Operator)
+      for (DbIterator child : ((Operator) plan).getChildren())
+        if (contains(child))
+          return true;
+    return false;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashSemiJoinTest.class);
+  }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  private final Random rand = new Random(42);
+  private ArrayList<ArrayList<Integer>> outer;
+  private ArrayList<ArrayList<Integer>> inner;
+  private BTreeFile index;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    outer = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 300; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(rand.nextInt(1000));
+      t.add(i);
+      outer.add(t);
+    }
+    inner = new ArrayList<ArrayList<Integer>>();
+    index = BTreeUtility.createRandomBTreeFile(3, 2000, 1000, null, inner, 0);
+    tid = new TransactionId();
+  }
+
+  /** A scan of the outer rows with named fields */
+  private DbIterator outerScan() {
+    TupleDesc td = Utility.getTupleDesc(2, "o");
+    ArrayList<Tuple> tups = new ArrayList<Tuple>();
+    for (ArrayList<Integer> row : outer) {
+      Tuple t = new Tuple(td);
+      for (int i = 0; i < 2; i++)
+        t.setField(i, new IntField(row.get(i)));
+      tups.add(t);
+    }
+    return new TupleIterator(td, tups);
+  }
+
+  /**
+   * Join the outer rows with the index and compare with a nested loops
+   * evaluation of the predicate on the inner rows passing the filter
+   */
+  private void validate(Predicate.Op op, Predicate filter, int batchSize) throws Exception {
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> l : outer) {
+      for (ArrayList<Integer> r : inner) {
+        if (filter != null && !new IntField(r.get(filter.getField()))
+            .compare(filter.getOp(), filter.getOperand()))
+          continue;
+        if (new IntField(l.get(0)).compare(op, new IntField(r.get(0)))) {
+          ArrayList<Integer> out = new ArrayList<Integer>(l);
+          out.addAll(r);
+          expected.add(out);
+        }
+      }
+    }
+
+    DbIterator scan = new SeqScan(tid, index.getId(), "i");
+    if (filter != null)
+      scan = new Filter(filter, scan);
+    IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(0, op, 0),
+        outerScan(), scan, batchSize);
+    SystemTestUtil.matchTuples(join, expected);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin with an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    validate(Predicate.Op.EQUALS, null, IndexNestedLoopJoin.DEFAULT_BATCH_SIZE);
+    // several batches of outer tuples
+    validate(Predicate.Op.EQUALS, null, 16 * Utility.getTupleDesc(2).getSize());
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin with range predicates
+   */
+  @Test public void rangeJoins() throws Exception {
+    outer.subList(20, outer.size()).clear();
+    validate(Predicate.Op.LESS_THAN, null, IndexNestedLoopJoin.DEFAULT_BATCH_SIZE);
+    validate(Predicate.Op.LESS_THAN_OR_EQ, null, IndexNestedLoopJoin.DEFAULT_BATCH_SIZE);
+    validate(Predicate.Op.GREATER_THAN, null, IndexNestedLoopJoin.DEFAULT_BATCH_SIZE);
+    validate(Predicate.Op.GREATER_THAN_OR_EQ, null, IndexNestedLoopJoin.DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Filters over the inner scan are applied to the tuples found in the index
+   */
+  @Test public void filteredInner() throws Exception {
+    validate(Predicate.Op.EQUALS,
+        new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500)),
+        IndexNestedLoopJoin.DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * The optimizer probes an inner B+ tree keyed on the join field
+   */
+  @Test public void chosenForIndexedInner() throws Exception {
+    SeqScan scan = new SeqScan(tid, index.getId(), "i");
+    DbIterator left = outerScan();
+    LogicalJoinNode lj = new LogicalJoinNode("o", "i", "f0", "f0", Predicate.Op.EQUALS);
+    lj.f1QuantifiedName = left.getTupleDesc().getFieldName(0);
+    lj.f2QuantifiedName = scan.getTupleDesc().getFieldName(0);
+    assertTrue(JoinOptimizer.instantiateJoin(lj, left, scan) instanceof IndexNestedLoopJoin);
+    assertTrue(IndexNestedLoopJoin.canProbe(scan, 0));
+    assertTrue(!IndexNestedLoopJoin.canProbe(scan, 1));
+    assertTrue(!IndexNestedLoopJoin.canProbe(left, 0));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
@@ -0,0 +1,45 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntTupleTableTest extends SimpleDbTestBase {
+
+  /**
+   * Every key finds exactly its own tuples, in the order they were added,
+   * also after the table has grown several times
+   */
+  @Test public void addAndFind() {
+    IntTupleTable table = new IntTupleTable();
+    Tuple[] tuples = new Tuple[3000];
+    for (int i = 0; i < tuples.length; i++) {
+      tuples[i] = Utility.getHeapTuple(i, 2);
+      // keys 0, 1000, 2000, ... collide with keys spread far apart
+      table.add((i % 1000) * 65536, tuples[i]);
+    }
+    assertEquals(tuples.length, table.size());
+
+    for (int key = 0; key < 1000; key++) {
+      int expected = key;
+      for (int row = table.first(key * 65536); row != -1; row = table.next(row)) {
+        assertSame(tuples[expected], table.get(row));
+        expected += 1000;
+      }
+      assertEquals(key + 3000, expected);
+    }
+    assertEquals(-1, table.first(1));
+    assertEquals(-1, table.first(-65536));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IntTupleTableTest.class);
+  }
+}
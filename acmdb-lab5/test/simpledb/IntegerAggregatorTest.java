@@ -2,7 +2,7 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
-import java.util.NoSuchElementException;
+import java.util.*;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -178,6 +178,53 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator with many more groups than fit in its memory,
+   * and one group much larger than the others
+   */
+  @Test public void spillingGroups() throws Exception {
+    Random rand = new Random(42);
+    int rows = 20000;
+    int[] data = new int[2 * rows];
+    Map<Integer, int[]> groups = new HashMap<Integer, int[]>();
+    for (int i = 0; i < rows; i++) {
+      int group = i % 2 == 0 ? 0 : rand.nextInt(3000) - 1500;
+      int value = rand.nextInt(1000);
+      data[2 * i] = group;
+      data[2 * i + 1] = value;
+      if (!groups.containsKey(group))
+        groups.put(group, new int[] { 0, 0 });
+      groups.get(group)[0] += value;
+      groups.get(group)[1]++;
+    }
+
+    int memory = 10 * (Type.INT_TYPE.getLen() + AggregateSpill.GROUP_OVERHEAD);
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.AVG }) {
+      IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, op, memory);
+      DbIterator input = TestUtil.createTupleList(width1, data);
+      while (input.hasNext())
+        agg.mergeTupleIntoGroup(input.next());
+      DbIterator it = agg.iterator();
+      it.open();
+      for (int pass = 0; pass < 2; pass++) {
+        Map<Integer, Integer> results = new HashMap<Integer, Integer>();
+        while (it.hasNext()) {
+          Tuple t = it.next();
+          int group = ((IntField) t.getField(0)).getValue();
+          assertEquals(null, results.put(group, ((IntField) t.getField(1)).getValue()));
+        }
+        assertEquals(groups.size(), results.size());
+        for (Map.Entry<Integer, int[]> e : groups.entrySet()) {
+          int[] sc = e.getValue();
+          int expected = op == Aggregator.Op.SUM ? sc[0] : sc[0] / sc[1];
+          assertEquals(expected, (int) results.get(e.getKey()));
+        }
+        it.rewind();
+      }
+      it.close();
+    }
+  }
+
   /**
    * JUnit suite target
    */
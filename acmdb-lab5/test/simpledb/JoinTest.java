@@ -105,6 +105,34 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() when the outer relation spans several
+   * blocks, so the inner relation is scanned more than once
+   */
+  @Test public void gtJoinSmallBlocks() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    int threeTuples = 3 * scan1.getTupleDesc().getSize();
+    Join op = new Join(pred, scan1, scan2, threeTuples);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+
+    // no tuple is produced twice
+    gtJoin.rewind();
+    op.rewind();
+    int expected = 0;
+    while (gtJoin.hasNext()) {
+      gtJoin.next();
+      expected++;
+    }
+    int actual = 0;
+    while (op.hasNext()) {
+      op.next();
+      actual++;
+    }
+    assertEquals(expected, actual);
+  }
+
   /**
    * JUnit suite target
    */
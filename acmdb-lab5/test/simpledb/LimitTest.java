@@ -0,0 +1,143 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  /** A scan of 0, 1, ..., n - 1 which counts the tuples read from it */
+  private DbIterator countingScan(int n, final int[] read) {
+    int[] values = new int[n];
+    for (int i = 0; i < n; i++)
+      values[i] = i;
+    Predicate counting = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)) {
+      private static final long serialVersionUID = 1L;
+
+      public boolean filter(Tuple t) {
+        read[0]++;
+        return super.filter(t);
+      }
+    };
+    return new Filter(counting, TestUtil.createTupleList(1, values));
+  }
+
+  /**
+   * Limit skips the offset, returns the limit, and reads no further
+   */
+  @Test public void limitOffset() throws Exception {
+    int[] read = new int[1];
+    Limit limit = new Limit(3, 2, countingScan(100, read));
+    limit.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 2, 3, 4 }), limit);
+    assertEquals(5, read[0]);
+
+    limit.rewind();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 2, 3, 4 }), limit);
+    limit.close();
+
+    limit = new Limit(10, 95, countingScan(100, read));
+    limit.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 95, 96, 97, 98, 99 }), limit);
+    limit.close();
+  }
+
+  /**
+   * TopN returns the same tuples as a full sort followed by a limit,
+   * including the order of ties
+   */
+  @Test public void topN() throws Exception {
+    Random rand = new Random(42);
+    int[] values = new int[2 * 1000];
+    for (int i = 0; i < 1000; i++) {
+      values[2 * i] = rand.nextInt(50);
+      values[2 * i + 1] = i;
+    }
+    int[] fields = new int[] { 0 };
+    boolean[] asc = new boolean[] { false };
+    for (int n : new int[] { 0, 1, 20, 999, 1000, 2000 }) {
+      OrderBy sorted = new OrderBy(fields, asc, TestUtil.createTupleList(2, values));
+      Limit expected = new Limit(n, 0, sorted);
+      TopN top = new TopN(fields, asc, n, TestUtil.createTupleList(2, values));
+      expected.open();
+      top.open();
+      TestUtil.compareDbIterators(expected, top);
+      top.close();
+      expected.close();
+    }
+  }
+
+  /**
+   * ORDER BY ... LIMIT ... OFFSET is parsed into a TopN and a Limit
+   */
+  @Test public void parsedLimit() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 200, 1000, null, tuples, "c");
+    Database.getCatalog().addTable(f, "lim");
+    Map<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("lim", new TableStats(f.getId(), 1));
+
+    Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+      public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+        return a.get(1).compareTo(b.get(1));
+      }
+    });
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM lim ORDER BY lim.c1 LIMIT 5 OFFSET 10;");
+    DbIterator plan = lp.physicalPlan(tid, stats, false);
+    DbIterator limit = ((Operator) plan).getChildren()[0];
+    assertTrue(limit instanceof Limit);
+    assertTrue(((Operator) limit).getChildren()[0] instanceof TopN);
+
+    plan.open();
+    for (int i = 10; i < 15; i++) {
+      assertTrue(plan.hasNext());
+      assertEquals(new IntField(tuples.get(i).get(1)), plan.next().getField(1));
+    }
+    assertFalse(plan.hasNext());
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * LIMIT is only taken off queries: a DELETE with a LIMIT fails to parse
+   * instead of deleting every matching tuple
+   */
+  @Test public void limitOnlyInQueries() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 50, 1000, null,
+        new ArrayList<ArrayList<Integer>>(), "c");
+    Database.getCatalog().addTable(f, "limdel");
+    TableStats.setTableStats("limdel", new TableStats(f.getId(), 1));
+    // drop the locks of the scan computing the statistics
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    new Parser().processNextStatement("DELETE FROM limdel WHERE limdel.c0 >= 0 LIMIT 1;");
+
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "limdel");
+    int count = 0;
+    scan.open();
+    while (scan.hasNext()) {
+      scan.next();
+      count++;
+    }
+    scan.close();
+    assertEquals(50, count);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockEscalationTest extends TestUtil.CreateHeapFile {
+  private PageId p0, p1, p2;
+  private TransactionId tid1, tid2;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+
+    // clear all state from the buffer pool
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // create a new empty HeapFile and populate it with three pages.
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 1025; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(3, empty.numPages());
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.p1 = new HeapPageId(empty.getId(), 1);
+    this.p2 = new HeapPageId(empty.getId(), 2);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // escalate as soon as a transaction reads more than two pages of a table
+    BufferPool.setEscalationThreshold(2);
+  }
+
+  @After public void tearDown() {
+    BufferPool.resetEscalationThreshold();
+  }
+
+  private boolean grabLock(TransactionId tid, PageId pid, Permissions perm)
+      throws Exception {
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+    t.start();
+    Thread.sleep(TIMEOUT);
+    return t.acquired();
+  }
+
+  /**
+   * Reading more pages than the threshold turns the page locks into a
+   * table lock, which still keeps writers out of every page.
+   */
+  @Test public void readLocksEscalate() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p2));
+    assertTrue(grabLock(tid2, p1, Permissions.READ_ONLY));
+    assertFalse(grabLock(new TransactionId(), p0, Permissions.READ_WRITE));
+  }
+
+  /**
+   * A transaction that escalated can still write pages of the table.
+   */
+  @Test public void writeAfterEscalation() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+
+    // the table lock is now SIX: others may read pages tid1 does not write
+    assertTrue(grabLock(tid2, p0, Permissions.READ_ONLY));
+    assertFalse(grabLock(new TransactionId(), p1, Permissions.READ_ONLY));
+    assertFalse(grabLock(new TransactionId(), p2, Permissions.READ_WRITE));
+    bp.transactionComplete(tid1, true);
+    assertTrue(grabLock(new TransactionId(), p1, Permissions.READ_ONLY));
+  }
+
+  /**
+   * Escalation does not wait for a writer of the table; the reader keeps
+   * its page locks instead, and the writer is not blocked.
+   */
+  @Test public void escalationSkipsWriters() throws Exception {
+    bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    BufferPool.setEscalationThreshold(1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+
+    assertTrue(bp.holdsLock(tid1, p1));
+    assertFalse(bp.holdsLock(tid1, p2));
+    assertTrue(grabLock(tid2, p2, Permissions.READ_WRITE));
+    assertFalse(grabLock(tid2, p0, Permissions.READ_WRITE));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockEscalationTest.class);
+  }
+}
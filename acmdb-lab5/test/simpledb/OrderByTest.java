@@ -0,0 +1,76 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  private final Random rand = new Random(42);
+
+  /** Rows of a string and two ints with many duplicates in each column */
+  private Object[][] rows(int n) {
+    Object[][] rows = new Object[n][];
+    for (int i = 0; i < n; i++)
+      rows[i] = new Object[] { "s" + rand.nextInt(20), rand.nextInt(10), i };
+    return rows;
+  }
+
+  private DbIterator scan(Object[][] rows) {
+    Object[] data = new Object[rows.length * 3];
+    for (int i = 0; i < rows.length; i++)
+      System.arraycopy(rows[i], 0, data, i * 3, 3);
+    return TestUtil.createTupleList(3, data);
+  }
+
+  /**
+   * Sort on field 1 ascending, then field 0 descending, with the given
+   * memory budget, and compare with a stable in-memory sort of the rows
+   */
+  private void validate(int n, int memory) throws Exception {
+    Object[][] rows = rows(n);
+    Object[][] expected = rows.clone();
+    Arrays.sort(expected, new Comparator<Object[]>() {
+      public int compare(Object[] a, Object[] b) {
+        int c = ((Integer) a[1]).compareTo((Integer) b[1]);
+        return c != 0 ? c : ((String) b[0]).compareTo((String) a[0]);
+      }
+    });
+
+    OrderBy op = new OrderBy(new int[] { 1, 0 }, new boolean[] { true, false },
+        scan(rows), memory);
+    op.open();
+    TestUtil.compareDbIterators(scan(expected), op);
+    op.rewind();
+    TestUtil.compareDbIterators(scan(expected), op);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy on several fields in memory
+   */
+  @Test public void multiColumn() throws Exception {
+    validate(500, OrderBy.DEFAULT_MEMORY);
+  }
+
+  /**
+   * Unit test for OrderBy merging runs written to disk, in one pass and in
+   * several passes
+   */
+  @Test public void externalSort() throws Exception {
+    int tupleSize = Utility.getTupleDesc(3).getSize() + Type.STRING_LEN;
+    validate(500, 20 * tupleSize);
+    validate(500, 2 * tupleSize);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
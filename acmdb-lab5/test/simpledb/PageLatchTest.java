@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.util.concurrent.locks.StampedLock;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageLatchTest extends TestUtil.CreateHeapFile {
+  private PageId p0, p1, p2;
+  private TransactionId tid;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+
+    // clear all state from the buffer pool
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // create a new empty HeapFile and populate it with three pages.
+    TransactionId t = new TransactionId();
+    for (int i = 0; i < 1025; ++i) {
+      empty.insertTuple(t, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(3, empty.numPages());
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.p1 = new HeapPageId(empty.getId(), 1);
+    this.p2 = new HeapPageId(empty.getId(), 2);
+    bp.getPage(t, p0, Permissions.READ_WRITE).markDirty(true, t);
+    bp.getPage(t, p1, Permissions.READ_WRITE).markDirty(true, t);
+    bp.getPage(t, p2, Permissions.READ_WRITE).markDirty(true, t);
+    bp.flushAllPages();
+
+    // a buffer pool with room for two pages only
+    bp = Database.resetBufferPool(2);
+    this.tid = new TransactionId();
+  }
+
+  /**
+   * Latches belong to pages, not to transactions: two transactions reading
+   * the same page share its latch, and it is not released on commit.
+   */
+  @Test public void latchPerPage() throws Exception {
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    StampedLock latch = bp.getLatch(p0);
+    assertSame(latch, bp.getLatch(p0));
+
+    long stamp = latch.readLock();
+    TransactionId other = new TransactionId();
+    bp.getPage(other, p0, Permissions.READ_ONLY);
+    long stamp2 = bp.getLatch(p0).tryReadLock();
+    assertTrue(stamp2 != 0);
+    bp.transactionComplete(other);
+    assertTrue(latch.isReadLocked());
+    latch.unlockRead(stamp2);
+    latch.unlockRead(stamp);
+  }
+
+  /**
+   * A latched page is not chosen for eviction, even if it is the least
+   * recently used one.
+   */
+  @Test public void latchedPageNotEvicted() throws Exception {
+    Page page = bp.getPage(tid, p0, Permissions.READ_ONLY);
+    bp.getPage(tid, p1, Permissions.READ_ONLY);
+    StampedLock latch = bp.getLatch(p0);
+    long stamp = latch.readLock();
+
+    bp.getPage(tid, p2, Permissions.READ_ONLY);
+    assertSame(page, bp.getPage(tid, p0, Permissions.READ_ONLY));
+    latch.unlockRead(stamp);
+  }
+
+  /**
+   * If every cached page is latched, nothing can be evicted.
+   */
+  @Test(expected=DbException.class) public void allLatched() throws Exception {
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    bp.getPage(tid, p1, Permissions.READ_ONLY);
+    StampedLock latch0 = bp.getLatch(p0);
+    StampedLock latch1 = bp.getLatch(p1);
+    long stamp0 = latch0.writeLock();
+    long stamp1 = latch1.writeLock();
+    try {
+      bp.getPage(tid, p2, Permissions.READ_ONLY);
+    } finally {
+      latch0.unlockWrite(stamp0);
+      latch1.unlockWrite(stamp1);
+    }
+  }
+
+  /**
+   * The latch of a page is dropped when the page is evicted, so that stamps
+   * of the old latch are not validated against a new one, while optimistic
+   * reads of the other pages stay valid.
+   */
+  @Test public void latchDroppedOnEviction() throws Exception {
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    StampedLock latch0 = bp.getLatch(p0);
+    long stamp0 = latch0.tryOptimisticRead();
+    bp.getPage(tid, p1, Permissions.READ_ONLY);
+    StampedLock latch1 = bp.getLatch(p1);
+    long stamp1 = latch1.tryOptimisticRead();
+    bp.getPage(tid, p2, Permissions.READ_ONLY);
+    assertFalse(bp.validate(p0, latch0, stamp0));
+    assertTrue(bp.validate(p1, latch1, stamp1));
+
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    assertTrue(latch0 != bp.getLatch(p0));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PageLatchTest.class);
+  }
+}
@@ -0,0 +1,174 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PipelineCompilerTest extends SimpleDbTestBase {
+
+  private HeapFile file;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    file = SystemTestUtil.createRandomHeapFile(3, 2000, 500, null, new ArrayList<ArrayList<Integer>>(), "c");
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    PipelineCompiler.setEnabled(false);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private SeqScan scan() {
+    return new SeqScan(tid, file.getId(), "t");
+  }
+
+  /** Filters and a projection over a scan */
+  private DbIterator pipeline() throws Exception {
+    DbIterator it = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(300)), scan());
+    it = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(100)), it);
+    return new Project(new ArrayList<Integer>(Arrays.asList(2, 0)),
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE }, it);
+  }
+
+  /**
+   * A compiled pipeline returns the tuples of the operators, a tuple and a
+   * batch at a time
+   */
+  @Test public void compiledPipeline() throws Exception {
+    List<String> expected = TestUtil.tuples(pipeline());
+    assertTrue(expected.size() > 0);
+    DbIterator compiled = PipelineCompiler.compile(pipeline());
+    assertTrue(compiled instanceof CompiledPlan);
+    assertEquals(expected, TestUtil.tuples(compiled));
+    assertEquals(expected, TestUtil.batches(compiled));
+
+    // rewinding reads the table again
+    compiled.open();
+    compiled.next();
+    compiled.rewind();
+    List<String> again = TestUtil.readTuples(compiled);
+    compiled.close();
+    assertEquals(expected, again);
+
+    // a pushed down scan
+    List<Predicate> filters = Arrays.asList(new Predicate(2, Predicate.Op.NOT_EQUALS, new IntField(7)));
+    SeqScan pushed = scan().pushDown(filters, new int[] { 2, 1 });
+    expected = TestUtil.tuples(pushed);
+    compiled = PipelineCompiler.compile(scan().pushDown(filters, new int[] { 2, 1 }));
+    assertTrue(compiled instanceof CompiledPlan);
+    assertEquals(expected, TestUtil.tuples(compiled));
+  }
+
+  /**
+   * A compiled aggregate computes the aggregates of the operators, also over
+   * no tuples
+   */
+  @Test public void compiledAggregate() throws Exception {
+    int[] fields = new int[] { 0, 1, 0, 1, 0 };
+    Aggregator.Op[] ops = new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MIN,
+        Aggregator.Op.MAX, Aggregator.Op.AVG, Aggregator.Op.COUNT };
+    DbIterator agg = new Aggregate(pipeline(), fields, new int[0], ops, AggregateSpill.DEFAULT_MEMORY, 1);
+    List<String> expected = TestUtil.tuples(agg);
+    DbIterator compiled = PipelineCompiler.compile(
+        new Aggregate(pipeline(), fields, new int[0], ops, AggregateSpill.DEFAULT_MEMORY, 1));
+    assertTrue(compiled instanceof CompiledPlan);
+    assertEquals(agg.getTupleDesc(), compiled.getTupleDesc());
+    assertEquals(expected, TestUtil.tuples(compiled));
+
+    DbIterator none = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(0)), scan());
+    expected = TestUtil.tuples(new Aggregate(none, fields, new int[0], ops, AggregateSpill.DEFAULT_MEMORY, 1));
+    none = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(0)), scan());
+    compiled = PipelineCompiler.compile(new Aggregate(none, fields, new int[0], ops, AggregateSpill.DEFAULT_MEMORY, 1));
+    assertTrue(compiled instanceof CompiledPlan);
+    assertEquals(expected, TestUtil.tuples(compiled));
+  }
+
+  /**
+   * Pipelines which differ only in their constants share a compiled class
+   */
+  @Test public void sharedClasses() throws Exception {
+    PipelineCompiler.compile(new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(5)), scan()));
+    int cached = PipelineCompiler.cachedClasses();
+    DbIterator filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(400)), scan());
+    List<String> expected = TestUtil.tuples(filter);
+    DbIterator compiled = PipelineCompiler.compile(
+        new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(400)), scan()));
+    assertTrue(compiled instanceof CompiledPlan);
+    assertEquals(cached, PipelineCompiler.cachedClasses());
+    assertEquals(expected, TestUtil.tuples(compiled));
+    assertEquals(expected, TestUtil.batches(compiled));
+  }
+
+  /**
+   * Pipelines below other operators are compiled, and plans which are not
+   * pipelines are left alone
+   */
+  @Test public void partialAndFallback() throws Exception {
+    JoinPredicate jp = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+    List<String> expected = TestUtil.tuples(new HashEquiJoin(jp, pipeline(), scan()));
+    DbIterator join = PipelineCompiler.compile(new HashEquiJoin(jp, pipeline(), scan()));
+    assertTrue(join instanceof HashEquiJoin);
+    DbIterator[] children = ((Operator) join).getChildren();
+    assertTrue(children[0] instanceof CompiledPlan);
+    assertTrue(children[1] instanceof SeqScan);
+    assertEquals(expected, TestUtil.tuples(join));
+
+    // predicates of subclasses of Predicate are not compiled
+    Predicate custom = new Predicate(0, Predicate.Op.EQUALS, new IntField(5)) {
+      private static final long serialVersionUID = 1L;
+      public boolean filter(Tuple t) {
+        return ((IntField) t.getField(0)).getValue() % 2 == 0;
+      }
+    };
+    DbIterator filter = new Filter(custom, scan());
+    assertSame(filter, PipelineCompiler.compile(filter));
+
+    // grouped aggregates are run by the operator, over a compiled pipeline
+    DbIterator grouped = new Aggregate(pipeline(), new int[] { 1 }, new int[] { 0 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT }, AggregateSpill.DEFAULT_MEMORY, 1);
+    assertSame(grouped, PipelineCompiler.compile(grouped));
+    assertTrue(((Operator) grouped).getChildren()[0] instanceof CompiledPlan);
+  }
+
+  /**
+   * The planner compiles the plans of queries when enabled
+   */
+  @Test public void plannedQueries() throws Exception {
+    Database.getCatalog().addTable(file, "gen");
+    Map<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("gen", new TableStats(file.getId(), 1));
+    String[] queries = new String[] {
+        "SELECT g.c0, g.c2 FROM gen g WHERE g.c1 < 250 AND g.c0 <> 3;",
+        "SELECT SUM(g.c0), COUNT(g.c1) FROM gen g WHERE g.c2 >= 100;",
+        "SELECT g.c1, MAX(g.c0) FROM gen g WHERE g.c2 > 200 GROUP BY g.c1;",
+    };
+    for (String sql : queries) {
+      List<String> expected = TestUtil.tuples(new Parser().generateLogicalPlan(tid, sql).physicalPlan(tid, stats, false));
+      Collections.sort(expected);
+      PipelineCompiler.setEnabled(true);
+      DbIterator plan = new Parser().generateLogicalPlan(tid, sql).physicalPlan(tid, stats, false);
+      PipelineCompiler.setEnabled(false);
+      List<String> actual = TestUtil.tuples(plan);
+      Collections.sort(actual);
+      assertEquals(sql, expected, actual);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PipelineCompilerTest.class);
+  }
+}
@@ -3,10 +3,13 @@ package simpledb;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.*;
+
 public class PredicateTest extends SimpleDbTestBase{
 
   /**
@@ -55,6 +58,49 @@ public class PredicateTest extends SimpleDbTestBase{
     }
   }
 
+  /**
+   * A compiled conjunction, with comparisons of a field folded into a range,
+   * agrees with comparing the fields one predicate at a time
+   */
+  @Test public void compiledConjunction() {
+    Random rand = new Random(7);
+    Predicate.Op[] ops = Predicate.Op.values();
+    int[] operands = new int[] { Integer.MIN_VALUE, -3, 0, 2, 5, Integer.MAX_VALUE };
+    for (int round = 0; round < 500; round++) {
+      List<Predicate> conjuncts = new ArrayList<Predicate>();
+      int n = 1 + rand.nextInt(4);
+      for (int i = 0; i < n; i++)
+        conjuncts.add(new Predicate(rand.nextInt(2), ops[rand.nextInt(ops.length)],
+            new IntField(operands[rand.nextInt(operands.length)])));
+      PredicateCompiler.TupleTest test = PredicateCompiler.compile(conjuncts);
+      for (int a : new int[] { Integer.MIN_VALUE, -3, -1, 0, 2, 3, 5, Integer.MAX_VALUE }) {
+        Tuple t = Utility.getHeapTuple(new int[] { a, rand.nextInt(9) - 4 });
+        boolean expected = true;
+        for (Predicate p : conjuncts)
+          expected &= t.getField(p.getField()).compare(p.getOp(), p.getOperand());
+        assertEquals(expected, test.test(t));
+      }
+    }
+  }
+
+  /**
+   * Compiled comparisons of strings agree with StringField.compare
+   */
+  @Test public void compiledStrings() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE });
+    String[] values = new String[] { "", "ab", "abc", "b", "xaby" };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (String c : values) {
+        Predicate p = new Predicate(0, op, new StringField(c, Type.STRING_LEN));
+        for (String v : values) {
+          Tuple t = new Tuple(td);
+          t.setField(0, new StringField(v, Type.STRING_LEN));
+          assertEquals(t.getField(0).compare(op, p.getOperand()), p.filter(t));
+        }
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
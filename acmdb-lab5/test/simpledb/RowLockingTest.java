@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class RowLockingTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId tid1, tid2;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+
+    // clear all state from the buffer pool
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // create a new empty HeapFile with one page holding ten tuples
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 10; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(1, empty.numPages());
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+  }
+
+  private Tuple tupleInSlot(int slot) throws Exception {
+    TransactionId tid = new TransactionId();
+    HeapPage p = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+    Tuple t = p.tuples[slot];
+    bp.transactionComplete(tid);
+    return t;
+  }
+
+  /** Count the tuples of p0 with the given value in field 0, as found on disk */
+  private int countOnDisk(int value) throws Exception {
+    HeapPage p = (HeapPage) empty.readPage(p0);
+    int cnt = 0;
+    Iterator<Tuple> it = p.iterator();
+    while (it.hasNext()) {
+      if (((IntField) it.next().getField(0)).getValue() == value)
+        cnt++;
+    }
+    return cnt;
+  }
+
+  /**
+   * Two transactions deleting different tuples of the same page do not
+   * block each other; deleting the same tuple does.
+   */
+  @Test public void deleteDifferentRows() throws Exception {
+    Tuple t0 = tupleInSlot(0);
+    Tuple t1 = tupleInSlot(1);
+    bp.deleteTuple(tid1, t0);
+    bp.deleteTuple(tid2, t1);
+    assertTrue(bp.holdsLock(tid1, t0.getRecordId()));
+    assertTrue(bp.holdsLock(tid2, t1.getRecordId()));
+    assertFalse(bp.holdsLock(tid2, t0.getRecordId()));
+
+    try {
+      bp.deleteTuple(tid2, t0);
+      fail("expected the delete to time out");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Two transactions inserting into the same page do not block each other
+   * and get different slots.
+   */
+  @Test public void insertSamePage() throws Exception {
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(100, 2));
+    Tuple t = Utility.getHeapTuple(200, 2);
+    bp.insertTuple(tid2, empty.getId(), t);
+    assertEquals(p0, t.getRecordId().getPageId());
+    assertEquals(11, t.getRecordId().tupleno());
+  }
+
+  /**
+   * An insert does not keep locks on the full pages it skipped, so readers
+   * of those pages do not wait for it.
+   */
+  @Test public void insertSkipsFullPages() throws Exception {
+    TransactionId tid = new TransactionId();
+    int free = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).getNumEmptySlots();
+    for (int i = 0; i < free; ++i)
+      bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+    bp.transactionComplete(tid);
+
+    Tuple t = Utility.getHeapTuple(100, 2);
+    bp.insertTuple(tid1, empty.getId(), t);
+    assertFalse(p0.equals(t.getRecordId().getPageId()));
+    assertFalse(bp.holdsLock(tid1, p0));
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid2, p0));
+  }
+
+  /**
+   * A slot emptied by a running transaction is not reused by others.
+   */
+  @Test public void deletedSlotNotReused() throws Exception {
+    Tuple t0 = tupleInSlot(0);
+    bp.deleteTuple(tid1, t0);
+    Tuple t = Utility.getHeapTuple(200, 2);
+    bp.insertTuple(tid2, empty.getId(), t);
+    assertEquals(10, t.getRecordId().tupleno());
+  }
+
+  /**
+   * Committing one transaction writes its rows to disk but not the rows of
+   * another one still running on the same page; aborting that one undoes
+   * only its own rows.
+   */
+  @Test public void commitAndAbortSamePage() throws Exception {
+    Tuple t3 = tupleInSlot(3);
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(100, 2));
+    bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(200, 2));
+    bp.deleteTuple(tid2, t3);
+
+    bp.transactionComplete(tid1, true);
+    assertEquals(1, countOnDisk(100));
+    assertEquals(0, countOnDisk(200));
+    assertEquals(1, countOnDisk(3));
+
+    bp.transactionComplete(tid2, false);
+    HeapPage p = (HeapPage) bp.getPage(new TransactionId(), p0, Permissions.READ_ONLY);
+    assertEquals(p.getNumEmptySlots(), ((HeapPage) empty.readPage(p0)).getNumEmptySlots());
+    assertEquals(null, p.isDirty());
+    Iterator<Tuple> it = p.iterator();
+    int cnt = 0;
+    while (it.hasNext()) {
+      int v = ((IntField) it.next().getField(0)).getValue();
+      assertTrue(v != 200);
+      cnt++;
+    }
+    assertEquals(11, cnt);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RowLockingTest.class);
+  }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId writer, reader;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+
+    // clear all state from the buffer pool
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // create a new empty HeapFile with one page holding ten tuples
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 10; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(1, empty.numPages());
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    this.writer = new TransactionId();
+    this.reader = new TransactionId();
+  }
+
+  private int countTuples(Page p) {
+    int cnt = 0;
+    Iterator<Tuple> it = ((HeapPage) p).iterator();
+    while (it.hasNext()) {
+      it.next();
+      cnt++;
+    }
+    return cnt;
+  }
+
+  /** Insert a tuple into p0 on behalf of the writer, leaving it uncommitted. */
+  private void writeTuple() throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(writer, p0, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(new int[] { 42, 42 }));
+    p.markDirty(true, writer);
+  }
+
+  /**
+   * A snapshot reader must not be blocked by a writer holding an exclusive
+   * lock, and must not see the writer's uncommitted changes.
+   */
+  @Test public void readerNotBlockedByWriter() throws Exception {
+    bp.beginSnapshot(reader);
+    writeTuple();
+
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(reader, p0, Permissions.READ_ONLY);
+    t.start();
+    Thread.sleep(100);
+    assertTrue(t.acquired());
+    assertEquals(10, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+    bp.transactionComplete(reader);
+  }
+
+  /**
+   * A writer must not be blocked by a running snapshot reader.
+   */
+  @Test public void writerNotBlockedByReader() throws Exception {
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(writer, p0, Permissions.READ_WRITE);
+    t.start();
+    Thread.sleep(100);
+    assertTrue(t.acquired());
+    bp.transactionComplete(reader);
+  }
+
+  /**
+   * A snapshot keeps seeing the page as of the time it started, even after
+   * a writer commits; a snapshot started afterwards sees the new version.
+   */
+  @Test public void snapshotIsStable() throws Exception {
+    bp.beginSnapshot(reader);
+    writeTuple();
+    bp.transactionComplete(writer, true);
+
+    assertEquals(10, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+
+    TransactionId later = new TransactionId();
+    bp.beginSnapshot(later);
+    assertEquals(11, countTuples(bp.getPage(later, p0, Permissions.READ_ONLY)));
+    assertEquals(10, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+
+    bp.transactionComplete(reader);
+    bp.transactionComplete(later);
+  }
+
+  /**
+   * Read-only transactions cannot ask for write access.
+   */
+  @Test(expected=DbException.class) public void snapshotCannotWrite() throws Exception {
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_WRITE);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotReadTest.class);
+  }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  private final Random rand = new Random(42);
+
+  /** Random rows of the given width, sorted on their first column */
+  private ArrayList<ArrayList<Integer>> sortedRows(int rows, int width, int maxValue) {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < rows; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      for (int j = 0; j < width; j++)
+        t.add(rand.nextInt(maxValue));
+      tuples.add(t);
+    }
+    Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+      public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+        return a.get(0).compareTo(b.get(0));
+      }
+    });
+    return tuples;
+  }
+
+  private DbIterator scan(ArrayList<ArrayList<Integer>> tuples, int width) {
+    int[] values = new int[tuples.size() * width];
+    int i = 0;
+    for (ArrayList<Integer> t : tuples)
+      for (Integer v : t)
+        values[i++] = v;
+    return TestUtil.createTupleList(width, values);
+  }
+
+  /** A scan of the given rows with named fields */
+  private DbIterator namedScan(ArrayList<ArrayList<Integer>> tuples, int width, String name) {
+    TupleDesc td = Utility.getTupleDesc(width, name);
+    ArrayList<Tuple> tups = new ArrayList<Tuple>();
+    for (ArrayList<Integer> row : tuples) {
+      Tuple t = new Tuple(td);
+      for (int i = 0; i < width; i++)
+        t.setField(i, new IntField(row.get(i)));
+      tups.add(t);
+    }
+    return new TupleIterator(td, tups);
+  }
+
+  /**
+   * Merge join two sorted lists on their first columns and compare with a
+   * nested loops evaluation of the predicate
+   */
+  private void validate(Predicate.Op op, int maxValue, int memory) throws Exception {
+    ArrayList<ArrayList<Integer>> left = sortedRows(200, 2, maxValue);
+    ArrayList<ArrayList<Integer>> right = sortedRows(150, 3, maxValue);
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> l : left) {
+      for (ArrayList<Integer> r : right) {
+        if (new IntField(l.get(0)).compare(op, new IntField(r.get(0)))) {
+          ArrayList<Integer> out = new ArrayList<Integer>(l);
+          out.addAll(r);
+          expected.add(out);
+        }
+      }
+    }
+
+    SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0),
+        scan(left, 2), scan(right, 3), memory);
+    SystemTestUtil.matchTuples(join, expected);
+  }
+
+  /**
+   * Unit test for SortMergeJoin with an = predicate and runs of duplicates
+   */
+  @Test public void eqJoin() throws Exception {
+    validate(Predicate.Op.EQUALS, 30, SortMergeJoin.DEFAULT_MEMORY);
+    validate(Predicate.Op.EQUALS, 1000, SortMergeJoin.DEFAULT_MEMORY);
+  }
+
+  /**
+   * Unit test for SortMergeJoin with range predicates
+   */
+  @Test public void rangeJoins() throws Exception {
+    validate(Predicate.Op.LESS_THAN, 30, SortMergeJoin.DEFAULT_MEMORY);
+    validate(Predicate.Op.LESS_THAN_OR_EQ, 30, SortMergeJoin.DEFAULT_MEMORY);
+    validate(Predicate.Op.GREATER_THAN, 30, SortMergeJoin.DEFAULT_MEMORY);
+    validate(Predicate.Op.GREATER_THAN_OR_EQ, 30, SortMergeJoin.DEFAULT_MEMORY);
+  }
+
+  /**
+   * Unit test for SortMergeJoin with runs larger than its memory budget
+   */
+  @Test public void spillingRuns() throws Exception {
+    int memory = 4 * Utility.getTupleDesc(3).getSize();
+    validate(Predicate.Op.EQUALS, 5, memory);
+    validate(Predicate.Op.GREATER_THAN, 30, memory);
+    validate(Predicate.Op.LESS_THAN_OR_EQ, 30, memory);
+  }
+
+  /**
+   * The optimizer merges inputs that are sorted on the join fields already
+   */
+  @Test public void chosenForSortedInputs() throws Exception {
+    DbIterator left = new OrderBy(0, true, namedScan(sortedRows(10, 2, 30), 2, "a"));
+    DbIterator right = new OrderBy(1, true, namedScan(sortedRows(10, 3, 30), 3, "b"));
+    LogicalJoinNode lj = new LogicalJoinNode("a", "b", "f0", "f1", Predicate.Op.EQUALS);
+    lj.f1QuantifiedName = left.getTupleDesc().getFieldName(0);
+    lj.f2QuantifiedName = right.getTupleDesc().getFieldName(1);
+    assertTrue(JoinOptimizer.instantiateJoin(lj, left, right) instanceof SortMergeJoin);
+
+    lj.f2QuantifiedName = right.getTupleDesc().getFieldName(0);
+    assertTrue(JoinOptimizer.instantiateJoin(lj, left, right) instanceof HashEquiJoin);
+  }
+
+  /**
+   * Two B+ trees scanned in key order are joined on their keys by a merge
+   */
+  @Test public void btreeKeyJoin() throws Exception {
+    ArrayList<ArrayList<Integer>> t1 = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f1 = BTreeUtility.createRandomBTreeFile(2, 3000, 2000, null, t1, 0);
+    ArrayList<ArrayList<Integer>> t2 = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f2 = BTreeUtility.createRandomBTreeFile(3, 2000, 2000, null, t2, 0);
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> l : t1) {
+      for (ArrayList<Integer> r : t2) {
+        if (l.get(0).equals(r.get(0))) {
+          ArrayList<Integer> out = new ArrayList<Integer>(l);
+          out.addAll(r);
+          expected.add(out);
+        }
+      }
+    }
+
+    TransactionId tid = new TransactionId();
+    BTreeScan s1 = new BTreeScan(tid, f1.getId(), "t1", null);
+    BTreeScan s2 = new BTreeScan(tid, f2.getId(), "t2", null);
+    LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "f0", "f0", Predicate.Op.EQUALS);
+    lj.f1QuantifiedName = s1.getTupleDesc().getFieldName(0);
+    lj.f2QuantifiedName = s2.getTupleDesc().getFieldName(0);
+    DbIterator join = JoinOptimizer.instantiateJoin(lj, s1, s2);
+    assertTrue(join instanceof SortMergeJoin);
+    SystemTestUtil.matchTuples(join, expected);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class StreamAggregateTest extends SimpleDbTestBase {
+
+  private final Random rand = new Random(42);
+
+  private static final Aggregator.Op[] OPS = new Aggregator.Op[] {
+      Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.MAX, Aggregator.Op.COUNT };
+  private static final int[] AFIELDS = new int[] { 2, 2, 1, 0 };
+
+  /** A list of 3-column tuples of random values */
+  private DbIterator randomTuples(int rows) {
+    int[] values = new int[3 * rows];
+    for (int i = 0; i < values.length; i++)
+      values[i] = rand.nextInt(i % 3 == 0 ? 50 : 10);
+    return TestUtil.createTupleList(3, values);
+  }
+
+  /**
+   * StreamAggregate over sorted input returns the groups of Aggregate, in
+   * the order of the sorted field, with one or two group-by fields
+   */
+  @Test public void sortedInput() throws Exception {
+    DbIterator input = randomTuples(2000);
+    for (int[] gfields : new int[][] { { 0 }, { 1, 0 } }) {
+      StreamAggregate stream = new StreamAggregate(
+          new OrderBy(0, true, input), AFIELDS, gfields, OPS);
+      assertEquals(gfields.length == 1 ? 0 : 1, stream.getSortedField());
+      List<String> actual = TestUtil.tuples(stream);
+
+      List<String> expected = TestUtil.tuples(new Aggregate(input, AFIELDS, gfields, OPS,
+          AggregateSpill.DEFAULT_MEMORY));
+      List<String> sorted = new ArrayList<String>(actual);
+      Collections.sort(sorted);
+      Collections.sort(expected);
+      assertEquals(expected, sorted);
+
+      stream.open();
+      int last = Integer.MIN_VALUE;
+      int count = 0;
+      while (stream.hasNext()) {
+        int value = ((IntField) stream.next().getField(stream.getSortedField())).getValue();
+        assertTrue(value >= last);
+        last = value;
+        count++;
+      }
+      stream.rewind();
+      assertEquals(actual.get(0), stream.next().toString());
+      stream.close();
+      assertEquals(actual.size(), count);
+    }
+  }
+
+  /**
+   * StreamAggregate requires input known to be sorted on a group-by field
+   */
+  @Test public void unsortedInput() throws Exception {
+    DbIterator input = randomTuples(10);
+    assertFalse(StreamAggregate.canStream(input, new int[] { 0 }));
+    assertFalse(StreamAggregate.canStream(new OrderBy(1, true, input), new int[] { 0 }));
+    assertFalse(StreamAggregate.canStream(new OrderBy(0, true, input), new int[0]));
+    try {
+      new StreamAggregate(input, AFIELDS, new int[] { 0 }, OPS);
+      assertTrue(false);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * A GROUP BY on the key of a B+ tree is planned as a StreamAggregate over
+   * the scan of the tree
+   */
+  @Test public void chosenForIndexedGroups() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(3, 3000, 200, null, tuples, 1);
+    for (int i = 0; i < 3; i++)
+      f.getTupleDesc().setFieldName(i, "c" + i);
+    Database.getCatalog().addTable(f, "sagg");
+    Map<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("sagg", new TableStats(f.getId(), 1));
+
+    Map<Integer, int[]> groups = new HashMap<Integer, int[]>();
+    for (ArrayList<Integer> t : tuples) {
+      if (!groups.containsKey(t.get(1)))
+        groups.put(t.get(1), new int[2]);
+      groups.get(t.get(1))[0] += t.get(2);
+      groups.get(t.get(1))[1]++;
+    }
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (Map.Entry<Integer, int[]> e : groups.entrySet())
+      expected.add(new ArrayList<Integer>(Arrays.asList(e.getValue()[0], e.getKey(), e.getValue()[1])));
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT SUM(sagg.c2), sagg.c1, COUNT(sagg.c0) FROM sagg GROUP BY sagg.c1;");
+    DbIterator plan = lp.physicalPlan(tid, stats, false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof StreamAggregate);
+    SystemTestUtil.matchTuples(plan, expected);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StreamAggregateTest.class);
+  }
+}
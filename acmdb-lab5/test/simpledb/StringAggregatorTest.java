@@ -105,6 +105,38 @@ public class StringAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test StringAggregator with many more groups than fit in its memory
+   */
+  @Test public void spillingGroups() throws Exception {
+    Random rand = new Random(42);
+    int rows = 5000;
+    Object[] data = new Object[2 * rows];
+    Map<String, Integer> groups = new HashMap<String, Integer>();
+    for (int i = 0; i < rows; i++) {
+      String group = "g" + rand.nextInt(1000);
+      data[2 * i] = group;
+      data[2 * i + 1] = "v" + i;
+      groups.put(group, groups.containsKey(group) ? groups.get(group) + 1 : 1);
+    }
+
+    int memory = 10 * (Type.STRING_TYPE.getLen() + AggregateSpill.GROUP_OVERHEAD);
+    StringAggregator agg = new StringAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.COUNT, memory);
+    DbIterator input = TestUtil.createTupleList(width1, data);
+    while (input.hasNext())
+      agg.mergeTupleIntoGroup(input.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    Map<String, Integer> results = new HashMap<String, Integer>();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertEquals(null, results.put(((StringField) t.getField(0)).getValue(),
+          ((IntField) t.getField(1)).getValue()));
+    }
+    assertEquals(groups, results);
+    it.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -166,6 +166,70 @@ public class TestUtil {
         }
     }
 
+    /**
+     * @return the tuples of an opened iterator as strings, read a tuple at a
+     *   time in the order returned
+     */
+    public static List<String> readTuples(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        List<String> rtn = new ArrayList<String>();
+        while (it.hasNext())
+            rtn.add(it.next().toString());
+        return rtn;
+    }
+
+    /**
+     * @return the tuples of an opened iterator as strings, read a batch at a
+     *   time in the order returned
+     */
+    public static List<String> readBatches(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        List<String> rtn = new ArrayList<String>();
+        TupleBatch batch;
+        while ((batch = TupleBatch.next(it)) != null) {
+            assertTrue(batch.size() > 0);
+            Iterator<Tuple> rows = batch.iterator();
+            while (rows.hasNext())
+                rtn.add(rows.next().toString());
+        }
+        return rtn;
+    }
+
+    /**
+     * @return the tuples of an iterator as strings, opened and closed here,
+     *   in the order returned
+     */
+    public static List<String> tuples(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        it.open();
+        List<String> rtn = readTuples(it);
+        it.close();
+        return rtn;
+    }
+
+    /**
+     * @return the tuples of the batches of an iterator as strings, opened and
+     *   closed here, in the order returned
+     */
+    public static List<String> batches(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        it.open();
+        List<String> rtn = readBatches(it);
+        it.close();
+        return rtn;
+    }
+
+    /**
+     * @return the tuples of an iterator as strings, opened and closed here,
+     *   in sorted order
+     */
+    public static List<String> sortedTuples(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        List<String> rtn = tuples(it);
+        Collections.sort(rtn);
+        return rtn;
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
@@ -0,0 +1,119 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  private HeapFile f;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    f = SystemTestUtil.createRandomHeapFile(3, 5000, 1000, null, new ArrayList<ArrayList<Integer>>(), "c");
+    tid = new TransactionId();
+  }
+
+  /**
+   * Batches of a tuple iterator hold its tuples, and selecting rows keeps
+   * only those
+   */
+  @Test public void adapters() throws Exception {
+    DbIterator it = TestUtil.createTupleList(2,
+        new Object[] { 1, "a", 2, "b", 3, "c" });
+    TupleBatch batch = TupleBatch.next(it);
+    assertEquals(3, batch.size());
+    assertNull(TupleBatch.next(it));
+    assertEquals(2, batch.getInt(0, 1));
+    assertEquals(new StringField("c", Type.STRING_LEN), batch.getField(1, 2));
+
+    batch.select(new int[] { 0, 2 }, 2);
+    assertEquals(2, batch.size());
+    assertEquals(2, batch.row(1));
+    Iterator<Tuple> tuples = batch.iterator();
+    assertEquals(new IntField(1), tuples.next().getField(0));
+    assertEquals(new IntField(3), tuples.next().getField(0));
+    assertFalse(tuples.hasNext());
+  }
+
+  /**
+   * Filtering a batch selects the rows which pass the predicate
+   */
+  @Test public void filterBatch() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      Predicate p = new Predicate(1, op, new IntField(500));
+      DbIterator scan = new SeqScan(tid, f.getId());
+      scan.open();
+      TupleBatch batch = TupleBatch.next(scan);
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int i = 0; i < batch.size(); i++) {
+        if (p.filter(batch.getTuple(batch.row(i))))
+          expected.add(batch.row(i));
+      }
+      p.filter(batch);
+      List<Integer> actual = new ArrayList<Integer>();
+      for (int i = 0; i < batch.size(); i++)
+        actual.add(batch.row(i));
+      assertEquals(expected, actual);
+      scan.close();
+    }
+  }
+
+  /**
+   * A scan, filter and projection return the same tuples a batch at a time
+   * as a tuple at a time
+   */
+  @Test public void scanFilterProject() throws Exception {
+    for (int pass = 0; pass < 2; pass++) {
+      DbIterator plan = new SeqScan(tid, f.getId(), "b");
+      plan = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500)), plan);
+      plan = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(100)), plan);
+      plan = new Project(new ArrayList<Integer>(Arrays.asList(2, 0)),
+          new Type[] { Type.INT_TYPE, Type.INT_TYPE }, plan);
+      plan.open();
+      List<String> expected = TestUtil.readTuples(plan);
+      assertTrue(expected.size() > 0);
+      plan.rewind();
+      assertEquals(expected, TestUtil.readBatches(plan));
+      plan.rewind();
+      assertEquals(expected, TestUtil.readBatches(plan));
+      plan.close();
+    }
+  }
+
+  /**
+   * A hash join returns the same tuples a batch at a time as a tuple at a
+   * time
+   */
+  @Test public void hashJoin() throws Exception {
+    HeapFile right = SystemTestUtil.createRandomHeapFile(2, 700, 1000, null,
+        new ArrayList<ArrayList<Integer>>(), "r");
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        new SeqScan(tid, f.getId(), "b"), new SeqScan(tid, right.getId(), "r"));
+    join.open();
+    List<String> expected = TestUtil.readTuples(join);
+    assertTrue(expected.size() > TupleBatch.DEFAULT_SIZE);
+    join.rewind();
+    assertEquals(expected, TestUtil.readBatches(join));
+    join.rewind();
+    assertEquals(expected, TestUtil.readBatches(join));
+    join.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}
@@ -7,6 +7,10 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -104,6 +108,68 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /**
+     * A scan with predicates and columns pushed into it returns the chosen
+     * columns of the tuples passing the predicates, in file order, a tuple or
+     * a batch at a time; the planner pushes filters and projections of heap
+     * file scans into them.
+     */
+    @Test public void testPushDown() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(4, 3000, 1000, null, tuples, "c");
+        List<Predicate> preds = Arrays.asList(
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500)),
+                new Predicate(3, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(100)));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(1) < 500 && t.get(3) >= 100)
+                expected.add(new ArrayList<Integer>(Arrays.asList(t.get(3), t.get(0))));
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "t").pushDown(preds, new int[] { 3, 0 });
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals("t.c3", scan.getTupleDesc().getFieldName(0));
+        scan.open();
+        ArrayList<ArrayList<Integer>> read = new ArrayList<ArrayList<Integer>>();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertNotNull(t.getRecordId());
+            read.add(SystemTestUtil.tupleToList(t));
+        }
+        assertEquals(expected, read);
+
+        scan.rewind();
+        read.clear();
+        TupleBatch batch;
+        while ((batch = TupleBatch.next(scan)) != null)
+            for (int i = 0; i < batch.size(); i++)
+                read.add(SystemTestUtil.tupleToList(batch.getTuple(batch.row(i))));
+        assertEquals(expected, read);
+        scan.close();
+
+        Database.getCatalog().addTable(f, "pushed");
+        Map<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("pushed", new TableStats(f.getId(), 1));
+        DbIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT p.c3, p.c0 FROM pushed p WHERE p.c1 < 500 AND p.c3 >= 100;")
+                .physicalPlan(tid, stats, false);
+        DbIterator child = ((Operator) plan).getChildren()[0];
+        assertTrue(child instanceof SeqScan);
+        assertEquals(2, ((SeqScan) child).getFilters().size());
+        assertEquals(2, child.getTupleDesc().numFields());
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // the scan returns whole tuples if the columns used are most of them
+        plan = new Parser().generateLogicalPlan(tid,
+                "SELECT p.c3, p.c0, p.c2 FROM pushed p WHERE p.c1 < 500;")
+                .physicalPlan(tid, stats, false);
+        child = ((Operator) plan).getChildren()[0];
+        assertTrue(child instanceof SeqScan);
+        assertEquals(1, ((SeqScan) child).getFilters().size());
+        assertEquals(4, child.getTupleDesc().numFields());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);